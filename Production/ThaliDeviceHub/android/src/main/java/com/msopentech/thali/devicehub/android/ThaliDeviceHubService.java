@@ -18,14 +18,14 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import com.couchbase.lite.android.AndroidContext;
+import com.couchbase.lite.listener.SocketStatus;
 import com.couchbase.lite.util.Log;
 import com.msopentech.thali.CouchDBListener.ThaliListener;
+import com.msopentech.thali.CouchDBListener.ThaliListenerReadiness;
 import com.msopentech.thali.utilities.universal.CblLogTags;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
 
 import java.net.UnknownHostException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
 
 /**
  * The service is marked false for exported and has no intents so it has to be called directly by class. In theory
@@ -62,22 +62,29 @@ public class ThaliDeviceHubService extends Service {
 
     @Override
     public void onCreate() {
+        // Embarrassing enough I'm not sure if getApplicationContext is the right context to get. :(
+        AndroidContext androidContext = new AndroidContext(getApplicationContext());
+        // On first run generating our key is the slowest part of starting, get it going before anything else
+        ThaliCryptoUtilities.startThaliKeyGenerationIfNeeded(androidContext.getFilesDir());
+
         thaliListener = new ThaliListener();
+        // Our clients give up pooled connections before the listener times them out, see setKeepAlive
+        thaliListener.setKeepAlive(true);
         // TODO: We will replace with the proxy with a non-null object once we have deployment under control
-        // Embarrassing enough I'm not sure if getApplicationContext is the right context to get. :(
-        try {
-            thaliListener.startServer(new AndroidContext(getApplicationContext()), ThaliListener.DefaultThaliDeviceHubPort,
-                    null);
-            thaliListenerRunning = true;
-            return;
-        } catch (UnrecoverableKeyException e) {
-            Log.e(CblLogTags.TAG_THALI_LISTENER, "Couldn't start", e);
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(CblLogTags.TAG_THALI_LISTENER, "Couldn't start", e);
-        } catch (KeyStoreException e) {
-            Log.e(CblLogTags.TAG_THALI_LISTENER, "Couldn't start", e);
-        }
-        thaliListenerRunning = false;
+        ThaliListenerReadiness readiness =
+                thaliListener.startServer(androidContext, ThaliListener.DefaultThaliDeviceHubPort, null);
+        readiness.addListener(new ThaliListenerReadiness.Listener() {
+            @Override
+            public void onReady(SocketStatus socketStatus) {
+                thaliListenerRunning = true;
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                Log.e(CblLogTags.TAG_THALI_LISTENER, "Couldn't start", failure);
+                thaliListenerRunning = false;
+            }
+        });
     }
 
     @Override
@@ -14,42 +14,91 @@ See the Apache 2 License for the specific language governing permissions and lim
 package com.msopentech.thali.devicehub.javahub;
 
 import com.couchbase.lite.JavaContext;
+import com.couchbase.lite.listener.SocketStatus;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.msopentech.thali.CouchDBListener.ThaliListener;
+import com.msopentech.thali.CouchDBListener.ThaliListenerReadiness;
 import com.msopentech.thali.CouchDBListener.java.JavaThaliListenerContext;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
 
 public class ThaliDeviceHubService {
     public static final String tdhJavaSubdirectory = ".thaliTdh";
     public static final String httpKeysFileName = "httpkeys";
     protected ThaliListener thaliListener = null;
+    private static final Logger LOG = LoggerFactory.getLogger(ThaliDeviceHubService.class);
+
+    public ThaliListenerReadiness startService() throws IOException, InterruptedException {
+        File userHomeDirectoryRoot = new File(System.getProperty("user.home"), tdhJavaSubdirectory);
+        final JavaContext context = new JavaThaliListenerContext(userHomeDirectoryRoot);
+        // On first run generating our key is the slowest part of starting, get it going before anything else
+        ThaliCryptoUtilities.startThaliKeyGenerationIfNeeded(context.getFilesDir());
 
-    public void startService() throws UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException,
-            IOException, InterruptedException {
         thaliListener = new ThaliListener();
+        // Our clients give up pooled connections before the listener times them out, see setKeepAlive
+        thaliListener.setKeepAlive(true);
+
+        // The last run's keys stay in place while we start, our key and port don't change between runs so they are
+        // the best answer anyone looking has until writeHttpKeys swaps in the new ones.
+        final File httpKeysFile = new File(context.getRootDirectory(), httpKeysFileName);
 
-        File userHomeDirectoryRoot = new File(System.getProperty("user.home"), tdhJavaSubdirectory);
-        JavaContext context = new JavaThaliListenerContext(userHomeDirectoryRoot);
         // TODO: We will replace with the proxy with a non-null object once we have deployment under control
-        thaliListener.startServer(context, ThaliListener.DefaultThaliDeviceHubPort, null);
+        final ThaliListenerReadiness readiness =
+                thaliListener.startServer(context, ThaliListener.DefaultThaliDeviceHubPort, null);
 
-        // Writing out HttpKeys to root directory so relays and other clients can find them
-        File httpKeysFile = new File(context.getRootDirectory(), httpKeysFileName);
-        if (httpKeysFile.exists() && httpKeysFile.delete() == false) {
-            throw new RuntimeException("Could not delete httpkey file " + httpKeysFile.getAbsolutePath());
-        }
+        readiness.addListener(new ThaliListenerReadiness.Listener() {
+            @Override
+            public void onReady(SocketStatus socketStatus) {
+                try {
+                    writeHttpKeys(httpKeysFile);
+                    LOG.info("Thali Device Hub started: " + readiness);
+                } catch (Exception e) {
+                    LOG.error("Could not write httpkey file " + httpKeysFile.getAbsolutePath(), e);
+                }
+            }
 
-        if (httpKeysFile.createNewFile() == false) {
-            throw new RuntimeException("could not create httpkey file " + httpKeysFile.getAbsolutePath());
-        }
+            @Override
+            public void onFailure(Throwable failure) {
+                LOG.error("Thali Device Hub failed to start after " + readiness.getTotalMillis() + "ms", failure);
+                // The last run's keys would send clients to a hub that isn't there
+                if (httpKeysFile.exists() && httpKeysFile.delete() == false) {
+                    LOG.error("Could not delete httpkey file " + httpKeysFile.getAbsolutePath());
+                }
+            }
+        });
 
+        return readiness;
+    }
+
+    /**
+     * Writing out HttpKeys to root directory so relays and other clients can find them. We write to a temporary
+     * file and rename it so a reader never sees a half written file, the old file is only removed once the new one
+     * is completely written.
+     * @param httpKeysFile
+     */
+    protected void writeHttpKeys(File httpKeysFile) throws IOException, InterruptedException {
+        File tempHttpKeysFile = new File(httpKeysFile.getParentFile(), httpKeysFile.getName() + ".tmp");
         ObjectMapper mapper = new ObjectMapper();
-        mapper.writeValue(httpKeysFile, thaliListener.getHttpKeys());
+        mapper.writeValue(tempHttpKeysFile, thaliListener.getHttpKeys());
+        // Renaming over the old file replaces it in one step where the platform allows it (not on Windows)
+        if (tempHttpKeysFile.renameTo(httpKeysFile)) {
+            return;
+        }
+        if ((httpKeysFile.exists() && httpKeysFile.delete() == false) || tempHttpKeysFile.renameTo(httpKeysFile) == false) {
+            throw new IOException("could not create httpkey file " + httpKeysFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * @return The last start, including how long each of its phases took (see
+     * {@link ThaliListenerReadiness#getPhaseTimings()}), or null if the service was never started
+     */
+    public ThaliListenerReadiness getReadiness() {
+        return thaliListener == null ? null : thaliListener.getReadiness();
     }
 
     public void stopService() {
@@ -40,6 +40,7 @@ public class UtilitiesTestCase extends AndroidTestCase {
         CreateClientBuilder cb = new AndroidEktorpCreateClientBuilder();
 
         thaliListener = new ThaliListener();
+        thaliListener.setKeepAlive(true);
 
         thaliListener.startServer(new AndroidContext(getContext()), 0, null);
 
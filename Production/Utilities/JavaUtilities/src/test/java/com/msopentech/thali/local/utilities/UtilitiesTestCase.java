@@ -41,6 +41,7 @@ public class UtilitiesTestCase extends TestCase {
             CreateClientBuilder cb = new JavaEktorpCreateClientBuilder();
 
             thaliListener = new ThaliListener();
+            thaliListener.setKeepAlive(true);
 
             thaliListener.startServer(new CreateContextInTemp(), ThaliListener.DefaultThaliDeviceHubPort, null);
 
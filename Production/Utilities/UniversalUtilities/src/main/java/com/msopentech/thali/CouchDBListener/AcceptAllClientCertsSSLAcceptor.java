@@ -49,6 +49,8 @@ package com.msopentech.thali.CouchDBListener;
 import Acme.Serve.SSLAcceptor;
 import Acme.Serve.Serve;
 import com.couchbase.lite.listener.LiteSSLAcceptor;
+import com.couchbase.lite.util.Log;
+import com.msopentech.thali.utilities.universal.CblLogTags;
 
 import javax.net.ssl.*;
 import java.io.FileInputStream;
@@ -59,7 +61,10 @@ import java.security.KeyStore;
 import java.security.Security;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  *
@@ -75,6 +80,47 @@ import java.util.Map;
 public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
     private static final String KEYSTOREPASS = "changeme";
 
+    /**
+     * Number of TLS sessions the server remembers for resumption, 0 means no limit.
+     */
+    public static final String ARG_SESSION_CACHE_SIZE = "ssl-session-cache-size";
+    /**
+     * How long, in seconds, a client may resume a TLS session, 0 means no limit.
+     */
+    public static final String ARG_SESSION_TIMEOUT = "ssl-session-timeout";
+    /**
+     * Comma separated cipher suites to enable, in order of preference. If not set we use
+     * {@link #getPreferredCipherSuites(String[], String[])}. The value "all" enables every supported suite, which
+     * was this class's original behavior.
+     */
+    public static final String ARG_CIPHER_SUITES = "ssl-cipher-suites";
+    public static final String ALL_CIPHER_SUITES = "all";
+
+    public static final int DefaultSessionCacheSize = 512;
+    public static final int DefaultSessionTimeoutSeconds = 4 * 60 * 60;
+
+    /**
+     * Suites we would like negotiated first, in order. AEAD suites are both faster and safer than the CBC ones,
+     * and with forward secrecy the server's RSA key is only used to sign. These are patterns matched against the
+     * suite name as not every JDK supports every one of them.
+     */
+    protected static final String[] preferredCipherSuitePatterns = {
+            "TLS_AES_128_GCM_",
+            "TLS_CHACHA20_POLY1305_",
+            "TLS_AES_256_GCM_",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_",
+            "TLS_ECDHE_RSA_WITH_CHACHA20_POLY1305_",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_",
+            "TLS_DHE_RSA_WITH_AES_128_GCM_",
+            "TLS_DHE_RSA_WITH_AES_256_GCM_"
+    };
+
+    protected String[] enabledCipherSuites;
+    protected boolean useAllCipherSuites;
+
     /**
      * This class is based on LiteSSLAcceptor and in addition to the changes it makes it also puts in
      * place a trust store for validating client certs that accepts everything and requests all connectors
@@ -135,6 +181,8 @@ public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
                 try {
                     Security.addProvider((java.security.Provider) Class
                             .forName("com.sun.net.ssl.internal.ssl.Provider").newInstance());
+                } catch (ClassNotFoundException e) {
+                    // Gone from Java 9 on, where JSSE is always there anyway
                 } catch (Throwable t) {
                     if (t instanceof ThreadDeath)
                         throw (ThreadDeath) t;
@@ -179,6 +227,16 @@ public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
 
             context.init(keyManagerFactory.getKeyManagers(), new TrustManager[] { trustManager } , new java.security.SecureRandom());
 
+            // Let returning clients (the relay, other TDHs replicating with us) resume their session rather than
+            // doing a full RSA handshake every time they connect
+            SSLSessionContext serverSessionContext = context.getServerSessionContext();
+            if (serverSessionContext != null) {
+                serverSessionContext.setSessionCacheSize(
+                        getIntWithDefault(inProperties, ARG_SESSION_CACHE_SIZE, DefaultSessionCacheSize));
+                serverSessionContext.setSessionTimeout(
+                        getIntWithDefault(inProperties, ARG_SESSION_TIMEOUT, DefaultSessionTimeoutSeconds));
+            }
+
             // Create the proxy and return
             sslSoc = context.getServerSocketFactory();
 
@@ -188,6 +246,11 @@ public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
             throw (IOException)new IOException(e.toString()).initCause(e);
         }
 
+        String cipherSuites = (String) inProperties.get(ARG_CIPHER_SUITES);
+        enabledCipherSuites = cipherSuites == null || ALL_CIPHER_SUITES.equalsIgnoreCase(cipherSuites.trim()) ?
+                null : cipherSuites.split("\\s*,\\s*");
+        useAllCipherSuites = cipherSuites != null && ALL_CIPHER_SUITES.equalsIgnoreCase(cipherSuites.trim());
+
         int port = SSLAcceptor.PORT;
         if (inProperties.get(SSLAcceptor.ARG_PORT) != null)
             try {
@@ -214,6 +277,21 @@ public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
             outProperties.put(Serve.ARG_BINDADDRESS, socket.getInetAddress().getHostName());
     }
 
+    protected int getIntWithDefault(Map args, String name, int defValue) {
+        Object result = args.get(name);
+        if (result == null) {
+            return defValue;
+        }
+        if (result instanceof Integer) {
+            return (Integer) result;
+        }
+        try {
+            return Integer.parseInt(result.toString().trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException(name + " is set to a value that is not an integer.", e);
+        }
+    }
+
     protected String getWithDefault(Map args, String name, String defValue) {
         String result = (String) args.get(name);
         if (result == null)
@@ -228,14 +306,63 @@ public class AcceptAllClientCertsSSLAcceptor extends LiteSSLAcceptor {
     protected void initServerSocket(ServerSocket ssocket, boolean clientAuth) {
         SSLServerSocket socket = (SSLServerSocket) ssocket;
 
-        // Enable all available cipher suites when the socket is connected
-        String cipherSuites[] = socket.getSupportedCipherSuites();
+        String cipherSuites[];
+        if (useAllCipherSuites) {
+            cipherSuites = socket.getSupportedCipherSuites();
+        } else if (enabledCipherSuites != null) {
+            cipherSuites = enabledCipherSuites;
+        } else {
+            cipherSuites = getPreferredCipherSuites(socket.getSupportedCipherSuites(), socket.getEnabledCipherSuites());
+        }
         socket.setEnabledCipherSuites(cipherSuites);
+        useServerCipherSuitesOrder(socket);
 
         // In the original this said socket.setNeedClientAuth
         socket.setWantClientAuth(true);
     }
 
+    /**
+     * Orders the suites so the ones matching {@link #preferredCipherSuitePatterns} come first followed by whatever
+     * else the JDK enables by default, in its order. Older clients that only speak the CBC suites (e.g. Android 4.x)
+     * still get in through the JDK defaults, suites the JDK has turned off (RC4, 3DES, export, anonymous) need
+     * {@link #ARG_CIPHER_SUITES}.
+     * @param supportedCipherSuites
+     * @param defaultCipherSuites
+     * @return
+     */
+    public static String[] getPreferredCipherSuites(String[] supportedCipherSuites, String[] defaultCipherSuites) {
+        Set<String> cipherSuites = new LinkedHashSet<String>();
+        for (String pattern : preferredCipherSuitePatterns) {
+            for (String cipherSuite : supportedCipherSuites) {
+                if (cipherSuite.startsWith(pattern)) {
+                    cipherSuites.add(cipherSuite);
+                }
+            }
+        }
+        cipherSuites.addAll(Arrays.asList(defaultCipherSuites));
+        return cipherSuites.toArray(new String[cipherSuites.size()]);
+    }
+
+    /**
+     * Our order is only a preference unless the server is told to use it over the client's, which
+     * SSLParameters.setUseCipherSuitesOrder does from Java 8 (and Android N). We go through reflection so we
+     * still run on older platforms, where the client's order wins.
+     * @param socket
+     * @return true if the server's order is now used
+     */
+    protected boolean useServerCipherSuitesOrder(SSLServerSocket socket) {
+        try {
+            Object sslParameters = SSLServerSocket.class.getMethod("getSSLParameters").invoke(socket);
+            sslParameters.getClass().getMethod("setUseCipherSuitesOrder", boolean.class).invoke(sslParameters, true);
+            SSLServerSocket.class.getMethod("setSSLParameters", SSLParameters.class).invoke(socket, sslParameters);
+            Log.d(CblLogTags.TAG_THALI_LISTENER, "Using the server's cipher suite order");
+            return true;
+        } catch (Exception e) {
+            Log.d(CblLogTags.TAG_THALI_LISTENER, "Can't use the server's cipher suite order, the client's wins: " + e);
+            return false;
+        }
+    }
+
     private String getKeystoreFile() {
         return (this.keystoreFile);
     }
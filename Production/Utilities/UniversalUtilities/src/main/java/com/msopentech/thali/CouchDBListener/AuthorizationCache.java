@@ -0,0 +1,118 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.CouchDBListener;
+
+import com.msopentech.thali.utilities.universal.ThaliPublicKeyComparer;
+import org.bouncycastle.util.encoders.Hex;
+
+import javax.net.ssl.SSLSession;
+import java.security.PublicKey;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers successful authorization decisions for {@link BogusRequestAuthorization}, by TLS session and by client
+ * key, until they expire or the cache is cleared. The least recently used entries are dropped first.
+ *
+ * Every clear starts a new generation. A decision worked out while the cache was being cleared (say because the
+ * key database changed under it) was made against the old generation and is not cached.
+ */
+public class AuthorizationCache {
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Long> expiries;
+    private long generation;
+
+    /**
+     * @param maxSize Maximum number of TLS sessions and client keys to remember
+     * @param ttlMillis How long a decision is reused, 0 turns caching off
+     */
+    public AuthorizationCache(final int maxSize, long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        this.expiries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param sslSession
+     * @return The cache key for the TLS session, null if there isn't one or caching is off
+     */
+    public String sessionKey(SSLSession sslSession) {
+        if (ttlMillis <= 0 || sslSession == null) {
+            return null;
+        }
+        byte[] sessionId = sslSession.getId();
+        return sessionId == null || sessionId.length == 0 ? null : Hex.toHexString(sessionId);
+    }
+
+    /**
+     * @param publicKey
+     * @return The cache key for the client's key, null if caching is off. Session keys are plain hex so the prefix
+     * keeps the two kinds of entries apart.
+     */
+    public String publicKeyKey(PublicKey publicKey) {
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        return "key:" + ThaliPublicKeyComparer.getKeyFingerprint(publicKey);
+    }
+
+    public synchronized boolean isAuthorized(String key) {
+        if (key == null) {
+            return false;
+        }
+        Long expires = expiries.get(key);
+        if (expires == null) {
+            return false;
+        }
+        if (expires < System.currentTimeMillis()) {
+            expiries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The generation to pass to {@link #authorize(String, long)}, read it before looking the client up
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Caches a successful decision unless the cache has been cleared since generation was read.
+     * @param key A session or key cache key, ignored if null
+     * @param generation
+     */
+    public synchronized void authorize(String key, long generation) {
+        if (key != null && this.generation == generation) {
+            expiries.put(key, System.currentTimeMillis() + ttlMillis);
+        }
+    }
+
+    /**
+     * Forgets every decision and starts a new generation.
+     */
+    public synchronized void clear() {
+        expiries.clear();
+        generation++;
+    }
+
+    public synchronized int size() {
+        return expiries.size();
+    }
+}
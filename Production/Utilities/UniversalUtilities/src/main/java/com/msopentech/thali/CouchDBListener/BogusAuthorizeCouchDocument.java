@@ -17,13 +17,16 @@ import com.couchbase.lite.CouchbaseLiteException;
 import com.couchbase.lite.Database;
 import com.couchbase.lite.Document;
 import com.couchbase.lite.Manager;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.msopentech.thali.utilities.universal.HttpKeyURL;
+import com.msopentech.thali.utilities.universal.ThaliPublicKeyComparer;
 import org.ektorp.support.CouchDbDocument;
 
 import java.math.BigInteger;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
@@ -33,6 +36,7 @@ import java.util.Map;
 public class BogusAuthorizeCouchDocument extends CouchDbDocument {
     private String modulus = null;
     private String exponent = null;
+    private String encodedKey = null; // Only used for EC keys, same encoding as in HttpKeyURL
     private String keyType = HttpKeyURL.rsaKeyType;
 
     public BogusAuthorizeCouchDocument() {
@@ -44,6 +48,13 @@ public class BogusAuthorizeCouchDocument extends CouchDbDocument {
             return;
         }
 
+        if (publicKey instanceof ECPublicKey && ThaliPublicKeyComparer.supportedKeyType(publicKey)) {
+            this.keyType = HttpKeyURL.ecKeyType;
+            this.encodedKey = encodeEcKey((ECPublicKey) publicKey);
+            this.setId(generateKeyId(publicKey));
+            return;
+        }
+
         if (publicKey instanceof RSAPublicKey == false) {
             throw new RuntimeException("Unsupported key type");
         }
@@ -63,11 +74,20 @@ public class BogusAuthorizeCouchDocument extends CouchDbDocument {
     public String getExponent() { return exponent; }
     public void setExponent(String exponent) { this.exponent = exponent; }
 
+    // Left out of RSA documents so they look exactly like they always have to older peers
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getEncodedKey() { return encodedKey; }
+    public void setEncodedKey(String encodedKey) { this.encodedKey = encodedKey; }
+
     /**
      * Creates a PublicKey class from the arguments of the body.
      * @return
      */
     public PublicKey generatePublicKey() throws NoSuchAlgorithmException, InvalidKeySpecException {
+        if (HttpKeyURL.ecKeyType.equals(this.keyType)) {
+            return HttpKeyURL.ecKeyStringToEcPublicKey(HttpKeyURL.ecKeyType + ":" + encodedKey);
+        }
+
         if (HttpKeyURL.rsaKeyType.equals(this.keyType) == false) {
             throw new RuntimeException("Unsupported key type");
         }
@@ -86,30 +106,53 @@ public class BogusAuthorizeCouchDocument extends CouchDbDocument {
         return (this.getId().equals(compareTo.getId()) &&
                 this.getRevision().equals(compareTo.getRevision()) &&
                 this.getKeyType().equals(compareTo.getKeyType()) &&
-                this.getModulus().equals(compareTo.getModulus()) &&
-                this.getExponent().equals(compareTo.getExponent()));
+                nullOrEqual(this.getModulus(), compareTo.getModulus()) &&
+                nullOrEqual(this.getExponent(), compareTo.getExponent()) &&
+                nullOrEqual(this.getEncodedKey(), compareTo.getEncodedKey()));
     }
 
     public static String generateRsaKeyId(java.security.interfaces.RSAPublicKey rsaPublicKey) {
         return HttpKeyURL.rsaKeyToHttpKeyString(rsaPublicKey);
     }
 
+    /**
+     * The ID a key's document is stored under, this is the key's encoding in a httpkey URL.
+     * @param publicKey
+     * @return
+     */
+    public static String generateKeyId(PublicKey publicKey) {
+        return HttpKeyURL.publicKeyToHttpKeyString(publicKey);
+    }
+
+    private static String encodeEcKey(ECPublicKey ecPublicKey) {
+        return HttpKeyURL.ecKeyToHttpKeyString(ecPublicKey).substring(HttpKeyURL.ecKeyType.length() + 1);
+    }
+
+    private static boolean nullOrEqual(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
     /**
      * This is a hack we are using to add the TDH's key to its own database. Eventually this code
      * will go away when we have a more formal group and acl mechanism.
      * @param manager
      */
-    public static void addDocViaManager(Manager manager, final RSAPublicKey publicKeyToAdd) throws CouchbaseLiteException {
+    public static void addDocViaManager(Manager manager, final PublicKey publicKeyToAdd) throws CouchbaseLiteException {
         Database keyDatabase = manager.getDatabase(ThaliListener.KeyDatabaseName);
-        Document keyDocument = new Document(keyDatabase, generateRsaKeyId(publicKeyToAdd));
+        Document keyDocument = new Document(keyDatabase, generateKeyId(publicKeyToAdd));
         if (keyDocument.getCurrentRevision() != null) {
             return; // Key is already there.
         }
-        Map<String, Object> properties = new HashMap<String, Object>() {{
-            put("keyType", HttpKeyURL.rsaKeyType);
-            put("modulus", publicKeyToAdd.getModulus().toString());
-            put("exponent", publicKeyToAdd.getPublicExponent().toString());
-        }};
+        Map<String, Object> properties = new HashMap<String, Object>();
+        if (publicKeyToAdd instanceof ECPublicKey) {
+            properties.put("keyType", HttpKeyURL.ecKeyType);
+            properties.put("encodedKey", encodeEcKey((ECPublicKey) publicKeyToAdd));
+        } else {
+            RSAPublicKey rsaPublicKey = (RSAPublicKey) publicKeyToAdd;
+            properties.put("keyType", HttpKeyURL.rsaKeyType);
+            properties.put("modulus", rsaPublicKey.getModulus().toString());
+            properties.put("exponent", rsaPublicKey.getPublicExponent().toString());
+        }
         keyDocument.putProperties(properties);
         keyDocument.createRevision();
     }
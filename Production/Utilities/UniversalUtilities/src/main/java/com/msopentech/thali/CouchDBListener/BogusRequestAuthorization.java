@@ -38,15 +38,41 @@ import java.util.List;
  *
  * The code assumes that the named database exists, so please create it if it doesn't exist.
  *
- * Right now we only support RSA keys so each entry is stored use its RSA public key values. If a key
+ * Each entry is stored under the key's httpkey encoding, see {@link BogusAuthorizeCouchDocument}. If a key
  * exists in the database then it has all permissions, if it doesn't then it has none.
+ *
+ * Looking the key up means several database calls and a JSON parse so successful decisions are cached by TLS
+ * session, a client that keeps its session (which is how PouchDB and the replicator behave) is only looked up
+ * once per TTL. They are also cached by the client key's fingerprint so a client that opens new sessions only pays
+ * for hashing its key. Any change to the key database empties the cache so removing a key takes effect on the next
+ * request, see {@link AuthorizationCache}.
  */
 public class BogusRequestAuthorization implements RequestAuthorization {
+    public static final long DefaultAuthorizationCacheTtlMillis = 60 * 1000;
+    public static final int DefaultAuthorizationCacheSize = 1024;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
     protected final String KeyDatabaseName;
+    private final AuthorizationCache authorizationCache;
+    private Database watchedKeyDatabase;
+    private Database.ChangeListener keyDatabaseListener;
 
     public BogusRequestAuthorization(String keyDatabaseName) {
+        this(keyDatabaseName, DefaultAuthorizationCacheTtlMillis, DefaultAuthorizationCacheSize);
+    }
+
+    /**
+     *
+     * @param keyDatabaseName
+     * @param authorizationCacheTtlMillis How long a successful decision is reused, 0 turns caching off
+     * @param authorizationCacheSize Maximum number of TLS sessions and client keys to remember
+     */
+    public BogusRequestAuthorization(String keyDatabaseName, long authorizationCacheTtlMillis,
+                                     int authorizationCacheSize) {
         assert keyDatabaseName != null && false == "".equals(keyDatabaseName);
         this.KeyDatabaseName = keyDatabaseName;
+        this.authorizationCache = new AuthorizationCache(authorizationCacheSize, authorizationCacheTtlMillis);
     }
 
     @Override
@@ -72,6 +98,17 @@ public class BogusRequestAuthorization implements RequestAuthorization {
             return false;
         }
 
+        watchKeyDatabase(keyDatabase);
+
+        String sessionKey = authorizationCache.sessionKey(urlConnection.getSSLSession());
+        if (authorizationCache.isAuthorized(sessionKey)) {
+            return true;
+        }
+
+        // If the key database changes while we are looking at it our answer may already be stale, the generation
+        // tells us not to cache it in that case
+        long cacheGeneration = authorizationCache.getGeneration();
+
         javax.security.cert.X509Certificate[] certChain;
 
         try {
@@ -87,13 +124,18 @@ public class BogusRequestAuthorization implements RequestAuthorization {
         }
 
         PublicKey publicKey = certChain[certChain.length - 1].getPublicKey();
-        if ((publicKey instanceof java.security.interfaces.RSAPublicKey) == false) {
+        if (ThaliPublicKeyComparer.supportedKeyType(publicKey) == false) {
             insecureConnection(urlConnection);
             return false;
         }
 
-        java.security.interfaces.RSAPublicKey rsaPublicKey = (java.security.interfaces.RSAPublicKey) publicKey;
-        String keyId = BogusAuthorizeCouchDocument.generateRsaKeyId(rsaPublicKey);
+        String keyCacheKey = authorizationCache.publicKeyKey(publicKey);
+        if (authorizationCache.isAuthorized(keyCacheKey)) {
+            authorizationCache.authorize(sessionKey, cacheGeneration);
+            return true;
+        }
+
+        String keyId = BogusAuthorizeCouchDocument.generateKeyId(publicKey);
 
         RevisionList revisionList = keyDatabase.getAllRevisionsOfDocumentID(keyId, true);
 
@@ -109,12 +151,11 @@ public class BogusRequestAuthorization implements RequestAuthorization {
                         revisionList.getAllRevIds().get(revisionList.getAllRevIds().size() - 1),
                         tdContentOptions);
 
-        // Looking up the doc by the RSA derived key ID but then doing a security check by comparing the values in the
+        // Looking up the doc by the key derived ID but then doing a security check by comparing the values in the
         // document leads to a potential denial of service attack where someone figures out how to get an ID that
         // matches someone else's but attached to a different key. In theory this is impossible since our key ID fully
         // encodes the public key's value. So if we really believed that then just matching on the ID should be
         // enough. When we right the real code we'll have to model this more carefully.
-        ObjectMapper mapper = new ObjectMapper();
         try {
             BogusAuthorizeCouchDocument keyClassForTests = mapper.readValue(revision.getJson(), BogusAuthorizeCouchDocument.class);
 
@@ -123,6 +164,8 @@ public class BogusRequestAuthorization implements RequestAuthorization {
                     insecureConnection(urlConnection);
                     return false;
                 }
+                authorizationCache.authorize(sessionKey, cacheGeneration);
+                authorizationCache.authorize(keyCacheKey, cacheGeneration);
                 return true;
             } catch (Exception e) {
                 // A 500 would be better
@@ -135,6 +178,34 @@ public class BogusRequestAuthorization implements RequestAuthorization {
         }
     }
 
+    /**
+     * Forgets every cached decision, the next request on each session goes back to the key database.
+     */
+    public void clearAuthorizationCache() {
+        authorizationCache.clear();
+    }
+
+    private synchronized void watchKeyDatabase(Database keyDatabase) {
+        if (keyDatabase == watchedKeyDatabase) {
+            return;
+        }
+
+        // Either the first request or the database was closed and reopened, in which case we may have missed
+        // changes while we weren't listening. The old database object mustn't keep us (and our cache) alive.
+        if (watchedKeyDatabase != null) {
+            watchedKeyDatabase.removeChangeListener(keyDatabaseListener);
+        }
+        keyDatabaseListener = new Database.ChangeListener() {
+            @Override
+            public void changed(Database.ChangeEvent event) {
+                clearAuthorizationCache();
+            }
+        };
+        keyDatabase.addChangeListener(keyDatabaseListener);
+        watchedKeyDatabase = keyDatabase;
+        clearAuthorizationCache();
+    }
+
     private void insecureConnection(URLConnection urlConnection) {
         urlConnection.setResponseCode(Status.FORBIDDEN);
         try {
@@ -8,6 +8,8 @@ import com.msopentech.thali.utilities.universal.HttpKeyURL;
 
 import java.net.*;
 import java.security.KeyStore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Created by yarong on 1/13/14.
@@ -15,16 +17,45 @@ import java.security.KeyStore;
 public class BogusThaliAuthorizerFactory implements AuthorizerFactory {
     public final static String thaliFieldName = "BogusThali";
 
-    protected final KeyStore clientKeyStore;
+    protected volatile KeyStore clientKeyStore;
+    protected final Future<KeyStore> clientKeyStoreFuture;
     protected final char[] clientPassPhrase;
     protected final Proxy proxy;
 
     public BogusThaliAuthorizerFactory(KeyStore clientKeyStore, char[] clientPassPhrase, Proxy proxy) {
         this.clientKeyStore = clientKeyStore;
+        this.clientKeyStoreFuture = null;
         this.clientPassPhrase = clientPassPhrase;
         this.proxy = proxy;
     }
 
+    /**
+     * Lets the factory be handed to the Manager while the key store is still being loaded (or generated), we only
+     * need it once the first replication asks for an authorizer.
+     * @param clientKeyStoreFuture
+     * @param clientPassPhrase
+     * @param proxy
+     */
+    public BogusThaliAuthorizerFactory(Future<KeyStore> clientKeyStoreFuture, char[] clientPassPhrase, Proxy proxy) {
+        this.clientKeyStore = null;
+        this.clientKeyStoreFuture = clientKeyStoreFuture;
+        this.clientPassPhrase = clientPassPhrase;
+        this.proxy = proxy;
+    }
+
+    protected KeyStore getClientKeyStore() {
+        if (clientKeyStore == null) {
+            try {
+                clientKeyStore = clientKeyStoreFuture.get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Interrupted waiting for the client key store", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Could not load the client key store", e.getCause());
+            }
+        }
+        return clientKeyStore;
+    }
+
     @Override
     public Authorizer getAuthorizer(ReplicatorArguments replicatorArguments) throws CouchbaseLiteException {
         // TODO: BUGBUG - This code tried to prevent an attack (or even accident) where someone sent in a replication
@@ -77,7 +108,7 @@ public class BogusThaliAuthorizerFactory implements AuthorizerFactory {
             // just feels like some weird unicode security hole waiting to happen.
             boolean doNotUseProxy = httpKeyURL.getHost().equals("127.0.0.1");
 
-            return new BogusThaliAuthorizer(httpKeyURL.getServerPublicKey(), clientKeyStore, clientPassPhrase,
+            return new BogusThaliAuthorizer(httpKeyURL.getServerPublicKey(), getClientKeyStore(), clientPassPhrase,
                     doNotUseProxy ? null : proxy);
         } catch (IllegalArgumentException e) {
             return null;
@@ -32,26 +32,73 @@ import java.net.*;
 import java.security.*;
 import java.util.ArrayList;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 public class ThaliListener {
     public static final String KeyDatabaseName = "thaliprincipaldatabase";
     public static final String TjwsSslAcceptor = "com.msopentech.thali.CouchDBListener.AcceptAllClientCertsSSLAcceptor";
     public static final String DefaultThaliDeviceHubAddress = "127.0.0.1";
     public static final int DefaultThaliDeviceHubPort = 9898;
+    public static final int DefaultKeepAliveTimeoutSeconds = 30;
+    public static final int DefaultMaxRequestsPerConnection = 200;
 
     private volatile LiteListener cblListener = null;
     private volatile boolean serverStarted = false;
     private volatile Manager manager = null;
     private volatile PublicKey serverPublicKey = null;
+    private volatile boolean keepAlive = false;
+    private volatile int keepAliveTimeoutSeconds = DefaultKeepAliveTimeoutSeconds;
+    private volatile int maxRequestsPerConnection = DefaultMaxRequestsPerConnection;
+    private volatile ThaliListenerReadiness readiness = null;
+    // Guards handing a new LiteListener to cblListener against stopServer
+    private final Object listenerLock = new Object();
 
     private void waitTillServerStarts() throws InterruptedException {
-        while (cblListener == null && serverStarted) {
-            Thread.sleep(100);
+        ThaliListenerReadiness currentReadiness = readiness;
+        if (serverStarted == false || currentReadiness == null) {
+            throw new RuntimeCryptoException("server wasn't started or was stopped.");
         }
 
-        if (serverStarted == false) {
-            throw new RuntimeCryptoException("server wasn't started or was stopped.");
+        try {
+            currentReadiness.get();
+        } catch (ExecutionException e) {
+            RuntimeCryptoException failure = new RuntimeCryptoException("server failed to start or was stopped");
+            failure.initCause(e.getCause());
+            throw failure;
+        }
+    }
+
+    /**
+     * Keeps client connections open between requests so replication doesn't pay for a new TCP connection and
+     * mutual auth TLS handshake on every batch. Must be called before startServer.
+     *
+     * By default we close idle connections after a second to work around
+     * https://github.com/couchbase/couchbase-lite-java-listener/issues/40. The hang there comes from a client
+     * sending a request on a pooled connection just as the server times it out. Our clients (see
+     * {@link com.msopentech.thali.utilities.universal.HttpKeyHttpClient}) check pooled connections for staleness
+     * and give them up a little before the server's advertised timeout, so with them it is safe to turn this on.
+     * Other clients may still see the race.
+     * @param keepAlive
+     * @param keepAliveTimeoutSeconds How long an idle connection is kept open
+     * @param maxRequestsPerConnection How many requests a connection may carry before the server closes it
+     */
+    public void setKeepAlive(boolean keepAlive, int keepAliveTimeoutSeconds, int maxRequestsPerConnection) {
+        if (keepAliveTimeoutSeconds <= 0 || maxRequestsPerConnection <= 0) {
+            throw new IllegalArgumentException("keepAliveTimeoutSeconds and maxRequestsPerConnection must be positive");
         }
+        this.keepAlive = keepAlive;
+        this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+        this.maxRequestsPerConnection = maxRequestsPerConnection;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        setKeepAlive(keepAlive, DefaultKeepAliveTimeoutSeconds, DefaultMaxRequestsPerConnection);
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
     }
 
     /**
@@ -59,24 +106,43 @@ public class ThaliListener {
      * the specified port.
      * @param context
      * @param port
+     * @return Completes once the server is listening, see {@link #getReadiness()}. Problems with the key store are
+     * reported through it too.
      */
-    public void startServer(final Context context, final int port, final Proxy proxy) throws
-            UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException{
-        serverStarted = true;
+    public ThaliListenerReadiness startServer(final Context context, final int port, final Proxy proxy) {
         if (context == null) {
             throw new RuntimeException();
         }
+        final ThaliListenerReadiness startReadiness = new ThaliListenerReadiness();
+        synchronized (listenerLock) {
+            readiness = startReadiness;
+            serverStarted = true;
+        }
 
-        final KeyStore finalClientKeyStore = ThaliCryptoUtilities.getThaliKeyStoreByAnyMeansNecessary(context.getFilesDir());
-        serverPublicKey = ThaliCryptoUtilities.getAppKeyFromKeyStore(finalClientKeyStore);
+        // Loading the key store can mean generating our RSA key, which is slow, and opening the manager doesn't
+        // need the key store until the first replication, so do the two at the same time.
+        final FutureTask<KeyStore> keyStoreTask = new FutureTask<KeyStore>(new Callable<KeyStore>() {
+            @Override
+            public KeyStore call() throws Exception {
+                long phaseStart = System.nanoTime();
+                KeyStore clientKeyStore = ThaliCryptoUtilities.getThaliKeyStoreByAnyMeansNecessary(context.getFilesDir());
+                serverPublicKey = ThaliCryptoUtilities.getAppKeyFromKeyStore(clientKeyStore);
+                startReadiness.recordPhase(ThaliListenerReadiness.PhaseKeyStoreLoad, phaseStart);
+                return clientKeyStore;
+            }
+        });
+        Thread keyStoreThread = new Thread(keyStoreTask, "Thali Listener Key Store");
+        keyStoreThread.setDaemon(true);
+        keyStoreThread.start();
 
         new Thread(new Runnable() {
             public void run() {
                 // Start the CouchDB Lite manager
                 try {
+                    long phaseStart = System.nanoTime();
                     ArrayList<AuthorizerFactory> authorizerFactoryArrayList = new ArrayList<AuthorizerFactory>();
                     BogusThaliAuthorizerFactory bogusThaliAuthorizerFactory =
-                            new BogusThaliAuthorizerFactory(finalClientKeyStore, ThaliCryptoUtilities.DefaultPassPhrase,
+                            new BogusThaliAuthorizerFactory(keyStoreTask, ThaliCryptoUtilities.DefaultPassPhrase,
                                     proxy);
                     authorizerFactoryArrayList.add(bogusThaliAuthorizerFactory);
                     AuthorizerFactoryManager authorizerFactoryManager =
@@ -87,19 +153,46 @@ public class ThaliListener {
                     // This creates the database used to store the keys of remote applications that are authorized to use
                     // the system in case it doesn't already exist.
                     manager.getDatabase(KeyDatabaseName);
-
-                    // Provision the TDH in its own key database so it can do replications to itself
-                    // https://github.com/thaliproject/thali/issues/45
-                    BogusAuthorizeCouchDocument.addDocViaManager(manager,
-                            (java.security.interfaces.RSAPublicKey) serverPublicKey);
+                    startReadiness.recordPhase(ThaliListenerReadiness.PhaseManagerOpen, phaseStart);
                 } catch (IOException e) {
                     Log.e(CblLogTags.TAG_THALI_LISTENER, "Manager failed to start", e);
+                    startReadiness.fail(e);
                     return;
                 } catch (CouchbaseLiteException e) {
                     Log.e(CblLogTags.TAG_THALI_LISTENER, "Manager failed to start", e);
+                    startReadiness.fail(e);
+                    return;
+                }
+
+                // The SSL acceptor reads our key from the key store file so we can't bind until it is there
+                try {
+                    keyStoreTask.get();
+                } catch (InterruptedException e) {
+                    startReadiness.fail(e);
+                    return;
+                } catch (ExecutionException e) {
+                    Log.e(CblLogTags.TAG_THALI_LISTENER, "Could not load or create the key store", e.getCause());
+                    startReadiness.fail(e.getCause());
                     return;
                 }
 
+                // Provision the TDH in its own key database so it can do replications to itself
+                // https://github.com/thaliproject/thali/issues/45
+                // Only self replication needs this so it runs while the socket is being bound, we don't report
+                // ready until it is done though.
+                FutureTask<Void> provisionTask = new FutureTask<Void>(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long phaseStart = System.nanoTime();
+                        BogusAuthorizeCouchDocument.addDocViaManager(manager, serverPublicKey);
+                        startReadiness.recordPhase(ThaliListenerReadiness.PhaseKeyDatabaseProvisioning, phaseStart);
+                        return null;
+                    }
+                });
+                Thread provisionThread = new Thread(provisionTask, "Thali Listener Key Provisioning");
+                provisionThread.setDaemon(true);
+                provisionThread.start();
+
                 Properties tjwsProperties = new Properties();
                 tjwsProperties.setProperty(Serve.ARG_ACCEPTOR_CLASS, TjwsSslAcceptor);
                 tjwsProperties.setProperty(SSLAcceptor.ARG_KEYSTORETYPE, ThaliCryptoUtilities.PrivateKeyHolderFormat);
@@ -111,34 +204,101 @@ public class ThaliListener {
 
                 tjwsProperties.setProperty(SSLAcceptor.ARG_CLIENTAUTH, "true");
 
+                // Keep TLS sessions around so the relay and peers we replicate with can resume rather than pay for
+                // a full handshake on each connection, and prefer the fast AEAD cipher suites
+                tjwsProperties.setProperty(AcceptAllClientCertsSSLAcceptor.ARG_SESSION_CACHE_SIZE,
+                        Integer.toString(AcceptAllClientCertsSSLAcceptor.DefaultSessionCacheSize));
+                tjwsProperties.setProperty(AcceptAllClientCertsSSLAcceptor.ARG_SESSION_TIMEOUT,
+                        Integer.toString(AcceptAllClientCertsSSLAcceptor.DefaultSessionTimeoutSeconds));
+
                 //Allows us to bind to a particular address if that is interesting
                 //tjwsProperties.setProperty(Serve.ARG_BINDADDRESS, DefaultThaliDeviceHubAddress);
 
-                // Needed to work around https://github.com/couchbase/couchbase-lite-java-listener/issues/40
-                tjwsProperties.setProperty(Serve.ARG_KEEPALIVE_TIMEOUT, "1");
+                if (keepAlive) {
+                    tjwsProperties.setProperty(Serve.ARG_KEEPALIVE_TIMEOUT, Integer.toString(keepAliveTimeoutSeconds));
+                    tjwsProperties.setProperty(Serve.ARG_MAX_CONN_USE, Integer.toString(maxRequestsPerConnection));
+                } else {
+                    // Needed to work around https://github.com/couchbase/couchbase-lite-java-listener/issues/40
+                    tjwsProperties.setProperty(Serve.ARG_KEEPALIVE_TIMEOUT, "1");
+                }
 
                 BogusRequestAuthorization authorize = new BogusRequestAuthorization(KeyDatabaseName);
 
-                cblListener = new LiteListener(manager, port, tjwsProperties, authorize, null);
+                try {
+                    long phaseStart = System.nanoTime();
+                    LiteListener startingListener = new LiteListener(manager, port, tjwsProperties, authorize, null);
+                    synchronized (listenerLock) {
+                        // If stopServer ran while we were getting here it couldn't see this listener to stop it.
+                        // The listener doesn't bind its socket until it is started, so not starting it is all the
+                        // tearing down it needs.
+                        if (serverStarted == false || readiness != startReadiness) {
+                            startReadiness.fail(
+                                    new IllegalStateException("Listener was stopped before it finished starting"));
+                            return;
+                        }
+                        cblListener = startingListener;
+                        startingListener.start();
+                    }
+                    // getSocketStatus waits for the listener's socket to be bound
+                    SocketStatus socketStatus = startingListener.getSocketStatus();
+                    startReadiness.recordPhase(ThaliListenerReadiness.PhaseSocketBind, phaseStart);
 
-                cblListener.start();
+                    provisionTask.get();
+                    startReadiness.succeed(socketStatus);
+                } catch (RuntimeException e) {
+                    Log.e(CblLogTags.TAG_THALI_LISTENER, "Listener failed to start", e);
+                    startReadiness.fail(e);
+                } catch (InterruptedException e) {
+                    startReadiness.fail(e);
+                } catch (ExecutionException e) {
+                    Log.e(CblLogTags.TAG_THALI_LISTENER, "Could not add our key to the key database", e.getCause());
+                    startReadiness.fail(e.getCause());
+                }
             }
         }).start();
 
-        try {
-            Log.w(CblLogTags.TAG_THALI_LISTENER, "Local address is: " + getHttpKeys().getLocalMachineIPHttpKeyURL());
-        } catch (InterruptedException e) {
-            Log.e(CblLogTags.TAG_THALI_LISTENER, "Failed trying to log address", e);
-        } catch (UnknownHostException e) {
-            Log.e(CblLogTags.TAG_THALI_LISTENER, "Failed trying to log address", e);
-        }
+        startReadiness.addListener(new ThaliListenerReadiness.Listener() {
+            @Override
+            public void onReady(SocketStatus socketStatus) {
+                try {
+                    Log.w(CblLogTags.TAG_THALI_LISTENER, "Local address is: " + getHttpKeys().getLocalMachineIPHttpKeyURL());
+                } catch (InterruptedException e) {
+                    Log.e(CblLogTags.TAG_THALI_LISTENER, "Failed trying to log address", e);
+                } catch (UnknownHostException e) {
+                    Log.e(CblLogTags.TAG_THALI_LISTENER, "Failed trying to log address", e);
+                }
+                Log.i(CblLogTags.TAG_THALI_LISTENER, "Listener started: " + startReadiness);
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+            }
+        });
+
+        return startReadiness;
+    }
+
+    /**
+     * @return Tracks the most recent call to startServer, null if it was never called
+     */
+    public ThaliListenerReadiness getReadiness() {
+        return readiness;
     }
 
     public void stopServer() {
-        if (cblListener != null) {
-            cblListener.stop();
+        LiteListener listenerToStop;
+        ThaliListenerReadiness currentReadiness;
+        synchronized (listenerLock) {
+            serverStarted = false;
+            listenerToStop = cblListener;
+            currentReadiness = readiness;
+        }
+        if (listenerToStop != null) {
+            listenerToStop.stop();
+        }
+        if (currentReadiness != null) {
+            currentReadiness.fail(new IllegalStateException("Listener was stopped before it finished starting"));
         }
-        serverStarted = false;
     }
 
     public SocketStatus getSocketStatus() throws InterruptedException {
@@ -0,0 +1,182 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.CouchDBListener;
+
+import com.couchbase.lite.listener.SocketStatus;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Tracks a {@link ThaliListener} starting up. It completes once the listener's socket is bound, or fails if
+ * startup fails or the listener is stopped first, and records how long each phase of startup took.
+ *
+ * Callers can either block on it as a Future or register a {@link Listener} to be told when it completes.
+ */
+public class ThaliListenerReadiness implements Future<SocketStatus> {
+    public static final String PhaseKeyStoreLoad = "keyStoreLoad";
+    public static final String PhaseManagerOpen = "managerOpen";
+    public static final String PhaseKeyDatabaseProvisioning = "keyDatabaseProvisioning";
+    public static final String PhaseSocketBind = "socketBind";
+
+    public interface Listener {
+        /**
+         * Called on the listener's startup thread, or on the caller's thread if the listener was already running
+         * when {@link #addListener(Listener)} was called.
+         * @param socketStatus
+         */
+        void onReady(SocketStatus socketStatus);
+
+        void onFailure(Throwable failure);
+    }
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private volatile SocketStatus socketStatus;
+    private volatile Throwable failure;
+    private volatile long totalMillis = -1;
+
+    public void addListener(Listener listener) {
+        synchronized (listeners) {
+            if (isDone() == false) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        notifyListener(listener);
+    }
+
+    /**
+     * @return How long each phase took in milliseconds, in the order they finished
+     */
+    public Map<String, Long> getPhaseTimings() {
+        synchronized (phaseMillis) {
+            return new LinkedHashMap<String, Long>(phaseMillis);
+        }
+    }
+
+    /**
+     * @param phase
+     * @return The phase's duration in milliseconds or -1 if it hasn't finished
+     */
+    public long getPhaseMillis(String phase) {
+        synchronized (phaseMillis) {
+            Long millis = phaseMillis.get(phase);
+            return millis == null ? -1 : millis;
+        }
+    }
+
+    /**
+     * @return Milliseconds from startServer being called to completion, or -1 if not done yet
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return Why startup failed, or null if it hasn't (yet)
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public String toString() {
+        return "ThaliListenerReadiness[" + (isDone() ? (failure == null ? "ready" : "failed") : "starting") +
+                ", phases=" + getPhaseTimings() + ", total=" + totalMillis + "ms]";
+    }
+
+    /**
+     * Startup can't be cancelled through the future, use {@link ThaliListener#stopServer()}.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public SocketStatus get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public SocketStatus get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (done.await(timeout, unit) == false) {
+            throw new TimeoutException("Listener has not started yet");
+        }
+        return getResult();
+    }
+
+    void recordPhase(String phase, long phaseStartNanos) {
+        synchronized (phaseMillis) {
+            phaseMillis.put(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - phaseStartNanos));
+        }
+    }
+
+    void succeed(SocketStatus socketStatus) {
+        complete(socketStatus, null);
+    }
+
+    void fail(Throwable failure) {
+        complete(null, failure);
+    }
+
+    private void complete(SocketStatus socketStatus, Throwable failure) {
+        List<Listener> toNotify;
+        synchronized (listeners) {
+            // Only the first outcome counts, e.g. a stop after a successful start doesn't turn it into a failure
+            if (isDone()) {
+                return;
+            }
+            this.socketStatus = socketStatus;
+            this.failure = failure;
+            totalMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            done.countDown();
+            toNotify = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : toNotify) {
+            notifyListener(listener);
+        }
+    }
+
+    private void notifyListener(Listener listener) {
+        if (failure != null) {
+            listener.onFailure(failure);
+        } else {
+            listener.onReady(socketStatus);
+        }
+    }
+
+    private SocketStatus getResult() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return socketStatus;
+    }
+}
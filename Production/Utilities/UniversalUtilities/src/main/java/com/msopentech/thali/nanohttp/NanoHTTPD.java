@@ -19,12 +19,19 @@
 
 package com.msopentech.thali.nanohttp;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple, tiny, nicely embeddable HTTP server in Java
@@ -77,6 +84,24 @@ public abstract class NanoHTTPD {
      * block the socket reading thread forever (or as long the browser is open).
      */
     public static final int SOCKET_READ_TIMEOUT = 5000;
+    /**
+     * Default time an idle keep-alive connection is held open by the NIO engine (in milliseconds). Idle
+     * connections don't hold a thread there so this can be much longer than SOCKET_READ_TIMEOUT.
+     */
+    public static final long DEFAULT_NIO_IDLE_TIMEOUT = 60000;
+    /**
+     * Default size up to which request bodies are buffered in memory rather than in a temp file, see
+     * {@link #setBodyMemoryThreshold}.
+     */
+    public static final int DEFAULT_BODY_MEMORY_THRESHOLD = 64 * 1024;
+    /**
+     * How many body buffers are kept around for reuse
+     */
+    private static final int MAX_POOLED_BODY_BUFFERS = 16;
+    /**
+     * Size of the reads used to copy a body too big for memory into its temp file
+     */
+    private static final int BODY_SPILL_BUFFER_SIZE = 64 * 1024;
     /**
      * Common mime type for dynamic content: plain text
      */
@@ -89,6 +114,12 @@ public abstract class NanoHTTPD {
      * Pseudo-Parameter to use to store the actual query string in the parameters map for later re-processing.
      */
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
+    /**
+     * What the request line and headers are decoded with, the platform default as when they went through an
+     * InputStreamReader.
+     */
+    private static final Charset headerCharset = Charset.defaultCharset();
+    private static final Logger logger = LoggerFactory.getLogger(NanoHTTPD.class);
     private final String hostname;
     private final int myPort;
     private ServerSocket myServerSocket;
@@ -102,6 +133,21 @@ public abstract class NanoHTTPD {
      * Pluggable strategy for creating and cleaning up temporary files.
      */
     private TempFileManagerFactory tempFileManagerFactory;
+    /**
+     * Whether to serve connections from a Selector rather than a thread per connection, see {@link #setUseNio}.
+     */
+    private boolean useNio;
+    private long nioIdleTimeout = DEFAULT_NIO_IDLE_TIMEOUT;
+    private volatile Selector selector;
+    /**
+     * Connections whose request has been handled and which are waiting to go back on the selector.
+     */
+    private final Queue<NioConnection> nioConnectionsToRegister = new ConcurrentLinkedQueue<NioConnection>();
+    private volatile int bodyMemoryThreshold = DEFAULT_BODY_MEMORY_THRESHOLD;
+    private final Queue<byte[]> bodyBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger pooledBodyBuffers = new AtomicInteger();
+    private final AtomicLong bodiesBufferedInMemory = new AtomicLong();
+    private final AtomicLong bodiesSpilledToDisk = new AtomicLong();
 
     /**
      * Constructs an HTTP server on given port.
@@ -146,6 +192,14 @@ public abstract class NanoHTTPD {
             }
         }
     }
+    private static final void safeClose(Selector closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
 
     /**
      * Start the server.
@@ -153,6 +207,11 @@ public abstract class NanoHTTPD {
      * @throws java.io.IOException if the socket is in use.
      */
     public void start() throws IOException {
+        if (useNio) {
+            startNio();
+            return;
+        }
+
         myServerSocket = new ServerSocket();
         myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
 
@@ -164,32 +223,13 @@ public abstract class NanoHTTPD {
                         final Socket finalAccept = myServerSocket.accept();
                         registerConnection(finalAccept);
                         finalAccept.setSoTimeout(SOCKET_READ_TIMEOUT);
-                        final InputStream inputStream = finalAccept.getInputStream();
-                        asyncRunner.exec(new Runnable() {
-                            @Override
-                            public void run() {
-                                OutputStream outputStream = null;
-                                try {
-                                    outputStream = finalAccept.getOutputStream();
-                                    TempFileManager tempFileManager = tempFileManagerFactory.create();
-                                    HTTPSession session = new HTTPSession(tempFileManager, inputStream, outputStream, finalAccept.getInetAddress());
-                                    while (!finalAccept.isClosed()) {
-                                        session.execute();
-                                    }
-                                } catch (Exception e) {
-                                    // When the socket is closed by the client, we throw our own SocketException
-                                    // to break the  "keep alive" loop above.
-                                    if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
-                                        e.printStackTrace();
-                                    }
-                                } finally {
-                                    safeClose(outputStream);
-                                    safeClose(inputStream);
-                                    safeClose(finalAccept);
-                                    unRegisterConnection(finalAccept);
-                                }
-                            }
-                        });
+                        ThreadedConnection connection = new ThreadedConnection(finalAccept);
+                        try {
+                            asyncRunner.exec(connection);
+                        } catch (RejectedExecutionException e) {
+                            // The runner is saturated, shed the connection rather than queue it without bound
+                            connection.close();
+                        }
                     } catch (IOException e) {
                     }
                 } while (!myServerSocket.isClosed());
@@ -200,12 +240,278 @@ public abstract class NanoHTTPD {
         myThread.start();
     }
 
+    /**
+     * A connection served by the threaded engine, it keeps its thread for as long as the client keeps it alive.
+     *
+     * If the AsyncRunner runs us on the accept thread (see {@link PooledAsyncRunner.RejectionPolicy#CALLER_RUNS})
+     * we only handle the request in hand there and then offer the connection to the runner again, otherwise one
+     * keep-alive client would stop the server accepting anyone else. If the runner is still saturated the
+     * connection is closed rather than taking the accept thread a second time.
+     */
+    private class ThreadedConnection implements Runnable {
+        private final Socket socket;
+        private HTTPSession session;
+        private boolean ranOnAcceptThread;
+
+        ThreadedConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            boolean onAcceptThread = Thread.currentThread() == myThread;
+            if (onAcceptThread && ranOnAcceptThread) {
+                close();
+                return;
+            }
+            try {
+                if (session == null) {
+                    session = new HTTPSession(tempFileManagerFactory.create(), socket.getInputStream(),
+                            socket.getOutputStream(), socket.getInetAddress());
+                }
+                while (!socket.isClosed()) {
+                    session.execute();
+                    if (onAcceptThread) {
+                        ranOnAcceptThread = true;
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                // When the socket is closed by the client, we throw our own SocketException
+                // to break the  "keep alive" loop above.
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    e.printStackTrace();
+                }
+                close();
+                return;
+            }
+            if (socket.isClosed()) {
+                close();
+                return;
+            }
+            try {
+                asyncRunner.exec(this);
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        void close() {
+            safeClose(socket);
+            unRegisterConnection(socket);
+        }
+    }
+
+    /**
+     * Serves connections from a single selector thread. A connection only takes a thread from the AsyncRunner
+     * while it has a request to handle, in between keep-alive requests it just sits on the selector. The channel
+     * is switched to blocking mode while a request is handled so HTTPSession and serve() see ordinary streams.
+     */
+    private void startNio() throws IOException {
+        if (asyncRunner instanceof PooledAsyncRunner &&
+                ((PooledAsyncRunner) asyncRunner).getRejectionPolicy() == PooledAsyncRunner.RejectionPolicy.CALLER_RUNS) {
+            // The caller would be the selector thread, every other connection would stall behind the one it runs
+            throw new IllegalStateException("The NIO engine can't be used with CALLER_RUNS, use CLOSE_CONNECTION");
+        }
+        final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        myServerSocket = serverChannel.socket();
+        myServerSocket.bind((hostname != null) ? new InetSocketAddress(hostname, myPort) : new InetSocketAddress(myPort));
+        serverChannel.configureBlocking(false);
+        final Selector nioSelector = Selector.open();
+        serverChannel.register(nioSelector, SelectionKey.OP_ACCEPT);
+        selector = nioSelector;
+
+        myThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long lastIdleSweep = System.currentTimeMillis();
+                List<NioConnection> readable = new ArrayList<NioConnection>();
+                try {
+                    while (serverChannel.isOpen()) {
+                        // selectNow() below can leave keys we haven't looked at yet, select() would sit on them
+                        if (nioSelector.selectedKeys().isEmpty()) {
+                            nioSelector.select(1000);
+                        }
+
+                        NioConnection connection;
+                        while ((connection = nioConnectionsToRegister.poll()) != null) {
+                            connection.register(nioSelector);
+                        }
+
+                        Iterator<SelectionKey> keys = nioSelector.selectedKeys().iterator();
+                        while (keys.hasNext()) {
+                            SelectionKey key = keys.next();
+                            keys.remove();
+                            if (!key.isValid()) {
+                                continue;
+                            }
+                            if (key.isAcceptable()) {
+                                acceptNio(serverChannel);
+                            } else if (key.isReadable()) {
+                                key.cancel();
+                                readable.add((NioConnection) key.attachment());
+                            }
+                        }
+
+                        if (!readable.isEmpty()) {
+                            // A channel can't go back to blocking mode until its cancelled key is flushed out
+                            nioSelector.selectNow();
+                            for (NioConnection readableConnection : readable) {
+                                readableConnection.dispatch();
+                            }
+                            readable.clear();
+                        }
+
+                        long now = System.currentTimeMillis();
+                        if (now - lastIdleSweep >= 1000) {
+                            lastIdleSweep = now;
+                            closeIdleNioConnections(nioSelector, now);
+                        }
+                    }
+                } catch (IOException e) {
+                } catch (ClosedSelectorException e) {
+                } finally {
+                    safeClose(serverChannel);
+                    safeClose(nioSelector);
+                    nioConnectionsToRegister.clear();
+                }
+            }
+        });
+        myThread.setDaemon(true);
+        myThread.setName("NanoHttpd Main Listener (NIO)");
+        myThread.start();
+    }
+
+    private void acceptNio(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            NioConnection connection = new NioConnection(channel);
+            registerConnection(connection.socket);
+            try {
+                connection.socket.setSoTimeout(SOCKET_READ_TIMEOUT);
+                channel.configureBlocking(false);
+                connection.register(selector);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeIdleNioConnections(Selector nioSelector, long now) {
+        for (SelectionKey key : nioSelector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof NioConnection && now - ((NioConnection) attachment).lastActive > nioIdleTimeout) {
+                key.cancel();
+                ((NioConnection) attachment).close();
+            }
+        }
+    }
+
+    /**
+     * A connection served by the NIO engine. It keeps its HTTPSession across keep-alive requests and moves between
+     * the selector (idle) and an AsyncRunner thread (handling a request).
+     */
+    private class NioConnection implements Runnable {
+        private final SocketChannel channel;
+        private final Socket socket;
+        private HTTPSession session;
+        private volatile long lastActive = System.currentTimeMillis();
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
+        }
+
+        void register(Selector nioSelector) {
+            try {
+                channel.configureBlocking(false);
+                channel.register(nioSelector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                close();
+            } catch (CancelledKeyException e) {
+                close();
+            }
+        }
+
+        void dispatch() {
+            try {
+                channel.configureBlocking(true);
+                asyncRunner.exec(this);
+            } catch (IOException e) {
+                close();
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (session == null) {
+                    session = new HTTPSession(tempFileManagerFactory.create(), socket.getInputStream(),
+                            socket.getOutputStream(), socket.getInetAddress());
+                }
+                // A pipelining client may already have sent the next request, and it won't make the channel
+                // readable again since we've already read it
+                do {
+                    session.execute();
+                } while (channel.isOpen() && session.hasBufferedInput());
+
+                if (channel.isOpen()) {
+                    lastActive = System.currentTimeMillis();
+                    Selector nioSelector = selector;
+                    nioConnectionsToRegister.add(this);
+                    nioSelector.wakeup();
+                    return;
+                }
+            } catch (Exception e) {
+                // See the comment in ThreadedConnection
+                if (!(e instanceof SocketException && "NanoHttpd Shutdown".equals(e.getMessage()))) {
+                    logger.warn("NIO connection from " + socket.getInetAddress() + " failed", e);
+                }
+            }
+            close();
+        }
+
+        void close() {
+            safeClose(channel);
+            unRegisterConnection(socket);
+        }
+    }
+
+    /**
+     * Serve connections from a Selector instead of holding a thread for each connection for its whole lifetime.
+     * Must be called before {@link #start()}, which throws IllegalStateException if the AsyncRunner is a
+     * {@link PooledAsyncRunner} using {@link PooledAsyncRunner.RejectionPolicy#CALLER_RUNS}.
+     *
+     * Note that serve() is still synchronous, so a request that blocks inside serve() (such as a long poll)
+     * holds its thread as before. It is idle keep-alive connections that become free.
+     */
+    public void setUseNio(boolean useNio) {
+        this.useNio = useNio;
+    }
+
+    public boolean isUsingNio() {
+        return useNio;
+    }
+
+    /**
+     * How long the NIO engine keeps an idle keep-alive connection open, in milliseconds.
+     */
+    public void setNioIdleTimeout(long nioIdleTimeout) {
+        this.nioIdleTimeout = nioIdleTimeout;
+    }
+
     /**
      * Stop the server.
      */
     public void stop() {
         try {
             safeClose(myServerSocket);
+            Selector nioSelector = selector;
+            if (nioSelector != null) {
+                nioSelector.wakeup();
+            }
             closeAllConnections();
             if (myThread != null) {
                 myThread.join();
@@ -370,6 +676,10 @@ public abstract class NanoHTTPD {
         this.asyncRunner = asyncRunner;
     }
 
+    public AsyncRunner getAsyncRunner() {
+        return asyncRunner;
+    }
+
     // ------------------------------------------------------------------------------- //
     //
     // Temp file handling strategy.
@@ -385,20 +695,151 @@ public abstract class NanoHTTPD {
         this.tempFileManagerFactory = tempFileManagerFactory;
     }
 
+    // ------------------------------------------------------------------------------- //
+    //
+    // Request body buffering.
+    //
+    // ------------------------------------------------------------------------------- //
+
+    /**
+     * Request bodies read through getBody() or parseBody() that are no bigger than this are kept in memory, in
+     * buffers reused across requests, and only bigger ones go through a temp file. 0 sends every body to a temp
+     * file as NanoHTTPD always used to. Buffers are only as big as the bodies they were made for, but
+     * several pooled ones can be this big so keep it modest.
+     *
+     * @param bodyMemoryThreshold in bytes
+     */
+    public void setBodyMemoryThreshold(int bodyMemoryThreshold) {
+        if (bodyMemoryThreshold < 0) {
+            throw new IllegalArgumentException("bodyMemoryThreshold can't be negative");
+        }
+        this.bodyMemoryThreshold = bodyMemoryThreshold;
+        bodyBuffers.clear();
+        pooledBodyBuffers.set(0);
+    }
+
+    public int getBodyMemoryThreshold() {
+        return bodyMemoryThreshold;
+    }
+
+    /**
+     * @return How many request bodies have been buffered in memory
+     */
+    public long getBodiesBufferedInMemory() {
+        return bodiesBufferedInMemory.get();
+    }
+
+    /**
+     * @return How many request bodies were too big for memory and went to a temp file
+     */
+    public long getBodiesSpilledToDisk() {
+        return bodiesSpilledToDisk.get();
+    }
+
+    /**
+     * @return A pooled buffer if the one at the head of the pool is big enough, otherwise a new one of just size.
+     * One that is too small is dropped, the new one takes its place when it is released, so the pool settles on
+     * the sizes bodies actually come in.
+     */
+    private byte[] acquireBodyBuffer(int size) {
+        byte[] bodyBuffer = bodyBuffers.poll();
+        if (bodyBuffer != null) {
+            pooledBodyBuffers.decrementAndGet();
+            if (bodyBuffer.length >= size && bodyBuffer.length <= bodyMemoryThreshold) {
+                return bodyBuffer;
+            }
+        }
+        return new byte[size];
+    }
+
+    private void releaseBodyBuffer(byte[] bodyBuffer) {
+        if (bodyBuffer.length > 0 && bodyBuffer.length <= bodyMemoryThreshold &&
+                pooledBodyBuffers.incrementAndGet() <= MAX_POOLED_BODY_BUFFERS) {
+            bodyBuffers.offer(bodyBuffer);
+        } else {
+            pooledBodyBuffers.decrementAndGet();
+        }
+    }
+
     /**
      * HTTP Request methods, with the ability to decode a String back to its enum value.
      */
     public enum Method {
         GET, PUT, POST, DELETE, HEAD, OPTIONS;
 
+        private static final Method[] methods = values();
+
         static Method lookup(String method) {
-            for (Method m : Method.values()) {
+            for (Method m : methods) {
                 if (m.toString().equalsIgnoreCase(method)) {
                     return m;
                 }
             }
             return null;
         }
+
+        /**
+         * Same as {@link #lookup(String)} but straight off the request bytes.
+         */
+        static Method lookup(byte[] buf, int offset, int length) {
+            for (Method m : methods) {
+                if (HeaderNames.equalsIgnoreCase(m.name(), buf, offset, length)) {
+                    return m;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The header names browsers and HTTP clients send all the time, so parsing a request can hand back one of these
+     * rather than build a new lower case string for each of them.
+     */
+    static final class HeaderNames {
+        private static final String[] common = {
+                "host", "connection", "keep-alive", "accept", "accept-encoding", "accept-language", "accept-charset",
+                "user-agent", "content-length", "content-type", "cookie", "origin", "referer", "authorization",
+                "cache-control", "pragma", "if-none-match", "if-match", "if-modified-since", "x-requested-with",
+                "access-control-request-method", "access-control-request-headers", "transfer-encoding", "expect",
+                "range", "te", "upgrade", "dnt"
+        };
+
+        private HeaderNames() {
+        }
+
+        /**
+         * @return The header name in lower case
+         */
+        static String lookup(byte[] buf, int offset, int length, Charset charset) {
+            for (String name : common) {
+                if (equalsIgnoreCase(name, buf, offset, length)) {
+                    return name;
+                }
+            }
+            return new String(buf, offset, length, charset).toLowerCase(Locale.US);
+        }
+
+        /**
+         * @param name Must be ASCII
+         * @return true if the bytes are name in any case
+         */
+        static boolean equalsIgnoreCase(String name, byte[] buf, int offset, int length) {
+            if (name.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                int b = buf[offset + i];
+                int c = name.charAt(i);
+                if (b != c && toLowerCase(b) != toLowerCase(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int toLowerCase(int c) {
+            return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+        }
     }
 
     /**
@@ -463,6 +904,289 @@ public abstract class NanoHTTPD {
         }
     }
 
+    /**
+     * Bounded threading strategy for NanoHttpd.
+     *
+     * Connections are handed to a bounded pool of reusable daemon threads rather than a new Thread each. The pool
+     * starts a new thread for a connection whenever none is idle, up to maxPoolSize, and threads idle for
+     * keepAliveMillis are retired (core threads too) so an idle server holds no threads. Only when all
+     * maxPoolSize threads are busy do connections wait in a queue of queueCapacity (0 means hand off directly)
+     * and when that is full the {@link RejectionPolicy} decides what happens.
+     *
+     * On JDKs that have virtual threads {@link #setUseVirtualThreads(boolean)} runs each connection on its own
+     * virtual thread instead, with maxPoolSize still bounding how many run at once. On older JDKs (including
+     * Android) the setting is ignored.
+     */
+    public static class PooledAsyncRunner implements AsyncRunner {
+        public static final int DEFAULT_CORE_POOL_SIZE = 4;
+        public static final int DEFAULT_MAX_POOL_SIZE = 64;
+        public static final int DEFAULT_QUEUE_CAPACITY = 64;
+        public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+        /**
+         * What to do with a connection when every thread is busy and the queue is full.
+         */
+        public enum RejectionPolicy {
+            /**
+             * Close the connection straight away, the client sees a reset and can retry.
+             */
+            CLOSE_CONNECTION,
+            /**
+             * Handle the connection's current request on the accepting thread, which stops new connections being
+             * accepted until it is done and so pushes back on clients through the listen backlog. The connection
+             * is then offered to the runner again and closed if it is still saturated. Not allowed with the NIO
+             * engine, where the caller is the selector thread.
+             */
+            CALLER_RUNS
+        }
+
+        private final int maxPoolSize;
+        private final RejectionPolicy rejectionPolicy;
+        private final ThreadPoolExecutor threadPool;
+        private volatile ExecutorService virtualThreadExecutor;
+        private volatile Semaphore virtualThreadPermits;
+        private final AtomicInteger activeCount = new AtomicInteger();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicLong rejectedCount = new AtomicLong();
+        private final AtomicLong completedCount = new AtomicLong();
+        private final AtomicLong threadCount = new AtomicLong();
+
+        public PooledAsyncRunner() {
+            this(DEFAULT_CORE_POOL_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, DEFAULT_KEEP_ALIVE_MILLIS,
+                    RejectionPolicy.CLOSE_CONNECTION);
+        }
+
+        public PooledAsyncRunner(int corePoolSize, int maxPoolSize, int queueCapacity, long keepAliveMillis,
+                                 RejectionPolicy rejectionPolicy) {
+            if (corePoolSize < 0 || maxPoolSize <= 0 || corePoolSize > maxPoolSize || queueCapacity < 0 ||
+                    rejectionPolicy == null) {
+                throw new IllegalArgumentException("Invalid pool configuration");
+            }
+            this.maxPoolSize = maxPoolSize;
+            this.rejectionPolicy = rejectionPolicy;
+
+            // ThreadPoolExecutor only grows past corePoolSize once its queue is full, so a plain bounded queue would
+            // leave connections waiting behind corePoolSize busy threads while the rest of the pool sits unstarted
+            final GrowFirstQueue growFirstQueue = queueCapacity == 0 ? null : new GrowFirstQueue(queueCapacity);
+            BlockingQueue<Runnable> queue = queueCapacity == 0 ?
+                    new SynchronousQueue<Runnable>() : growFirstQueue;
+            threadPool = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveMillis, TimeUnit.MILLISECONDS,
+                    queue, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread t = new Thread(runnable);
+                            t.setDaemon(true);
+                            t.setName("NanoHttpd Request Processor (#" + threadCount.incrementAndGet() + ")");
+                            return t;
+                        }
+                    }, new RejectedExecutionHandler() {
+                        @Override
+                        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                            // The queue turned the connection down for a new thread but the pool filled up first
+                            if (growFirstQueue == null || executor.isShutdown() || !growFirstQueue.force(runnable)) {
+                                throw new RejectedExecutionException("All " + executor.getMaximumPoolSize() +
+                                        " threads are busy and the queue is full");
+                            }
+                        }
+                    }) {
+                @Override
+                protected void afterExecute(Runnable runnable, Throwable throwable) {
+                    pendingCount.decrementAndGet();
+                }
+            };
+            threadPool.allowCoreThreadTimeOut(true);
+        }
+
+        /**
+         * Switches to one virtual thread per connection if the JDK supports it.
+         *
+         * @return true if virtual threads are now in use
+         */
+        public synchronized boolean setUseVirtualThreads(boolean useVirtualThreads) {
+            if (!useVirtualThreads) {
+                // Connections already on virtual threads finish there, they hold their own permits
+                ExecutorService virtualThreads = virtualThreadExecutor;
+                virtualThreadExecutor = null;
+                if (virtualThreads != null) {
+                    virtualThreads.shutdown();
+                }
+                return false;
+            }
+            if (virtualThreadExecutor == null) {
+                try {
+                    virtualThreadPermits = new Semaphore(maxPoolSize);
+                    virtualThreadExecutor = (ExecutorService)
+                            Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                } catch (Exception e) {
+                    // No virtual threads on this JDK, stay on the pool
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isUsingVirtualThreads() {
+            return virtualThreadExecutor != null;
+        }
+
+        public RejectionPolicy getRejectionPolicy() {
+            return rejectionPolicy;
+        }
+
+        /**
+         * @throws RejectedExecutionException if the runner is saturated and the policy is CLOSE_CONNECTION, the
+         * caller is expected to close the connection.
+         */
+        @Override
+        public void exec(final Runnable code) {
+            ExecutorService virtualThreads = virtualThreadExecutor;
+            if (virtualThreads != null) {
+                execVirtual(virtualThreads, code);
+                return;
+            }
+
+            pendingCount.incrementAndGet();
+            try {
+                threadPool.execute(new CountingRunnable(code, null));
+            } catch (RejectedExecutionException e) {
+                pendingCount.decrementAndGet();
+                rejected(code, e);
+            }
+        }
+
+        private void execVirtual(ExecutorService virtualThreads, Runnable code) {
+            final Semaphore permits = virtualThreadPermits;
+            if (!permits.tryAcquire()) {
+                rejected(code, new RejectedExecutionException("All " + maxPoolSize + " virtual threads are busy"));
+                return;
+            }
+            try {
+                virtualThreads.execute(new CountingRunnable(code, permits));
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                if (virtualThreadExecutor != virtualThreads) {
+                    // Switched back to the pool while we were submitting
+                    exec(code);
+                    return;
+                }
+                rejected(code, e);
+            }
+        }
+
+        private void rejected(Runnable code, RejectedExecutionException e) {
+            rejectedCount.incrementAndGet();
+            if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !threadPool.isShutdown()) {
+                new CountingRunnable(code, null).run();
+                return;
+            }
+            throw e;
+        }
+
+        /**
+         * Stops accepting work and lets the threads finish what they are doing and exit.
+         */
+        public void shutdown() {
+            threadPool.shutdown();
+            ExecutorService virtualThreads = virtualThreadExecutor;
+            if (virtualThreads != null) {
+                virtualThreads.shutdown();
+            }
+        }
+
+        /**
+         * @return connections currently being handled
+         */
+        public int getActiveCount() {
+            return activeCount.get();
+        }
+
+        /**
+         * @return connections accepted but waiting for a free thread, or -1 when using virtual threads, which
+         * never queue (a connection either gets a thread or is rejected)
+         */
+        public int getQueuedCount() {
+            return isUsingVirtualThreads() ? -1 : threadPool.getQueue().size();
+        }
+
+        /**
+         * @return connections that found the runner saturated since it was created, including ones then run by the
+         * caller
+         */
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+
+        /**
+         * @return connections that have been handled and closed since the runner was created
+         */
+        public long getCompletedCount() {
+            return completedCount.get();
+        }
+
+        public int getPoolSize() {
+            return threadPool.getPoolSize();
+        }
+
+        public int getLargestPoolSize() {
+            return threadPool.getLargestPoolSize();
+        }
+
+        @Override
+        public String toString() {
+            return "PooledAsyncRunner[active=" + getActiveCount() + ", queued=" + getQueuedCount() +
+                    ", rejected=" + getRejectedCount() + ", completed=" + getCompletedCount() +
+                    ", threads=" + getPoolSize() + (isUsingVirtualThreads() ? ", virtual" : "") + "]";
+        }
+
+        /**
+         * Turns offers down while every thread is busy and the pool can still grow, which is what makes
+         * ThreadPoolExecutor start another thread rather than queue.
+         */
+        private class GrowFirstQueue extends LinkedBlockingQueue<Runnable> {
+            GrowFirstQueue(int capacity) {
+                super(capacity);
+            }
+
+            @Override
+            public boolean offer(Runnable runnable) {
+                int poolSize = threadPool.getPoolSize();
+                // pendingCount already includes this connection
+                if (pendingCount.get() > poolSize && poolSize < threadPool.getMaximumPoolSize()) {
+                    return false;
+                }
+                return super.offer(runnable);
+            }
+
+            boolean force(Runnable runnable) {
+                return super.offer(runnable);
+            }
+        }
+
+        private class CountingRunnable implements Runnable {
+            private final Runnable code;
+            private final Semaphore permits;
+
+            CountingRunnable(Runnable code, Semaphore permits) {
+                this.code = code;
+                this.permits = permits;
+            }
+
+            @Override
+            public void run() {
+                activeCount.incrementAndGet();
+                try {
+                    code.run();
+                } finally {
+                    activeCount.decrementAndGet();
+                    completedCount.incrementAndGet();
+                    if (permits != null) {
+                        permits.release();
+                    }
+                }
+            }
+        }
+    }
+
     /**
      * Default strategy for creating and cleaning up temporary files.
      * 
@@ -510,25 +1234,470 @@ public abstract class NanoHTTPD {
         private File file;
         private OutputStream fstream;
 
-        public DefaultTempFile(String tempdir) throws IOException {
-            file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
-            fstream = new FileOutputStream(file);
-        }
+        public DefaultTempFile(String tempdir) throws IOException {
+            file = File.createTempFile("NanoHTTPD-", "", new File(tempdir));
+            fstream = new FileOutputStream(file);
+        }
+
+        @Override
+        public OutputStream open() throws Exception {
+            return fstream;
+        }
+
+        @Override
+        public void delete() throws Exception {
+            safeClose(fstream);
+            file.delete();
+        }
+
+        @Override
+        public String getName() {
+            return file.getAbsolutePath();
+        }
+    }
+
+    /**
+     * Hands out temp files from a bounded pool of files that are truncated and reused rather than created and
+     * deleted for every request, which is slow on flash storage and wears it out. Once all of the pool's files are
+     * in use further temp files are ordinary one off files deleted after the request, as with
+     * {@link DefaultTempFileManager}.
+     *
+     * One factory, and so one pool, serves all of the server's connections. A request handler that renames or
+     * deletes a temp file it was given is fine, the file just isn't reused.
+     *
+     * A body spilled to disk is memory mapped (see {@link HTTPSession#getBody()}) and the mapping lives until it is
+     * garbage collected, so a file that has been mapped is never truncated, touching a mapped page past the end of
+     * a file kills the JVM with SIGBUS. Such files go back to a pool of their own that only spilled bodies draw
+     * from, each written from the start and mapped for just the length written. When an ordinary temp file is
+     * needed and only those are idle one of them is deleted, which leaves any mapping of it intact, and replaced.
+     */
+    public static class PooledTempFileManagerFactory implements TempFileManagerFactory {
+        public static final int DEFAULT_MAX_POOLED_FILES = 8;
+
+        private final File directory;
+        private final int maxPooledFiles;
+        private final Queue<File> idleFiles = new ConcurrentLinkedQueue<File>();
+        private final Queue<File> idleMappedFiles = new ConcurrentLinkedQueue<File>();
+        private final AtomicInteger pooledFiles = new AtomicInteger();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        public PooledTempFileManagerFactory() {
+            this(null, DEFAULT_MAX_POOLED_FILES);
+        }
+
+        /**
+         * @param directory Where to keep the files, e.g. a tmpfs mount, null for java.io.tmpdir. It is created if
+         *                  it doesn't exist.
+         * @param maxPooledFiles How many files to keep for reuse, which is also how many requests can have a temp
+         *                       file from the pool at once
+         */
+        public PooledTempFileManagerFactory(File directory, int maxPooledFiles) {
+            this.directory = directory != null ? directory : new File(System.getProperty("java.io.tmpdir"));
+            this.maxPooledFiles = maxPooledFiles;
+            if (!this.directory.isDirectory() && !this.directory.mkdirs()) {
+                throw new IllegalArgumentException("Can't create temp file directory " + this.directory);
+            }
+        }
+
+        @Override
+        public TempFileManager create() {
+            return new PooledTempFileManager();
+        }
+
+        /**
+         * Creates the pool's files now rather than as requests first need them.
+         */
+        public void preallocate() throws IOException {
+            while (true) {
+                int count = pooledFiles.get();
+                if (count >= maxPooledFiles) {
+                    return;
+                }
+                if (pooledFiles.compareAndSet(count, count + 1)) {
+                    idleFiles.offer(newFile(true));
+                }
+            }
+        }
+
+        /**
+         * Deletes the files that aren't in use, call once the server has stopped.
+         */
+        public void deleteIdleFiles() {
+            File file;
+            while ((file = idleFiles.poll()) != null || (file = idleMappedFiles.poll()) != null) {
+                pooledFiles.decrementAndGet();
+                file.delete();
+            }
+        }
+
+        /**
+         * @return How many temp files were handed out from the pool
+         */
+        public long getHits() {
+            return hits.get();
+        }
+
+        /**
+         * @return How many temp files had to be created, either to grow the pool or because it was all in use
+         */
+        public long getMisses() {
+            return misses.get();
+        }
+
+        public int getIdleFileCount() {
+            return idleFiles.size() + idleMappedFiles.size();
+        }
+
+        /**
+         * @param pooled A pooled file outlives requests so it is also deleted on exit, in case deleteIdleFiles()
+         *               is never called. A one off file is always deleted by clear(), and registering every one of
+         *               them would grow the JVM's delete on exit list for as long as the server runs.
+         */
+        private File newFile(boolean pooled) throws IOException {
+            File file = File.createTempFile("NanoHTTPD-", "", directory);
+            if (pooled) {
+                file.deleteOnExit();
+            }
+            return file;
+        }
+
+        /**
+         * @param forMapping The caller only writes the file from the start and maps what it wrote, so it can have a
+         *                   file that was mapped before
+         * @return A file from the pool, or null if they are all in use
+         */
+        private File acquire(boolean forMapping) throws IOException {
+            File file = forMapping ? idleMappedFiles.poll() : null;
+            if (file == null) {
+                file = idleFiles.poll();
+            }
+            if (file != null) {
+                hits.incrementAndGet();
+                return file;
+            }
+            misses.incrementAndGet();
+            while (true) {
+                int count = pooledFiles.get();
+                if (count >= maxPooledFiles) {
+                    break;
+                }
+                if (pooledFiles.compareAndSet(count, count + 1)) {
+                    return newFile(true);
+                }
+            }
+            file = idleMappedFiles.poll();
+            if (file == null) {
+                return null;
+            }
+            // Can't be emptied so swap it for a new one, deleting it is safe even if it is still mapped
+            if (!file.delete() && file.exists()) {
+                logger.warn("Couldn't delete temp file " + file);
+            }
+            try {
+                return newFile(true);
+            } catch (IOException e) {
+                pooledFiles.decrementAndGet();
+                throw e;
+            }
+        }
+
+        /**
+         * Empties the file and puts it back in the pool, or if it was mapped puts it back as it is.
+         */
+        private void recycle(File file, boolean mapped) {
+            if (mapped && file.isFile()) {
+                idleMappedFiles.offer(file);
+                return;
+            }
+            RandomAccessFile randomAccessFile = null;
+            try {
+                if (file.isFile()) {
+                    randomAccessFile = new RandomAccessFile(file, "rw");
+                    randomAccessFile.setLength(0);
+                    idleFiles.offer(file);
+                    return;
+                }
+            } catch (IOException e) {
+                file.delete();
+            } finally {
+                safeClose(randomAccessFile);
+            }
+            // The handler took the file, or we couldn't empty it, so make room for a new one
+            pooledFiles.decrementAndGet();
+        }
+
+        private class PooledTempFileManager implements TempFileManager {
+            private final List<PooledTempFile> tempFiles = new ArrayList<PooledTempFile>();
+
+            @Override
+            public TempFile createTempFile() throws Exception {
+                return createTempFile(false);
+            }
+
+            /**
+             * For a body that will be mapped, see the class comment.
+             */
+            TempFile createMappedTempFile() throws Exception {
+                return createTempFile(true);
+            }
+
+            private TempFile createTempFile(boolean mapped) throws Exception {
+                File file = acquire(mapped);
+                PooledTempFile tempFile = file != null ?
+                        new PooledTempFile(file, true, mapped) : new PooledTempFile(newFile(false), false, mapped);
+                tempFiles.add(tempFile);
+                return tempFile;
+            }
+
+            @Override
+            public void clear() {
+                for (PooledTempFile tempFile : tempFiles) {
+                    safeClose(tempFile.fstream);
+                    if (tempFile.pooled) {
+                        recycle(tempFile.file, tempFile.mapped);
+                    } else if (!tempFile.file.delete() && tempFile.file.exists()) {
+                        logger.warn("Couldn't delete temp file " + tempFile.file);
+                    }
+                }
+                tempFiles.clear();
+            }
+        }
+
+        private static class PooledTempFile implements TempFile {
+            private final File file;
+            private final boolean pooled;
+            private final boolean mapped;
+            private OutputStream fstream;
+
+            PooledTempFile(File file, boolean pooled, boolean mapped) {
+                this.file = file;
+                this.pooled = pooled;
+                this.mapped = mapped;
+            }
+
+            @Override
+            public OutputStream open() throws Exception {
+                if (fstream == null) {
+                    fstream = new FileOutputStream(file);
+                }
+                return fstream;
+            }
+
+            /**
+             * Only closes the file, the manager decides whether it is reused or deleted.
+             */
+            @Override
+            public void delete() throws Exception {
+                safeClose(fstream);
+            }
+
+            @Override
+            public String getName() {
+                return file.getAbsolutePath();
+            }
+        }
+    }
+
+    /**
+     * The Date header for responses, only formatted again when the second changes.
+     */
+    static final class DateHeader {
+        private static final SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        private static volatile long cachedSecond = -1;
+        private static volatile byte[] cachedHeader;
+
+        static {
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        }
+
+        private DateHeader() {
+        }
+
+        /**
+         * @return "Date: ...\r\n", don't change it
+         */
+        static byte[] get() {
+            long now = System.currentTimeMillis();
+            long second = now / 1000;
+            if (second != cachedSecond) {
+                synchronized (gmtFrmt) {
+                    if (second != cachedSecond) {
+                        cachedHeader = ResponseBuffer.ascii("Date: " + gmtFrmt.format(new Date(now)) + "\r\n");
+                        cachedSecond = second;
+                    }
+                }
+            }
+            return cachedHeader;
+        }
+    }
+
+    /**
+     * Where a response's status line and headers are put together, and its body passes through, before going out
+     * to the socket. There is one per thread and it is reused for every response that thread sends.
+     */
+    static final class ResponseBuffer {
+        static final int BODY_CHUNK = 16 * 1024;
+        /**
+         * Eight hex digits and a CRLF is as long as the size line of a chunk up to BODY_CHUNK can get
+         */
+        static final int MAX_CHUNK_SIZE_LINE = 10;
+        /**
+         * A thread that once sent huge headers gets a normal sized buffer again rather than keep that one forever
+         */
+        private static final int MAX_KEPT_CAPACITY = 4 * BODY_CHUNK;
+        private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+        static final byte[] HTTP_VERSION = ascii("HTTP/1.1 ");
+        static final byte[] STATUS_LINE_END = ascii(" \r\n");
+        static final byte[] CRLF = ascii("\r\n");
+        static final byte[] COLON_SPACE = ascii(": ");
+        static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+        static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+        static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+
+        private static final ThreadLocal<ResponseBuffer> buffers = new ThreadLocal<ResponseBuffer>() {
+            @Override
+            protected ResponseBuffer initialValue() {
+                return new ResponseBuffer();
+            }
+        };
+
+        byte[] buf = new byte[2 * BODY_CHUNK];
+        int count;
+        private PrintWriter writer;
+
+        private ResponseBuffer() {
+        }
+
+        /**
+         * @return This thread's buffer, emptied
+         */
+        static ResponseBuffer get() {
+            ResponseBuffer buffer = buffers.get();
+            buffer.count = 0;
+            if (buffer.buf.length > MAX_KEPT_CAPACITY) {
+                buffer.buf = new byte[2 * BODY_CHUNK];
+            }
+            return buffer;
+        }
+
+        static byte[] ascii(String text) {
+            byte[] bytes = new byte[text.length()];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = (byte) text.charAt(i);
+            }
+            return bytes;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                byte[] bigger = new byte[Math.max(capacity, 2 * buf.length)];
+                System.arraycopy(buf, 0, bigger, 0, count);
+                buf = bigger;
+            }
+        }
+
+        ResponseBuffer append(byte[] bytes) {
+            ensureCapacity(count + bytes.length);
+            System.arraycopy(bytes, 0, buf, count, bytes.length);
+            count += bytes.length;
+            return this;
+        }
+
+        /**
+         * ASCII goes straight in, anything else is encoded with the platform default as PrintWriter used to.
+         */
+        ResponseBuffer append(String text) {
+            if (text == null) {
+                return append("null");
+            }
+            int length = text.length();
+            ensureCapacity(count + length);
+            for (int i = 0; i < length; ++i) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    return append(text.substring(i).getBytes(headerCharset));
+                }
+                buf[count++] = (byte) c;
+            }
+            return this;
+        }
+
+        ResponseBuffer appendDecimal(long value) {
+            if (value < 0) {
+                ensureCapacity(count + 1);
+                buf[count++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long rest = value / 10; rest > 0; rest /= 10) {
+                digits++;
+            }
+            ensureCapacity(count + digits);
+            for (int i = count + digits - 1; i >= count; --i) {
+                buf[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            count += digits;
+            return this;
+        }
+
+        /**
+         * Writes "size in hex\r\n" so that it ends at end.
+         * @return Where it starts
+         */
+        int putChunkSizeLine(int size, int end) {
+            int position = end;
+            buf[--position] = '\n';
+            buf[--position] = '\r';
+            do {
+                buf[--position] = HEX_DIGITS[size & 0xf];
+                size >>>= 4;
+            } while (size != 0);
+            return position;
+        }
+
+        /**
+         * @return A PrintWriter that appends to this buffer, for Response's overridable header methods. It doesn't
+         * buffer anything itself and prints ints without making a String of them first.
+         */
+        PrintWriter writer() {
+            if (writer == null) {
+                writer = new PrintWriter(new Writer() {
+                    @Override
+                    public void write(char[] chars, int off, int len) {
+                        ResponseBuffer.this.append(new String(chars, off, len));
+                    }
+
+                    @Override
+                    public void write(String text, int off, int len) {
+                        ResponseBuffer.this.append(
+                                off == 0 && len == text.length() ? text : text.substring(off, off + len));
+                    }
 
-        @Override
-        public OutputStream open() throws Exception {
-            return fstream;
-        }
+                    @Override
+                    public void flush() {
+                    }
 
-        @Override
-        public void delete() throws Exception {
-            safeClose(fstream);
-            file.delete();
+                    @Override
+                    public void close() {
+                    }
+                }) {
+                    @Override
+                    public void print(int i) {
+                        appendDecimal(i);
+                    }
+                };
+            }
+            return writer;
         }
 
-        @Override
-        public String getName() {
-            return file.getAbsolutePath();
+        void writeTo(OutputStream outputStream) throws IOException {
+            if (count > 0) {
+                outputStream.write(buf, 0, count);
+                count = 0;
+            }
         }
     }
 
@@ -603,55 +1772,69 @@ public abstract class NanoHTTPD {
 
         /**
          * Sends given response to the socket.
+         *
+         * The status line and headers are put together in the thread's {@link ResponseBuffer} and go out in the
+         * same write as the start of the body, chunked bodies go out one write per chunk. Apart from non ASCII
+         * header text nothing here allocates per response. Connection and Content-Length still go through the
+         * protected sendXxxIfNotAlreadyPresent methods so subclasses can change them as before.
          */
         protected void send(OutputStream outputStream) {
-            String mime = mimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
             try {
                 if (status == null) {
                     throw new Error("sendResponse(): Status can't be null.");
                 }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + status.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
+                ResponseBuffer out = ResponseBuffer.get();
+                if (status instanceof Status) {
+                    out.append(((Status) status).statusLine);
+                } else {
+                    out.append(ResponseBuffer.HTTP_VERSION).append(status.getDescription()).append(ResponseBuffer.STATUS_LINE_END);
                 }
 
-                if (header == null || header.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                if (mimeType != null) {
+                    out.append(ResponseBuffer.CONTENT_TYPE).append(mimeType).append(ResponseBuffer.CRLF);
                 }
 
+                boolean hasDate = false;
                 if (header != null) {
-                    for (String key : header.keySet()) {
-                        String value = header.get(key);
-                        pw.print(key + ": " + value + "\r\n");
+                    for (Map.Entry<String, String> entry : header.entrySet()) {
+                        String key = entry.getKey();
+                        hasDate |= key.equalsIgnoreCase("date");
+                        out.append(key).append(ResponseBuffer.COLON_SPACE).append(entry.getValue()).append(ResponseBuffer.CRLF);
                     }
                 }
 
+                if (!hasDate) {
+                    out.append(DateHeader.get());
+                }
+                PrintWriter pw = out.writer();
                 sendConnectionHeaderIfNotAlreadyPresent(pw, header);
 
                 if (requestMethod != Method.HEAD && chunkedTransfer) {
-                    sendAsChunked(outputStream, pw);
+                    out.append(ResponseBuffer.TRANSFER_ENCODING_CHUNKED).append(ResponseBuffer.CRLF);
+                    sendAsChunked(outputStream, out);
                 } else {
                     int pending = data != null ? data.available() : 0;
                     sendContentLengthHeaderIfNotAlreadyPresent(pw, header, pending);
-                    pw.print("\r\n");
-                    pw.flush();
-                    sendAsFixedLength(outputStream, pending);
+                    out.append(ResponseBuffer.CRLF);
+                    sendAsFixedLength(outputStream, out, pending);
                 }
                 outputStream.flush();
-                safeClose(data);
             } catch (IOException ioe) {
                 // Couldn't write? No can do.
+            } finally {
+                // Streamed bodies (such as a relayed response) hold resources until closed, so close even on failure
+                safeClose(data);
             }
         }
 
+        /**
+         * The writer is the one send() is putting the headers together in, see {@link ResponseBuffer#writer()}.
+         */
         protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header, int size) {
             if (!headerAlreadySent(header, "content-length")) {
-                pw.print("Content-Length: "+ size +"\r\n");
+                pw.print("Content-Length: ");
+                pw.print(size);
+                pw.print("\r\n");
             }
         }
 
@@ -661,43 +1844,63 @@ public abstract class NanoHTTPD {
             }
         }
 
-        private boolean headerAlreadySent(Map<String, String> header, String name) {
-            boolean alreadySent = false;
+        protected boolean headerAlreadySent(Map<String, String> header, String name) {
             for (String headerName : header.keySet()) {
-                alreadySent |= headerName.equalsIgnoreCase(name);
+                if (headerName.equalsIgnoreCase(name)) {
+                    return true;
+                }
             }
-            return alreadySent;
+            return false;
         }
 
-        private void sendAsChunked(OutputStream outputStream, PrintWriter pw) throws IOException {
-            pw.print("Transfer-Encoding: chunked\r\n");
-            pw.print("\r\n");
-            pw.flush();
-            int BUFFER_SIZE = 16 * 1024;
-            byte[] CRLF = "\r\n".getBytes();
-            byte[] buff = new byte[BUFFER_SIZE];
+        /**
+         * Each chunk is read in after room for its size line, so the size line, the data and the CRLF after it
+         * (and for the first chunk the headers in front of it all) go out in one write. If the body has nothing
+         * ready yet, say a long poll waiting on a change, the headers go out on their own first so the client
+         * isn't left without a status until the first chunk turns up.
+         */
+        private void sendAsChunked(OutputStream outputStream, ResponseBuffer out) throws IOException {
             int read;
-            while ((read = data.read(buff)) > 0) {
-                outputStream.write(String.format("%x\r\n", read).getBytes());
-                outputStream.write(buff, 0, read);
-                outputStream.write(CRLF);
+            while (true) {
+                if (out.count > 0 && data.available() <= 0) {
+                    out.writeTo(outputStream);
+                    outputStream.flush();
+                }
+                int dataStart = out.count + ResponseBuffer.MAX_CHUNK_SIZE_LINE;
+                out.ensureCapacity(dataStart + ResponseBuffer.BODY_CHUNK + ResponseBuffer.CRLF.length);
+                read = data.read(out.buf, dataStart, ResponseBuffer.BODY_CHUNK);
+                if (read <= 0) {
+                    break;
+                }
+                int sizeLineStart = out.putChunkSizeLine(read, dataStart);
+                // Slide whatever is already waiting, only the headers the first time around, up against it
+                int start = sizeLineStart - out.count;
+                System.arraycopy(out.buf, 0, out.buf, start, out.count);
+                System.arraycopy(ResponseBuffer.CRLF, 0, out.buf, dataStart + read, ResponseBuffer.CRLF.length);
+                outputStream.write(out.buf, start, dataStart + read + ResponseBuffer.CRLF.length - start);
+                out.count = 0;
             }
-            outputStream.write(String.format("0\r\n\r\n").getBytes());
+            out.append(ResponseBuffer.LAST_CHUNK);
+            out.writeTo(outputStream);
         }
 
-        private void sendAsFixedLength(OutputStream outputStream, int pending) throws IOException {
+        /**
+         * The headers and the first part of the body go out in one write.
+         */
+        private void sendAsFixedLength(OutputStream outputStream, ResponseBuffer out, int pending) throws IOException {
             if (requestMethod != Method.HEAD && data != null) {
-                int BUFFER_SIZE = 16 * 1024;
-                byte[] buff = new byte[BUFFER_SIZE];
                 while (pending > 0) {
-                    int read = data.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
+                    out.ensureCapacity(out.count + Math.min(pending, ResponseBuffer.BODY_CHUNK));
+                    int read = data.read(out.buf, out.count, Math.min(pending, out.buf.length - out.count));
                     if (read <= 0) {
                         break;
                     }
-                    outputStream.write(buff, 0, read);
+                    out.count += read;
                     pending -= read;
+                    out.writeTo(outputStream);
                 }
             }
+            out.writeTo(outputStream);
         }
 
         public IStatus getStatus() {
@@ -751,10 +1954,12 @@ public abstract class NanoHTTPD {
                     "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error");
             private final int requestStatus;
             private final String description;
+            private final byte[] statusLine;
 
             Status(int requestStatus, String description) {
                 this.requestStatus = requestStatus;
                 this.description = description;
+                this.statusLine = ResponseBuffer.ascii("HTTP/1.1 " + getDescription() + " \r\n");
             }
 
             @Override
@@ -804,15 +2009,24 @@ public abstract class NanoHTTPD {
     public interface IHTTPSession {
         void execute() throws IOException;
 
+        /**
+         * @return the parameters from the query string, and from the body once parseBody has been called. They are
+         * only decoded when first asked for.
+         */
         Map<String, String> getParms();
 
         Map<String, String> getHeaders();
 
         /**
-         * @return the path part of the URL.
+         * @return the path part of the URL, percent decoded the first time it is asked for.
          */
         String getUri();
 
+        /**
+         * @return the path part of the URL exactly as the client sent it, still percent encoded.
+         */
+        String getRawUri();
+
         String getQueryParameterString();
 
         Method getMethod();
@@ -830,17 +2044,25 @@ public abstract class NanoHTTPD {
 
     public class HTTPSession implements IHTTPSession {
         public static final int BUFSIZE = 8192;
+        private final byte[] buf = new byte[BUFSIZE];
         private final TempFileManager tempFileManager;
         private final OutputStream outputStream;
         private PushbackInputStream inputStream;
         private int splitbyte;
         private int rlen;
+        private String rawUri;
         private String uri;
         private Method method;
         private Map<String, String> parms;
         private Map<String, String> headers;
         private CookieHandler cookies;
         private String queryParameterString;
+        private InputStream bodyInputStream;
+        /**
+         * From the server's pool while this request's body is in memory, handed back when the request is done
+         */
+        private byte[] bodyBuffer;
+        private String remoteIp;
 
         public HTTPSession(TempFileManager tempFileManager, InputStream inputStream, OutputStream outputStream) {
             this.tempFileManager = tempFileManager;
@@ -852,11 +2074,7 @@ public abstract class NanoHTTPD {
             this.tempFileManager = tempFileManager;
             this.inputStream = new PushbackInputStream(inputStream, BUFSIZE);
             this.outputStream = outputStream;
-            String remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
-            headers = new HashMap<String, String>();
-
-            headers.put("remote-addr", remoteIp);
-            headers.put("http-client-ip", remoteIp);
+            remoteIp = inetAddress.isLoopbackAddress() || inetAddress.isAnyLocalAddress() ? "127.0.0.1" : inetAddress.getHostAddress().toString();
         }
 
         @Override
@@ -866,13 +2084,18 @@ public abstract class NanoHTTPD {
                 // The full header should fit in here.
                 // Apache's default header limit is 8KB.
                 // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
+                // The buffer is the session's, so a keep-alive connection reuses it for every request.
                 splitbyte = 0;
                 rlen = 0;
+                bodyInputStream = null;
+                queryParameterString = null;
                 {
                     int read = -1;
                     try {
-                        read = inputStream.read(buf, 0, BUFSIZE);
+                        // If a pipelined request is already buffered only ask for what is there, PushbackInputStream
+                        // would otherwise go on to block on the socket for more once the buffered bytes run out
+                        int available = inputStream.available();
+                        read = inputStream.read(buf, 0, available > 0 ? Math.min(available, BUFSIZE) : BUFSIZE);
                     } catch (Exception e) {
                         safeClose(inputStream);
                         safeClose(outputStream);
@@ -884,11 +2107,14 @@ public abstract class NanoHTTPD {
                         safeClose(outputStream);
                         throw new SocketException("NanoHttpd Shutdown");
                     }
+                    int searched = 0;
                     while (read > 0) {
                         rlen += read;
-                        splitbyte = findHeaderEnd(buf, rlen);
+                        splitbyte = findHeaderEnd(buf, searched, rlen);
                         if (splitbyte > 0)
                             break;
+                        // Only look at new bytes next time, plus enough old ones to catch a split \r\n\r\n
+                        searched = Math.max(0, rlen - 3);
                         read = inputStream.read(buf, rlen, BUFSIZE - rlen);
                     }
                 }
@@ -897,36 +2123,52 @@ public abstract class NanoHTTPD {
                     inputStream.unread(buf, splitbyte, rlen - splitbyte);
                 }
 
-                parms = new HashMap<String, String>();
-                if(null == headers) {
-                    headers = new HashMap<String, String>();
+                // Headers are per request, if we kept them around a keep-alive connection would see the previous
+                // request's content-length and the like. Parms, the decoded uri and cookies are only worked out if
+                // serve() asks for them, most of what we serve just passes the raw request on. They are worked out
+                // from the strings decodeHeader copies out of buf, never from buf itself, so it doesn't matter what
+                // has been read into buf since.
+                parms = null;
+                cookies = null;
+                headers = new HashMap<String, String>();
+                if (remoteIp != null) {
+                    headers.put("remote-addr", remoteIp);
+                    headers.put("http-client-ip", remoteIp);
                 }
 
-                // Create a BufferedReader for parsing the header.
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-
-                // Decode the header into parms and header java properties
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, parms, headers);
+                // Decode the header into method, uri and headers
+                method = null;
+                rawUri = null;
+                uri = null;
+                decodeHeader(buf, splitbyte > 0 ? splitbyte : rlen, headers);
 
-                method = Method.lookup(pre.get("method"));
                 if (method == null) {
                     throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
                 }
 
-                uri = pre.get("uri");
-
-                cookies = new CookieHandler(headers);
-
                 // Ok, now do the serve()
                 Response r = serve(this);
                 if (r == null) {
                     throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
                 } else {
-                    cookies.unloadQueue(r);
+                    if (cookies != null) {
+                        cookies.unloadQueue(r);
+                    }
                     r.setRequestMethod(method);
                     r.send(outputStream);
                 }
+
+                // Skip whatever part of a streamed body serve() didn't read so the next request on this
+                // connection starts in the right place. If the body is broken there's no telling where that is.
+                if (bodyInputStream != null) {
+                    try {
+                        bodyInputStream.close();
+                    } catch (IOException e) {
+                        safeClose(inputStream);
+                        safeClose(outputStream);
+                        throw new SocketException("NanoHttpd Shutdown");
+                    }
+                }
             } catch (SocketException e) {
                 // throw it out to close socket object (finalAccept)
                 throw e;
@@ -941,44 +2183,38 @@ public abstract class NanoHTTPD {
                 r.send(outputStream);
                 safeClose(outputStream);
             } finally {
+                if (bodyBuffer != null) {
+                    releaseBodyBuffer(bodyBuffer);
+                    bodyBuffer = null;
+                }
                 tempFileManager.clear();
             }
         }
 
+        /**
+         * @return true if the client has already sent bytes beyond the request just handled
+         */
+        private boolean hasBufferedInput() {
+            try {
+                return inputStream.available() > 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
         @Override
         public void parseBody(Map<String, String> files) throws IOException, ResponseException {
-            RandomAccessFile randomAccessFile = null;
             BufferedReader in = null;
             try {
-
-                randomAccessFile = getTmpBucket();
-
-                long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else if (splitbyte < rlen) {
-                    size = rlen - splitbyte;
-                } else {
-                    size = 0;
-                }
-
-                // Now read all the body and write it to f
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, (int)Math.min(size, 512));
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
-                    }
+                long size = getContentLength();
+                if (size < 0) {
+                    size = splitbyte < rlen ? rlen - splitbyte : 0;
                 }
 
-                // Get the raw body as a byte []
-                ByteBuffer fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-                randomAccessFile.seek(0);
+                ByteBuffer fbuf = readBody(size);
 
                 // Create a BufferedReader for easily reading it as string.
-                InputStream bin = new FileInputStream(randomAccessFile.getFD());
-                in = new BufferedReader(new InputStreamReader(bin));
+                in = new BufferedReader(new InputStreamReader(new ByteBufferInputStream(fbuf.duplicate())));
 
                 // If the method is POST, there may be parameters
                 // in data section, too, read it:
@@ -1007,7 +2243,7 @@ public abstract class NanoHTTPD {
                             boundary = boundary.substring(1, boundary.length() - 1);
                         }
 
-                        decodeMultipartData(boundary, fbuf, in, parms, files);
+                        decodeMultipartData(boundary, fbuf, in, getParms(), files);
                     } else {
                         String postLine = "";
                         StringBuilder postLineBuffer = new StringBuilder();
@@ -1021,7 +2257,7 @@ public abstract class NanoHTTPD {
                         postLine = postLineBuffer.toString().trim();
                         // Handle application/x-www-form-urlencoded
                         if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-                            decodeParms(postLine, parms);
+                            decodeParms(postLine, getParms());
                         } else if (postLine.length() != 0) {
                             // Special case for raw POST data => create a special files entry "postData" with raw content data
                             files.put("postData", postLine);
@@ -1031,96 +2267,237 @@ public abstract class NanoHTTPD {
                     files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
                 }
             } finally {
-                safeClose(randomAccessFile);
                 safeClose(in);
             }
         }
 
+        /**
+         * Reads the whole body, see {@link #setBodyMemoryThreshold} for where it is kept.
+         *
+         * The buffer is only good until the response has been sent, so don't keep it or hand it to anything that
+         * outlives serve(). After that a body held in memory goes back to the server's pool and is overwritten by
+         * some later request, and a body held in a temp file is deleted. Copy out whatever is needed for longer.
+         *
+         * @return The body, or null if the request didn't specify a content-length
+         * @throws ResponseException BAD_REQUEST if the content-length isn't a number or is negative
+         */
         public ByteBuffer getBody() throws IOException, NanoHTTPD.ResponseException {
-            RandomAccessFile randomAccessFile = null;
-            BufferedReader in = null;
-            try {
-
-                randomAccessFile = getTmpBucket();
+            long size = getContentLength();
+            if (size < 0) {
+                return null;
+            }
+            return readBody(size);
+        }
 
-                long size;
-                if (headers.containsKey("content-length")) {
-                    size = Integer.parseInt(headers.get("content-length"));
-                } else {
-                    return null;
+        /**
+         * Reads size bytes of body, or up to the end of the stream if that comes first. A body up to the server's
+         * body memory threshold is read straight into a pooled buffer, a bigger one goes into a temp file which is
+         * then mapped.
+         */
+        private ByteBuffer readBody(long size) throws IOException {
+            if (size >= 0 && size <= bodyMemoryThreshold) {
+                if (bodyBuffer == null || bodyBuffer.length < size) {
+                    // A buffer from an earlier call that's too small may still be in use so it isn't pooled again
+                    bodyBuffer = acquireBodyBuffer((int) size);
                 }
-
-                // Now read all the body and write it to buffer
-                byte[] buf = new byte[512];
-                while (rlen >= 0 && size > 0) {
-                    rlen = inputStream.read(buf, 0, (int)Math.min(size, 512));
-                    size -= rlen;
-                    if (rlen > 0) {
-                        randomAccessFile.write(buf, 0, rlen);
+                int length = 0;
+                while (length < size) {
+                    int read = inputStream.read(bodyBuffer, length, (int) size - length);
+                    if (read <= 0) {
+                        break;
                     }
+                    length += read;
                 }
+                bodiesBufferedInMemory.incrementAndGet();
+                return ByteBuffer.wrap(bodyBuffer, 0, length).slice();
+            }
 
-                // Get the raw body as a byte []
-                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = getMappedTmpBucket();
+                byte[] buf = new byte[BODY_SPILL_BUFFER_SIZE];
+                long length = 0;
+                while (length < size) {
+                    int read = inputStream.read(buf, 0, (int) Math.min(size - length, buf.length));
+                    if (read <= 0) {
+                        break;
+                    }
+                    randomAccessFile.write(buf, 0, read);
+                    length += read;
+                }
+                bodiesSpilledToDisk.incrementAndGet();
 
+                // A pooled file may be longer than this body, left over from an earlier one, so only map what we wrote
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
             } finally {
-                if (randomAccessFile != null)
-                    randomAccessFile.close();
+                safeClose(randomAccessFile);
             }
         }
 
         /**
-         * Decodes the sent headers and loads the data into Key/value pairs
+         * Returns the body of the request as a stream that reads directly off the connection and ends with the
+         * body, after content-length bytes or, for a chunked body, after the last chunk which it decodes on the
+         * way. Unlike getBody() nothing is buffered so the caller can relay a body of any size with constant
+         * memory. Returns null if the request has no body, that is it has neither a content-length nor a chunked
+         * transfer-encoding. Anything the caller doesn't read is discarded after the response is sent.
+         *
+         * @throws ResponseException BAD_REQUEST if the content-length is invalid or the transfer-encoding is one
+         * we can't decode
          */
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-                throws ResponseException {
+        public InputStream getBodyInputStream() throws ResponseException {
+            if (bodyInputStream != null) {
+                return bodyInputStream;
+            }
+
+            if (isChunked()) {
+                bodyInputStream = new ChunkedInputStream(inputStream);
+                return bodyInputStream;
+            }
+
+            long contentLength = getContentLength();
+            if (contentLength < 0) {
+                return null;
+            }
+            bodyInputStream = new ContentLengthInputStream(inputStream, contentLength);
+            return bodyInputStream;
+        }
+
+        /**
+         * @return The request's content-length, or -1 if it didn't send one or its body is chunked, in which case
+         * the length isn't known up front
+         * @throws ResponseException BAD_REQUEST if the content-length isn't a number or is negative
+         */
+        public long getContentLength() throws ResponseException {
+            String contentLength = headers.get("content-length");
+            if (contentLength == null || isChunked()) {
+                return -1;
+            }
+            long length;
             try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid content-length.", e);
+            }
+            if (length < 0) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Invalid content-length.");
+            }
+            return length;
+        }
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
+        /**
+         * A transfer-encoding overrides any content-length. Chunked is the only one a client sends a body with in
+         * practice, and the only one we decode.
+         */
+        private boolean isChunked() throws ResponseException {
+            String transferEncoding = headers.get("transfer-encoding");
+            if (transferEncoding == null || transferEncoding.equalsIgnoreCase("identity")) {
+                return false;
+            }
+            if (transferEncoding.equalsIgnoreCase("chunked")) {
+                return true;
+            }
+            throw new ResponseException(Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Unsupported transfer-encoding " + transferEncoding + ".");
+        }
+
+        /**
+         * Decodes the request line and headers, straight from the bytes, into method, raw uri, query string and
+         * headers. Percent decoding waits until someone asks for the uri or parms. The only strings made are the ones
+         * that end up in the maps, and most header names don't even need that, see {@link HeaderNames}. As when this went through a BufferedReader lines may end in \r\n or just \n, and
+         * as with StringTokenizer and trim() anything up to a space counts as white space.
+         */
+        private void decodeHeader(byte[] buf, int length, Map<String, String> headers)
+                throws ResponseException {
+            if (length == 0) {
+                return;
+            }
+
+            // The request line
+            int lineEnd = lineEnd(buf, 0, length);
+            int start = skipWhiteSpace(buf, 0, lineEnd);
+            if (start == lineEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+            }
+            int end = nextWhiteSpace(buf, start, lineEnd);
+            method = Method.lookup(buf, start, end - start);
 
-                pre.put("method", st.nextToken());
+            start = skipWhiteSpace(buf, end, lineEnd);
+            if (start == lineEnd) {
+                throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            }
+            end = nextWhiteSpace(buf, start, lineEnd);
+
+            // Split the query string off the URI
+            int qmi = indexOf(buf, start, end, (byte) '?');
+            if (qmi >= 0) {
+                queryParameterString = new String(buf, qmi + 1, end - qmi - 1, headerCharset);
+                rawUri = new String(buf, start, qmi - start, headerCharset);
+            } else {
+                rawUri = new String(buf, start, end - start, headerCharset);
+            }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+            // If there's another token, it's protocol version,
+            // followed by HTTP headers. Ignore version but parse headers.
+            // NOTE: this now forces header names lowercase since they are
+            // case insensitive and vary by client.
+            if (skipWhiteSpace(buf, end, lineEnd) == lineEnd) {
+                return;
+            }
+            int lineStart = lineEnd + 1;
+            while (lineStart < length) {
+                lineEnd = lineEnd(buf, lineStart, length);
+                start = skipWhiteSpace(buf, lineStart, lineEnd);
+                if (start == lineEnd) {
+                    break;
                 }
+                int colon = indexOf(buf, start, lineEnd, (byte) ':');
+                if (colon >= 0) {
+                    int nameEnd = trimEnd(buf, start, colon);
+                    int valueStart = skipWhiteSpace(buf, colon + 1, lineEnd);
+                    int valueEnd = trimEnd(buf, valueStart, lineEnd);
+                    headers.put(HeaderNames.lookup(buf, start, nameEnd - start, headerCharset),
+                            new String(buf, valueStart, valueEnd - valueStart, headerCharset));
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
 
-                String uri = st.nextToken();
+        /**
+         * @return The index of the \n ending the line that starts at from, or end if there isn't one
+         */
+        private int lineEnd(byte[] buf, int from, int end) {
+            int newLine = indexOf(buf, from, end, (byte) '\n');
+            return newLine < 0 ? end : newLine;
+        }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParms(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
-                }
-
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0)
-                            headers.put(line.substring(0, p).trim().toLowerCase(Locale.US), line.substring(p + 1).trim());
-                        line = in.readLine();
-                    }
+        private int indexOf(byte[] buf, int from, int end, byte b) {
+            for (int i = from; i < end; ++i) {
+                if (buf[i] == b) {
+                    return i;
                 }
+            }
+            return -1;
+        }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        private int skipWhiteSpace(byte[] buf, int from, int end) {
+            while (from < end && (buf[from] & 0xff) <= ' ') {
+                from++;
+            }
+            return from;
+        }
+
+        private int nextWhiteSpace(byte[] buf, int from, int end) {
+            while (from < end && (buf[from] & 0xff) > ' ') {
+                from++;
+            }
+            return from;
+        }
+
+        private int trimEnd(byte[] buf, int start, int end) {
+            while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+                end--;
             }
+            return end;
         }
 
         /**
@@ -1200,8 +2577,8 @@ public abstract class NanoHTTPD {
         /**
          * Find byte index separating header from body. It must be the last byte of the first two sequential new lines.
          */
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
+        private int findHeaderEnd(final byte[] buf, int from, int rlen) {
+            int splitbyte = from;
             while (splitbyte + 3 < rlen) {
                 if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
                     return splitbyte + 4;
@@ -1265,9 +2642,14 @@ public abstract class NanoHTTPD {
             return path;
         }
 
-        private RandomAccessFile getTmpBucket() {
+        /**
+         * A file to write a body into from the start and then map, see {@link PooledTempFileManagerFactory}.
+         */
+        private RandomAccessFile getMappedTmpBucket() {
             try {
-                TempFile tempFile = tempFileManager.createTempFile();
+                TempFile tempFile = tempFileManager instanceof PooledTempFileManagerFactory.PooledTempFileManager ?
+                        ((PooledTempFileManagerFactory.PooledTempFileManager) tempFileManager).createMappedTempFile() :
+                        tempFileManager.createTempFile();
                 return new RandomAccessFile(tempFile.getName(), "rw");
             } catch (Exception e) {
                 throw new Error(e); // we won't recover, so throw an error
@@ -1313,6 +2695,12 @@ public abstract class NanoHTTPD {
 
         @Override
         public final Map<String, String> getParms() {
+            if (parms == null) {
+                parms = new HashMap<String, String>();
+                if (queryParameterString != null) {
+                    decodeParms(queryParameterString, parms);
+                }
+            }
             return parms;
         }
 
@@ -1327,9 +2715,17 @@ public abstract class NanoHTTPD {
 
         @Override
         public final String getUri() {
+            if (uri == null && rawUri != null) {
+                uri = decodePercent(rawUri);
+            }
             return uri;
         }
 
+        @Override
+        public final String getRawUri() {
+            return rawUri;
+        }
+
         @Override
         public final Method getMethod() {
             return method;
@@ -1342,10 +2738,211 @@ public abstract class NanoHTTPD {
 
         @Override
         public CookieHandler getCookies() {
+            if (cookies == null) {
+                cookies = new CookieHandler(headers);
+            }
             return cookies;
         }
     }
 
+    /**
+     * Reads a request body that has already been buffered, in memory or mapped from its temp file.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Limits reads from the connection to the declared length of the request body.
+     */
+    private static class ContentLengthInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        public ContentLengthInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read();
+            if (read >= 0) {
+                remaining--;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        /**
+         * The underlying stream belongs to the connection so closing the body just skips what is left of it.
+         */
+        @Override
+        public void close() throws IOException {
+            drain();
+        }
+
+        public void drain() throws IOException {
+            byte[] buf = new byte[512];
+            while (read(buf, 0, buf.length) > 0) {
+                // Discard
+            }
+        }
+    }
+
+    /**
+     * Decodes a chunked request body off the connection. Chunk extensions and trailers are read and dropped, the
+     * stream ends after the last chunk.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        /**
+         * Far longer than any sane chunk size line or trailer, it just stops a broken client feeding us one forever
+         */
+        private static final int MAX_LINE_LENGTH = 4096;
+
+        private final InputStream in;
+        private long chunkRemaining = 0;
+        private boolean ended = false;
+
+        public ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (chunkRemaining == 0 && !nextChunk()) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, chunkRemaining));
+            if (read < 0) {
+                throw new EOFException("Chunked body ended early");
+            }
+            chunkRemaining -= read;
+            if (chunkRemaining == 0 && readLine().length() != 0) {
+                throw new IOException("Chunk isn't followed by a CRLF");
+            }
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), chunkRemaining);
+        }
+
+        /**
+         * @return false once the last chunk and any trailers have been read
+         */
+        private boolean nextChunk() throws IOException {
+            if (ended) {
+                return false;
+            }
+            String sizeLine = readLine();
+            int extension = sizeLine.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size " + sizeLine);
+            }
+            if (size < 0) {
+                throw new IOException("Bad chunk size " + sizeLine);
+            }
+            if (size == 0) {
+                while (readLine().length() != 0) {
+                    // Trailer
+                }
+                ended = true;
+                return false;
+            }
+            chunkRemaining = size;
+            return true;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int b = in.read();
+                if (b == -1) {
+                    throw new EOFException("Chunked body ended early");
+                }
+                if (b == '\n') {
+                    int length = line.length();
+                    return length > 0 && line.charAt(length - 1) == '\r' ? line.substring(0, length - 1) : line.toString();
+                }
+                if (line.length() == MAX_LINE_LENGTH) {
+                    throw new IOException("Chunk size line or trailer too long");
+                }
+                line.append((char) b);
+            }
+        }
+
+        /**
+         * The underlying stream belongs to the connection so closing the body just skips what is left of it.
+         */
+        @Override
+        public void close() throws IOException {
+            byte[] buf = new byte[512];
+            while (read(buf, 0, buf.length) > 0) {
+                // Discard
+            }
+        }
+    }
+
     public static class Cookie {
         private String n, v, e;
 
@@ -131,6 +131,8 @@ public class SimpleWebServer extends NanoHTTPD {
         String host = "127.0.0.1";
         List<File> rootDirs = new ArrayList<File>();
         boolean quiet = false;
+        int maxThreads = 0;
+        boolean virtualThreads = false;
         Map<String, String> options = new HashMap<String, String>();
 
         // Parse command-line, with short and long versions of the options.
@@ -143,6 +145,10 @@ public class SimpleWebServer extends NanoHTTPD {
                 quiet = true;
             } else if (args[i].equalsIgnoreCase("-d") || args[i].equalsIgnoreCase("--dir")) {
                 rootDirs.add(new File(args[i + 1]).getAbsoluteFile());
+            } else if (args[i].equalsIgnoreCase("-t") || args[i].equalsIgnoreCase("--threads")) {
+                maxThreads = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("--virtual-threads")) {
+                virtualThreads = true;
             } else if (args[i].equalsIgnoreCase("--licence")) {
                 System.out.println(LICENCE + "\n");
             } else if (args[i].startsWith("-X:")) {
@@ -192,7 +198,19 @@ public class SimpleWebServer extends NanoHTTPD {
             }
         }
 
-        ServerRunner.executeInstance(new SimpleWebServer(host, port, rootDirs, quiet));
+        SimpleWebServer server = new SimpleWebServer(host, port, rootDirs, quiet);
+        if (maxThreads > 0 || virtualThreads) {
+            PooledAsyncRunner runner = maxThreads > 0 ?
+                    new PooledAsyncRunner(Math.min(PooledAsyncRunner.DEFAULT_CORE_POOL_SIZE, maxThreads), maxThreads,
+                            PooledAsyncRunner.DEFAULT_QUEUE_CAPACITY, PooledAsyncRunner.DEFAULT_KEEP_ALIVE_MILLIS,
+                            PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION) :
+                    new PooledAsyncRunner();
+            if (virtualThreads && !runner.setUseVirtualThreads(true) && !quiet) {
+                System.out.println("# Virtual threads are not available, using a thread pool.");
+            }
+            server.setAsyncRunner(runner);
+        }
+        ServerRunner.executeInstance(server);
     }
 
     protected static void registerPluginForMimeType(String[] indexFiles, String mimeType, WebServerPlugin plugin, Map<String, String> commandLineOptions) {
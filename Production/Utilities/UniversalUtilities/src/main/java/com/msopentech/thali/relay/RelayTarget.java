@@ -0,0 +1,108 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.relay;
+
+import com.msopentech.thali.utilities.universal.HttpKeyURL;
+import org.apache.http.HttpHost;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Where the relay sends requests, worked out once from the TDH's httpkey URL. Parsing an httpkey URL means
+ * rebuilding the server's public key, which is far too much work to repeat for every relayed request when all we
+ * need is the host and port.
+ */
+public class RelayTarget {
+    private final String host;
+    private final int port;
+    private final String baseUri;
+    private final HttpHost httpHost;
+
+    public RelayTarget(String httpKeyUrl) throws IllegalArgumentException {
+        HttpKeyURL serverHttpKey = new HttpKeyURL(httpKeyUrl);
+        host = serverHttpKey.getHost();
+        port = serverHttpKey.getPort();
+        httpHost = new HttpHost(host, port, "https");
+        baseUri = httpHost.toURI();
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the https URI of the TDH without a path, e.g. https://127.0.0.1:9898
+     */
+    public String getBaseUri() {
+        return baseUri;
+    }
+
+    public HttpHost getHttpHost() {
+        return httpHost;
+    }
+
+    /**
+     * Builds the https URL for a relayed request.
+     * @param path URL decoded path, it will be encoded
+     * @param query query string which is already encoded and is appended as is, may be null
+     * @return
+     * @throws URISyntaxException
+     */
+    public String createHttpsUrl(String path, String query) throws URISyntaxException {
+        return new URI("https", null, host, port, path, null, null).toString() +
+                ((query == null || query.isEmpty()) ? "" : "?" + query);
+    }
+
+    /**
+     * Builds the https URL for a relayed request from the path as the client sent it, so the TDH sees exactly what
+     * the client asked for (an escaped / in a document id stays escaped) and we skip decoding and re-encoding it.
+     * @param rawPath percent encoded path, see {@link #isEncodedPath(String)}
+     * @param query query string which is already encoded and is appended as is, may be null
+     * @return
+     */
+    public String createHttpsUrlFromRawPath(String rawPath, String query) {
+        return baseUri + rawPath + ((query == null || query.isEmpty()) ? "" : "?" + query);
+    }
+
+    /**
+     * @param rawPath
+     * @return true if rawPath is an absolute path that only uses the characters a URI path allows, with any others
+     * percent encoded, so it can be passed on as is
+     */
+    public static boolean isEncodedPath(String rawPath) {
+        if (rawPath == null || !rawPath.startsWith("/")) {
+            return false;
+        }
+        for (int i = 0; i < rawPath.length(); ++i) {
+            char c = rawPath.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= rawPath.length() ||
+                        Character.digit(rawPath.charAt(i + 1), 16) < 0 ||
+                        Character.digit(rawPath.charAt(i + 2), 16) < 0) {
+                    return false;
+                }
+                i += 2;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    "-._~!$&'()*+,;=:@/".indexOf(c) >= 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
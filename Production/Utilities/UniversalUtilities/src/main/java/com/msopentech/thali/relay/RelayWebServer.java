@@ -21,21 +21,21 @@ import com.msopentech.thali.utilities.universal.*;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.apache.http.Header;
-import org.apache.http.HttpHost;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
-import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -55,7 +55,7 @@ public class RelayWebServer extends NanoHTTPD {
     private volatile HttpKeyTypes httpKeyTypes;
 
     private HttpClient httpClient;
-    private HttpHost httpHost;
+    private volatile RelayTarget relayTarget;
     private Logger LOG = LoggerFactory.getLogger(RelayWebServer.class);
     private final List<String> doNotForwardHeaders = Arrays.asList("date", "connection", "keep-alive",
             "proxy-authenticate", "proxy-authorization", "te", "trailer", "transfer-encoding", "upgrade");
@@ -64,10 +64,52 @@ public class RelayWebServer extends NanoHTTPD {
                           HttpKeyTypes httpKeyTypes)
             throws UnrecoverableEntryException, KeyManagementException, NoSuchAlgorithmException, KeyStoreException,
             IOException {
-        super(relayHost, relayPort);
+        this(createHttpClient(clientBuilder, keystoreDirectory, httpKeyTypes), httpKeyTypes, relayPort);
+    }
+
+    /**
+     * Relays to the TDH over an HttpClient the caller has already set up to talk to it.
+     * @param httpClient
+     * @param httpKeyTypes
+     * @param port Port on relayHost to listen on, 0 for any free one, see getListeningPort()
+     */
+    public RelayWebServer(HttpClient httpClient, HttpKeyTypes httpKeyTypes, int port) {
+        super(relayHost, port);
+
+        // PouchDB opens connections in bursts during replication, so serve them from a bounded pool rather than
+        // a new thread apiece. The queue is generous since rejected connections surface as replication errors.
+        setAsyncRunner(new PooledAsyncRunner(PooledAsyncRunner.DEFAULT_CORE_POOL_SIZE,
+                PooledAsyncRunner.DEFAULT_MAX_POOL_SIZE, 256, PooledAsyncRunner.DEFAULT_KEEP_ALIVE_MILLIS,
+                PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION));
+        // Browsers keep plenty of idle keep-alive connections open to us, let them wait on a selector rather than
+        // each hold a thread
+        setUseNio(true);
 
         this.httpKeyTypes = httpKeyTypes;
+        relayTarget = new RelayTarget(httpKeyTypes.getLocalMachineIPHttpKeyURL());
+        this.httpClient = httpClient;
+
+        // Everything the relay forwards goes down the one route to the local TDH, so let that route have a
+        // connection for every thread that can be serving a request
+        if (httpClient instanceof HttpKeyHttpClient) {
+            HttpKeyHttpClient httpKeyHttpClient = (HttpKeyHttpClient) httpClient;
+            httpKeyHttpClient.setPoolLimits(HttpKeyHttpClient.DefaultMaxConnectionsPerRoute,
+                    PooledAsyncRunner.DEFAULT_MAX_POOL_SIZE);
+            httpKeyHttpClient.setMaxConnectionsForPeer(relayTarget.getHost(), relayTarget.getPort(),
+                    PooledAsyncRunner.DEFAULT_MAX_POOL_SIZE);
+        }
+
+        // CBL does not currently appear to obey the timeout at all (it is infinite for longpoll requests)
+        // so until this bug is resolved or we come up with something smarter we'll also disable socket timeout
+        // to give applications a chance at working properly
+        // (connection timeout is still configured for a reasonable value)
+        httpClient.getParams().setParameter("http.socket.timeout", new Integer(0));
+    }
 
+    private static HttpClient createHttpClient(CreateClientBuilder clientBuilder, File keystoreDirectory,
+                                               HttpKeyTypes httpKeyTypes)
+            throws UnrecoverableEntryException, KeyManagementException, NoSuchAlgorithmException, KeyStoreException,
+            IOException {
         HttpKeyURL serverHttpKey = new HttpKeyURL(httpKeyTypes.getLocalMachineIPHttpKeyURL());
 
         // Get local couch DB instance
@@ -80,27 +122,21 @@ public class RelayWebServer extends NanoHTTPD {
                         null);
 
         // Get the configured apache HttpClient
-        httpClient = clientBuilder.extractApacheClientFromThaliCouchDbInstance(thaliCouchDbInstance);
-
-        // CBL does not currently appear to obey the timeout at all (it is infinite for longpoll requests)
-        // so until this bug is resolved or we come up with something smarter we'll also disable socket timeout
-        // to give applications a chance at working properly
-        // (connection timeout is still configured for a reasonable value)
-        httpClient.getParams().setParameter("http.socket.timeout", new Integer(0));
-
-        // Define an http host to address the new relay request to the TDH
-        httpHost = new HttpHost(serverHttpKey.getHost(), serverHttpKey.getPort(), "https");
+        return clientBuilder.extractApacheClientFromThaliCouchDbInstance(thaliCouchDbInstance);
     }
 
     public void setHttpKeyTypes(HttpKeyTypes httpKeyTypes) {
+        // Build the new target before publishing anything so a bad URL leaves the relay as it was
+        RelayTarget newRelayTarget = new RelayTarget(httpKeyTypes.getLocalMachineIPHttpKeyURL());
         this.httpKeyTypes = httpKeyTypes;
+        this.relayTarget = newRelayTarget;
     }
 
     @Override
     public Response serve(IHTTPSession session) {
         Method method = session.getMethod();
         String queryString = session.getQueryParameterString();
-        String path = session.getUri();
+        String path = session.getRawUri();
         Map<String, String> headers = session.getHeaders();
 
         LOG.info("URI + Query: " + path + (queryString == null ? "" : "?" + queryString));
@@ -135,25 +171,30 @@ public class RelayWebServer extends NanoHTTPD {
             return httpKeyResponse;
         }
 
-        // Get the body of the request if appropriate
-        byte[] requestBody = new byte[0];
+        // Get the body of the request if appropriate, we stream it straight through to the TDH rather than
+        // buffering it so attachment uploads don't cost us memory proportional to their size. A chunked body is
+        // passed on chunked.
+        InputStream requestBody = null;
+        long requestContentLength = -1;
         if (method.equals(Method.PUT) || method.equals(Method.POST)) {
             try {
-                ByteBuffer bodyBuffer = ((HTTPSession) session).getBody();
-                if (bodyBuffer != null) {
-                    requestBody = new byte[bodyBuffer.remaining()];
-                    bodyBuffer.get(requestBody);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return GenerateErrorResponse(e.getMessage());
+                requestContentLength = ((HTTPSession) session).getContentLength();
+                requestBody = ((HTTPSession) session).getBodyInputStream();
+            } catch (ResponseException e) {
+                LOG.warn("Rejected request body: " + e.getMessage());
+                Response badRequestResponse = new Response(e.getStatus(), MIME_PLAINTEXT, e.getMessage());
+                AppendCorsHeaders(badRequestResponse, headers);
+                return badRequestResponse;
             }
         }
 
-        // Make a new request which we will prepare for relaying to TDH
+        // Make a new request which we will prepare for relaying to TDH, using one snapshot of the target so a
+        // concurrent setHttpKeyTypes can't give us a URL for one TDH and a connection to another
+        RelayTarget target = relayTarget;
         BasicHttpEntityEnclosingRequest basicHttpRequest = null;
         try {
-            basicHttpRequest = buildRelayRequest(method, path, queryString, headers, requestBody);
+            basicHttpRequest =
+                    buildRelayRequest(target, session, queryString, headers, requestBody, requestContentLength);
         } catch (UnsupportedEncodingException e) {
             String message = "Unable to translate body to new request.\n" + ExceptionUtils.getStackTrace(e);
             return GenerateErrorResponse(message);
@@ -167,9 +208,10 @@ public class RelayWebServer extends NanoHTTPD {
         InputStream tdhResponseContent = null;
         Response clientResponse = null;
         try {
-            LOG.info("Relaying call to TDH: " + httpHost.toURI());
-            tdhResponse = httpClient.execute(httpHost, basicHttpRequest);
-            tdhResponseContent = tdhResponse.getEntity().getContent();
+            LOG.info("Relaying call to TDH: " + target.getBaseUri());
+            tdhResponse = httpClient.execute(target.getHttpHost(), basicHttpRequest);
+            HttpEntity tdhResponseEntity = tdhResponse.getEntity();
+            tdhResponseContent = tdhResponseEntity == null ? null : tdhResponseEntity.getContent();
 
             // Create response and set status and body
             // default the MIME_TYPE for now and we'll set it later when we enumerate the headers
@@ -188,27 +230,32 @@ public class RelayWebServer extends NanoHTTPD {
                     }
                 }
 
+                InputStream clientResponseBody;
+                if (responseBodyString != null) {
+                    clientResponseBody = IOUtils.toInputStream(responseBodyString);
+                    closeTdhResponseContent(tdhResponseContent);
+                } else {
+                    // The TDH's body is handed to NanoHTTPD as is and streamed out chunk by chunk as it arrives,
+                    // NanoHTTPD closes it once the response has been sent which releases the pooled connection.
+                    clientResponseBody = tdhResponseContent == null ? null : new TdhResponseInputStream(tdhResponseContent);
+                }
+                tdhResponseContent = null;
+
                 clientResponse = new Response(
                         new RelayStatus(tdhResponse.getStatusLine()),
                         NanoHTTPD.MIME_PLAINTEXT,
-                        responseBodyString != null ?
-                                IOUtils.toInputStream(responseBodyString) :
-                                IOUtils.toBufferedInputStream(tdhResponseContent));
+                        clientResponseBody);
                 // If there is a response body we want to send it chunked to enable streaming
-                clientResponse.setChunkedTransfer(true);
+                clientResponse.setChunkedTransfer(clientResponseBody != null);
             }
         } catch (IOException e) {
             String message = "Reading response failed!\n" + ExceptionUtils.getStackTrace(e);
             return GenerateErrorResponse(message);
         }
         finally {
-            // Make sure the read stream is closed so we don't exhaust our pool
-            if (tdhResponseContent != null)
-                try {
-                    tdhResponseContent.close();
-                } catch (IOException e) {
-                    LOG.error(e.getMessage());
-                }
+            // If we failed before handing the read stream to the response make sure it is closed so we don't
+            // exhaust our pool
+            closeTdhResponseContent(tdhResponseContent);
         }
 
 
@@ -234,35 +281,46 @@ public class RelayWebServer extends NanoHTTPD {
         }
     }
 
+    private void closeTdhResponseContent(InputStream tdhResponseContent) {
+        if (tdhResponseContent != null) {
+            try {
+                tdhResponseContent.close();
+            } catch (IOException e) {
+                LOG.error(e.getMessage());
+            }
+        }
+    }
+
     // Prepares a request which will be forwarded to the TDH by copying headers, body, etc
-    private BasicHttpEntityEnclosingRequest buildRelayRequest(Method method, String path, String query,
-                                                              Map<String, String> headers, byte[] body)
+    // contentLength is -1 for a chunked body
+    private BasicHttpEntityEnclosingRequest buildRelayRequest(RelayTarget target, IHTTPSession session,
+                                                              String query, Map<String, String> headers,
+                                                              InputStream body, long contentLength)
             throws UnsupportedEncodingException, URISyntaxException {
-        HttpKeyURL baseUrl = new HttpKeyURL(httpKeyTypes.getLocalMachineIPHttpKeyURL());
-        // When NanoHTTPD decodes the incoming URL in the session object it breaks the URL into three parts.
-        // There is the path which is URL decoded before being handed over.
-        // There is the query string which is NOT URL decoded before being handed over.
-        // And there are the params which are the query parameters of the URL broken out and decoded
-        // To make sure encoding is handled correctly we have chosen to use the URI class to create the
-        // base and provide the URL decoded path. We then manually append the query parameter which is already
-        // encoded. The reason for taking this approach is that it supports wacky query strings that don't
-        // encode correctly or have other strange behavior.
-        String fullHttpsUrl = new URI("https", null, baseUrl.getHost(), baseUrl.getPort(),
-                path, null, null).toString() + ((query == null || query.isEmpty()) ? "" : "?" + query);
+        // NanoHTTPD gives us the path as the client sent it, the same path URL decoded (which it only works out
+        // if asked) and the query string, which is never decoded. Normally we pass the path and the query string on
+        // untouched. Only if the client sent a path that isn't properly encoded do we fall back to having the URI
+        // class encode the decoded path. The query string is always appended as is, that way wacky query strings
+        // that don't encode correctly or have other strange behavior still get through.
+        String rawPath = session.getRawUri();
+        String fullHttpsUrl = RelayTarget.isEncodedPath(rawPath) ?
+                target.createHttpsUrlFromRawPath(rawPath, query) :
+                target.createHttpsUrl(session.getUri(), query);
         BasicHttpEntityEnclosingRequest basicHttpRequest =
-                new BasicHttpEntityEnclosingRequest(method.name(), fullHttpsUrl);
+                new BasicHttpEntityEnclosingRequest(session.getMethod().name(), fullHttpsUrl);
 
         // Copy headers from incoming request to new relay request
         for(Map.Entry<String, String> entry : headers.entrySet()) {
-            // Skip content-length, the library does this automatically
-            if (!entry.getKey().equals("content-length")) {
+            // Skip content-length and transfer-encoding, the library sets them to match the entity
+            if (!entry.getKey().equals("content-length") && !entry.getKey().equals("transfer-encoding")) {
                 basicHttpRequest.setHeader(entry.getKey(), entry.getValue());
             }
         }
 
-        // Copy data from source request to new relay request
-        if (body != null && body.length > 0) {
-            ByteArrayEntity bodyEntity = new ByteArrayEntity(body);
+        // Stream data from source request to new relay request
+        if (body != null && contentLength != 0) {
+            InputStreamEntity bodyEntity = new InputStreamEntity(body, contentLength);
+            bodyEntity.setChunked(contentLength < 0);
             basicHttpRequest.setEntity(bodyEntity);
         }
 
@@ -290,5 +348,42 @@ public class RelayWebServer extends NanoHTTPD {
         response.addHeader("Access-Control-Allow-Methods",
                 headers.containsKey("access-control-request-method")?headers.get("access-control-request-method"):"GET, PUT, POST, DELETE, HEAD");
     }
+
+    /**
+     * Wraps the TDH's response body while NanoHTTPD streams it to the client. Closing a pooled Apache stream
+     * before its end means reading the rest of it so the connection can be reused, which for a continuous
+     * _changes feed whose client went away would never finish. So if we didn't reach the end we abort the
+     * connection instead.
+     */
+    private static class TdhResponseInputStream extends FilterInputStream {
+        private boolean endOfStream = false;
+
+        public TdhResponseInputStream(InputStream tdhResponseContent) {
+            super(tdhResponseContent);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            endOfStream |= read == -1;
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            endOfStream |= read == -1;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (endOfStream == false && in instanceof ConnectionReleaseTrigger) {
+                ((ConnectionReleaseTrigger) in).abortConnection();
+                return;
+            }
+            super.close();
+        }
+    }
 }
 
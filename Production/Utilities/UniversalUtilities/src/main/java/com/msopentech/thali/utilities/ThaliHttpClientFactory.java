@@ -14,32 +14,47 @@ See the Apache 2 License for the specific language governing permissions and lim
 package com.msopentech.thali.utilities;
 
 import com.couchbase.lite.support.HttpClientFactory;
+import com.msopentech.thali.utilities.universal.ConnectionPoolStats;
+import com.msopentech.thali.utilities.universal.HttpKeyConnectionWarmer;
 import com.msopentech.thali.utilities.universal.HttpKeyHttpClient;
 import com.msopentech.thali.utilities.universal.HttpKeySSLSocketFactory;
+import com.msopentech.thali.utilities.universal.HttpKeyURL;
+import com.msopentech.thali.utilities.universal.SharedClientConnectionManager;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.HttpClient;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.client.HttpRequestRetryHandler;
 import org.apache.http.cookie.Cookie;
 import org.apache.http.params.BasicHttpParams;
 
 import java.net.Proxy;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
+/**
+ * Couchbase asks us for a new HttpClient for every request it makes during replication. All of the clients we hand
+ * out share one SSL socket factory, so TLS sessions get resumed, and one connection pool, so sockets get reused.
+ */
 public class ThaliHttpClientFactory implements HttpClientFactory {
     protected final HttpKeySSLSocketFactory httpKeySSLSocketFactory;
+    protected SharedClientConnectionManager sharedConnectionManager;
     protected final PublicKey serverPublicKey;
     protected final KeyStore clientKeyStore;
     protected final char[] clientKeyStorePassPhrase;
     protected final Proxy proxy;
+    protected int socksIsolationLanes = 0;
+    protected int maxConnectionsPerRoute = HttpKeyHttpClient.DefaultMaxConnectionsPerRoute;
+    protected int maxConnectionsTotal = HttpKeyHttpClient.DefaultMaxConnectionsTotal;
+    protected HttpRequestRetryHandler httpRequestRetryHandler = null;
+    protected final List<HttpKeyConnectionWarmer> warmers = new ArrayList<HttpKeyConnectionWarmer>();
 
     public ThaliHttpClientFactory(final PublicKey serverPublicKey,
                                   final KeyStore clientKeyStore, final char[] clientKeyStorePassPhrase,
                                   Proxy proxy)
             throws UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
         httpKeySSLSocketFactory =
-                new HttpKeySSLSocketFactory(serverPublicKey, clientKeyStore, clientKeyStorePassPhrase);
+                HttpKeySSLSocketFactory.getSharedInstance(serverPublicKey, clientKeyStore, clientKeyStorePassPhrase);
         this.serverPublicKey = serverPublicKey;
         this.clientKeyStore = clientKeyStore;
         this.clientKeyStorePassPhrase = clientKeyStorePassPhrase;
@@ -48,19 +63,103 @@ public class ThaliHttpClientFactory implements HttpClientFactory {
 
     @Override
     public HttpClient getHttpClient() {
-        BasicHttpParams basicHttpParams = new BasicHttpParams();
-        SchemeRegistry schemeRegistry = new SchemeRegistry();
-        schemeRegistry.register(new Scheme("https", httpKeySSLSocketFactory, 443));
-        try {
-            return new HttpKeyHttpClient(serverPublicKey, clientKeyStore, clientKeyStorePassPhrase, proxy, basicHttpParams);
-        } catch (UnrecoverableKeyException e) {
-            throw new RuntimeException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        } catch (KeyStoreException e) {
-            throw new RuntimeException(e);
-        } catch (KeyManagementException e) {
-            throw new RuntimeException(e);
+        HttpKeyHttpClient httpClient = new HttpKeyHttpClient(httpKeySSLSocketFactory, getSharedConnectionManager(),
+                proxy, new BasicHttpParams());
+        HttpRequestRetryHandler retryHandler = getHttpRequestRetryHandler();
+        if (retryHandler != null) {
+            httpClient.setHttpRequestRetryHandler(retryHandler);
+        }
+        return httpClient;
+    }
+
+    public synchronized HttpRequestRetryHandler getHttpRequestRetryHandler() {
+        return httpRequestRetryHandler;
+    }
+
+    /**
+     * Overrides the retry handler on the clients handed out from now on.
+     * @param httpRequestRetryHandler null, the default, leaves the client's own, see {@link HttpKeyHttpClient}
+     */
+    public synchronized void setHttpRequestRetryHandler(HttpRequestRetryHandler httpRequestRetryHandler) {
+        this.httpRequestRetryHandler = httpRequestRetryHandler;
+    }
+
+    /**
+     * The pool shared by every client this factory hands out, created with the first client.
+     * @return
+     */
+    public synchronized SharedClientConnectionManager getSharedConnectionManager() {
+        if (sharedConnectionManager == null) {
+            // Let a client build the pool so we get the right flavor for the platform and proxy
+            HttpKeyHttpClient poolOwner =
+                    new HttpKeyHttpClient(httpKeySSLSocketFactory, null, proxy, new BasicHttpParams());
+            poolOwner.setSocksIsolationLanes(socksIsolationLanes);
+            poolOwner.setPoolLimits(maxConnectionsPerRoute, maxConnectionsTotal);
+            sharedConnectionManager = new SharedClientConnectionManager(poolOwner.getConnectionManager());
+        }
+        return sharedConnectionManager;
+    }
+
+    /**
+     * When talking through Tor, spreads the pooled connections to the peer over this many circuits so replication
+     * isn't limited to what one circuit can carry. Takes effect the next time the pool is created, so call it before
+     * handing out the first client or after {@link #shutdown()}.
+     * @param lanesPerPeer 0, the default, leaves it up to Tor
+     */
+    public synchronized void setSocksIsolationLanes(int lanesPerPeer) {
+        socksIsolationLanes = lanesPerPeer;
+    }
+
+    /**
+     * Sizes the shared pool, a replicator talking to many peers wants a small per route limit under a bigger total.
+     * Like {@link #setSocksIsolationLanes} this takes effect the next time the pool is created.
+     * @param maxPerRoute
+     * @param maxTotal
+     */
+    public synchronized void setPoolLimits(int maxPerRoute, int maxTotal) {
+        maxConnectionsPerRoute = maxPerRoute;
+        maxConnectionsTotal = maxTotal;
+    }
+
+    /**
+     * @return Per route statistics for the shared pool, empty if it hasn't been created yet
+     */
+    public synchronized List<ConnectionPoolStats> getPoolStats() {
+        return sharedConnectionManager == null ?
+                new ArrayList<ConnectionPoolStats>() :
+                sharedConnectionManager.getPoolStats();
+    }
+
+    /**
+     * Opens connections to the peer in the shared pool ahead of time so that the first replication request doesn't
+     * wait for a SOCKS connect and TLS handshake, see {@link HttpKeyConnectionWarmer}.
+     * @param target The peer this factory's clients will be talking to
+     * @param connections
+     * @return
+     */
+    public synchronized HttpKeyConnectionWarmer warmUp(HttpKeyURL target, int connections) {
+        Iterator<HttpKeyConnectionWarmer> existingWarmers = warmers.iterator();
+        while (existingWarmers.hasNext()) {
+            if (existingWarmers.next().isStopped()) {
+                existingWarmers.remove();
+            }
+        }
+        HttpKeyConnectionWarmer warmer = new HttpKeyConnectionWarmer(getHttpClient(), target, connections).start();
+        warmers.add(warmer);
+        return warmer;
+    }
+
+    /**
+     * Closes the pooled connections, the next client will start a new pool.
+     */
+    public synchronized void shutdown() {
+        for (HttpKeyConnectionWarmer warmer : warmers) {
+            warmer.stop();
+        }
+        warmers.clear();
+        if (sharedConnectionManager != null) {
+            sharedConnectionManager.shutdownShared();
+            sharedConnectionManager = null;
         }
     }
 
@@ -0,0 +1,75 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Decides how long a pooled connection may sit idle before we stop reusing it. Apache's default strategy keeps
+ * connections forever unless the server says otherwise, and even when it does it will happily reuse a connection
+ * right up to the moment the server closes it, which is the race that leaves a request hanging on a dead socket.
+ * So we give a connection up a little before the server's advertised Keep-Alive timeout and never keep one longer
+ * than maxKeepAliveMillis.
+ */
+public class CappedConnectionKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    public static final long DefaultMaxKeepAliveMillis = 20 * 1000;
+    public static final long SafetyMarginMillis = 1000;
+
+    protected final long maxKeepAliveMillis;
+
+    public CappedConnectionKeepAliveStrategy() {
+        this(DefaultMaxKeepAliveMillis);
+    }
+
+    public CappedConnectionKeepAliveStrategy(long maxKeepAliveMillis) {
+        assert maxKeepAliveMillis > 0;
+        this.maxKeepAliveMillis = maxKeepAliveMillis;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        long serverKeepAliveMillis = getServerKeepAliveMillis(response);
+        if (serverKeepAliveMillis < 0) {
+            return maxKeepAliveMillis;
+        }
+        // Apache treats 0 or less as keep forever, so a server timeout shorter than our margin becomes 'expire
+        // at once'
+        return Math.max(1, Math.min(serverKeepAliveMillis - SafetyMarginMillis, maxKeepAliveMillis));
+    }
+
+    /**
+     * @param response
+     * @return The timeout from the response's Keep-Alive header in milliseconds or -1 if there isn't one
+     */
+    protected long getServerKeepAliveMillis(HttpResponse response) {
+        HeaderElementIterator iterator = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+        while (iterator.hasNext()) {
+            HeaderElement headerElement = iterator.nextElement();
+            if ("timeout".equalsIgnoreCase(headerElement.getName()) && headerElement.getValue() != null) {
+                try {
+                    return Long.parseLong(headerElement.getValue().trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.conn.routing.HttpRoute;
+
+/**
+ * A snapshot of how one route in a {@link MonitoredClientConnectionManager} is doing.
+ */
+public class ConnectionPoolStats {
+    private final HttpRoute route;
+    private final int leased;
+    private final int pending;
+    private final int available;
+    private final long leases;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+
+    public ConnectionPoolStats(HttpRoute route, int leased, int pending, int available, long leases,
+                               long totalWaitMillis, long maxWaitMillis) {
+        this.route = route;
+        this.leased = leased;
+        this.pending = pending;
+        this.available = available;
+        this.leases = leases;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    public HttpRoute getRoute() {
+        return route;
+    }
+
+    /**
+     * @return Connections currently handed out to requests
+     */
+    public int getLeased() {
+        return leased;
+    }
+
+    /**
+     * @return Requests waiting for a connection right now
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    /**
+     * @return Idle connections in the pool, or -1 if the underlying connection manager can't tell us
+     */
+    public int getAvailable() {
+        return available;
+    }
+
+    /**
+     * @return How many connections have been handed out since the pool started
+     */
+    public long getLeases() {
+        return leases;
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public double getAverageWaitMillis() {
+        return leases == 0 ? 0 : (double) totalWaitMillis / leases;
+    }
+
+    @Override
+    public String toString() {
+        return route + " leased " + leased + " pending " + pending + " available " + available + " leases " +
+                leases + " average wait " + Math.round(getAverageWaitMillis()) + "ms max wait " + maxWaitMillis +
+                "ms";
+    }
+}
@@ -0,0 +1,168 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A hedged GET: send the request, and if it hasn't answered by the time the peer usually has, send a copy (which
+ * will normally go out over a different pooled connection, and so maybe a different circuit) and take whichever
+ * answers first. The other one is aborted. This trims the long tail on paths where now and then a request just gets
+ * stuck, at the price of the odd extra request, so it is only for GETs.
+ *
+ * The copy costs a token from the peer's retry budget (see {@link ThaliPeerStats}) so a peer that is slow across the
+ * board doesn't get every request twice.
+ */
+public class HedgedGet {
+    /**
+     * How many times the peer's average latency to wait before hedging
+     */
+    public static final double HedgeAfterAverageLatencies = 2;
+    public static final long MinHedgeDelayMillis = 100;
+    private static final Logger logger = LoggerFactory.getLogger(HedgedGet.class);
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Thali Hedged Get " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Hedges after {@link #HedgeAfterAverageLatencies} times the peer's average latency. If we haven't seen the peer
+     * answer yet we don't know what slow is so the request is just executed.
+     * @param httpClient
+     * @param get
+     * @return
+     * @throws IOException
+     */
+    public static HttpResponse execute(HttpClient httpClient, HttpGet get) throws IOException {
+        ThaliPeerStats peerStats = ThaliPeerStats.forPeer(get.getURI().getHost(), get.getURI().getPort());
+        double averageLatencyMillis = peerStats.getAverageLatencyMillis();
+        if (averageLatencyMillis < 0) {
+            return httpClient.execute(get);
+        }
+        long hedgeDelayMillis =
+                Math.max(MinHedgeDelayMillis, (long) (averageLatencyMillis * HedgeAfterAverageLatencies));
+        return execute(httpClient, get, hedgeDelayMillis);
+    }
+
+    /**
+     *
+     * @param httpClient
+     * @param get Its URI, headers and params are copied for the hedge
+     * @param hedgeDelayMillis How long to wait for get before sending the copy
+     * @return The first response, its entity has to be consumed as usual
+     * @throws IOException If both requests fail, the last failure
+     */
+    public static HttpResponse execute(HttpClient httpClient, HttpGet get, long hedgeDelayMillis)
+            throws IOException {
+        AtomicBoolean answered = new AtomicBoolean(false);
+        CompletionService<HttpResponse> completionService = new ExecutorCompletionService<HttpResponse>(executor);
+        Map<Future<HttpResponse>, HttpGet> running = new HashMap<Future<HttpResponse>, HttpGet>();
+        running.put(completionService.submit(new Attempt(httpClient, get, answered)), get);
+
+        IOException lastFailure = null;
+        try {
+            Future<HttpResponse> finished = completionService.poll(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+            if (finished == null) {
+                ThaliPeerStats peerStats = ThaliPeerStats.forPeer(get.getURI().getHost(), get.getURI().getPort());
+                if (peerStats.tryAcquireRetry()) {
+                    logger.debug("Hedging GET of " + get.getURI() + " after " + hedgeDelayMillis + "ms");
+                    HttpGet hedge = copy(get);
+                    running.put(completionService.submit(new Attempt(httpClient, hedge, answered)), hedge);
+                }
+                finished = completionService.take();
+            }
+
+            while (true) {
+                running.remove(finished);
+                try {
+                    HttpResponse response = finished.get();
+                    if (response != null) {
+                        return response;
+                    }
+                } catch (ExecutionException e) {
+                    lastFailure = e.getCause() instanceof IOException ?
+                            (IOException) e.getCause() :
+                            new IOException(e.getCause().toString());
+                }
+                if (running.isEmpty()) {
+                    throw lastFailure != null ?
+                            lastFailure :
+                            new IOException("Hedged GET of " + get.getURI() + " got no response");
+                }
+                finished = completionService.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + get.getURI());
+        } finally {
+            // Whatever is still running lost, tear it off its connection
+            answered.set(true);
+            for (HttpGet loser : running.values()) {
+                loser.abort();
+            }
+        }
+    }
+
+    private static HttpGet copy(HttpGet get) {
+        HttpGet copy = new HttpGet(get.getURI());
+        copy.setHeaders(get.getAllHeaders());
+        copy.setParams(get.getParams());
+        return copy;
+    }
+
+    /**
+     * Returns the response if it is the first one in, otherwise aborts and returns null.
+     */
+    private static class Attempt implements Callable<HttpResponse> {
+        private final HttpClient httpClient;
+        private final HttpGet request;
+        private final AtomicBoolean answered;
+
+        Attempt(HttpClient httpClient, HttpGet request, AtomicBoolean answered) {
+            this.httpClient = httpClient;
+            this.request = request;
+            this.answered = answered;
+        }
+
+        @Override
+        public HttpResponse call() throws IOException {
+            HttpResponse response = httpClient.execute(request);
+            if (answered.compareAndSet(false, true)) {
+                return response;
+            }
+            // Lost the race, we don't want the body and reading it to the end could take as long as the winner did
+            request.abort();
+            return null;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Getting a connection to a peer means a SOCKS connect (seconds for a hidden service) and a mutual TLS handshake,
+ * and normally the first replication request pays for all of that. This opens connections to the peer ahead of
+ * time and leaves them in the client's pool, then keeps them from timing out by sending a cheap GET of the server
+ * root over each of them every probe interval. Once no one has called {@link #touch()} for the idle timeout it stops
+ * probing and the pool's keep-alive handling closes the connections.
+ *
+ * A probe is just a request so the connections are opened by the client the normal way, through its proxy, socket
+ * factory and pool. They are only held open at the same time while a round of probes is running, which is what
+ * makes the pool open connections many of them rather than reusing one.
+ *
+ * The pool only keeps a connection as long as {@link CappedConnectionKeepAliveStrategy} allows for the peer's
+ * Keep-Alive timeout, so if that is shorter than the probe interval we probe sooner. A peer that times connections
+ * out too quickly to be worth probing (an old listener still closing them after a second) can't be kept warm, we
+ * log that and stop.
+ */
+public class HttpKeyConnectionWarmer {
+    /**
+     * Under both {@link CappedConnectionKeepAliveStrategy}'s cap and the listener's keep-alive timeout
+     */
+    public static final long DefaultProbeIntervalMillis = 15 * 1000;
+    public static final long DefaultIdleTimeoutMillis = 5 * 60 * 1000;
+    /**
+     * We won't probe more often than this to make up for a short peer keep-alive
+     */
+    public static final long MinProbeIntervalMillis = 1000;
+    private static final long probeTimeoutSeconds = 120;
+    private static final Logger logger = LoggerFactory.getLogger(HttpKeyConnectionWarmer.class);
+    private static final CappedConnectionKeepAliveStrategy keepAliveStrategy = new CappedConnectionKeepAliveStrategy();
+
+    private final HttpClient httpClient;
+    private final URI probeUri;
+    private final int connections;
+    private final long probeIntervalMillis;
+    private final long idleTimeoutMillis;
+    private final ExecutorService probeExecutor;
+    private final ScheduledExecutorService scheduler;
+    private volatile long lastTouched;
+    private volatile boolean stopped = false;
+    private volatile long peerKeepAliveMillis = -1;
+
+    public HttpKeyConnectionWarmer(HttpClient httpClient, HttpKeyURL target, int connections) {
+        this(httpClient, target, connections, DefaultProbeIntervalMillis, DefaultIdleTimeoutMillis);
+    }
+
+    /**
+     *
+     * @param httpClient The client whose pool should hold the connections, it must be able to reach target
+     * @param target Only the host and port are used
+     * @param connections How many connections to keep open, more than the pool allows per route won't help
+     * @param probeIntervalMillis
+     * @param idleTimeoutMillis How long after the last {@link #touch()} (or the start) to keep the connections warm
+     */
+    public HttpKeyConnectionWarmer(HttpClient httpClient, HttpKeyURL target, int connections,
+                                   long probeIntervalMillis, long idleTimeoutMillis) {
+        if (connections < 1) {
+            throw new IllegalArgumentException("connections must be at least 1");
+        }
+        this.httpClient = httpClient;
+        this.connections = connections;
+        this.probeIntervalMillis = probeIntervalMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        try {
+            probeUri = new URI("https", null, target.getHost(), target.getPort(), "/", null, null);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException("Could not build a probe URL for " + target, e);
+        }
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Thali Connection Warmer " + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        probeExecutor = Executors.newFixedThreadPool(connections, threadFactory);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * Opens the connections in the background and keeps probing them until the idle timeout or {@link #stop()}.
+     * @return this
+     */
+    public HttpKeyConnectionWarmer start() {
+        lastTouched = System.currentTimeMillis();
+        scheduleRound(0);
+        return this;
+    }
+
+    private void scheduleRound(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runRound();
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // stop() got in first
+        }
+    }
+
+    private void runRound() {
+        if (stopped) {
+            return;
+        }
+        if (System.currentTimeMillis() - lastTouched > idleTimeoutMillis) {
+            logger.debug("Connections to " + probeUri + " have been idle, no longer keeping them warm");
+            stop();
+            return;
+        }
+        probe();
+
+        long nextRoundMillis = probeIntervalMillis;
+        long keepAliveMillis = peerKeepAliveMillis;
+        if (keepAliveMillis >= 0 && keepAliveMillis <= probeIntervalMillis) {
+            // Probe while the connections are still in the pool
+            nextRoundMillis = keepAliveMillis / 2;
+            if (nextRoundMillis < MinProbeIntervalMillis) {
+                logger.debug(probeUri + " keeps idle connections for " + keepAliveMillis +
+                        "ms, too short to keep them warm");
+                stop();
+                return;
+            }
+        }
+        scheduleRound(nextRoundMillis);
+    }
+
+    /**
+     * Runs one round of probes, one per connection, all held open at once, and waits for them.
+     * @return How many of the probes succeeded, a round cut short by {@link #stop()} only counts the probes it ran
+     */
+    public int probe() {
+        final CountDownLatch allResponded = new CountDownLatch(connections);
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicLong shortestKeepAliveMillis = new AtomicLong(Long.MAX_VALUE);
+        List<Future<?>> probes = new ArrayList<Future<?>>(connections);
+        for (int i = 0; i < connections; ++i) {
+            Runnable probeTask = new Runnable() {
+                @Override
+                public void run() {
+                    HttpEntity entity = null;
+                    try {
+                        HttpResponse response = httpClient.execute(new HttpGet(probeUri));
+                        entity = response.getEntity();
+                        succeeded.incrementAndGet();
+                        long keepAliveMillis = keepAliveStrategy.getKeepAliveDuration(response, null);
+                        long shortest;
+                        while ((shortest = shortestKeepAliveMillis.get()) > keepAliveMillis &&
+                                shortestKeepAliveMillis.compareAndSet(shortest, keepAliveMillis) == false) {
+                        }
+                    } catch (IOException e) {
+                        logger.debug("Probe of " + probeUri + " failed", e);
+                    } finally {
+                        // Hang on to our connection until everyone has one, otherwise the probes just take turns
+                        // with the first connection
+                        allResponded.countDown();
+                        try {
+                            allResponded.await(probeTimeoutSeconds, TimeUnit.SECONDS);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        if (entity != null) {
+                            try {
+                                // Reading to the end is what hands the connection back to the pool
+                                EntityUtils.consume(entity);
+                            } catch (IOException e) {
+                                logger.debug("Could not finish reading probe of " + probeUri, e);
+                            }
+                        }
+                    }
+                }
+            };
+            try {
+                probes.add(probeExecutor.submit(probeTask));
+            } catch (RejectedExecutionException e) {
+                // Stopped part way through the round, the probes we did start won't find everyone to wait for
+                for (int unstarted = i; unstarted < connections; ++unstarted) {
+                    allResponded.countDown();
+                }
+                break;
+            }
+        }
+
+        for (Future<?> probe : probes) {
+            try {
+                probe.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                logger.debug("Probe of " + probeUri + " failed", e.getCause());
+            } catch (CancellationException e) {
+                // We were stopped
+            }
+        }
+        if (shortestKeepAliveMillis.get() != Long.MAX_VALUE) {
+            peerKeepAliveMillis = shortestKeepAliveMillis.get();
+        }
+        return succeeded.get();
+    }
+
+    /**
+     * @return How long the pool keeps the peer's connections after the last probe round, see
+     * {@link CappedConnectionKeepAliveStrategy}, or -1 if no probe has succeeded yet
+     */
+    public long getPeerKeepAliveMillis() {
+        return peerKeepAliveMillis;
+    }
+
+    /**
+     * Call whenever the peer gets used so the connections are kept warm for another idle timeout.
+     */
+    public void touch() {
+        lastTouched = System.currentTimeMillis();
+    }
+
+    /**
+     * Stops probing, the connections stay in the pool until the pool closes them.
+     */
+    public void stop() {
+        stopped = true;
+        scheduler.shutdown();
+        probeExecutor.shutdown();
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+}
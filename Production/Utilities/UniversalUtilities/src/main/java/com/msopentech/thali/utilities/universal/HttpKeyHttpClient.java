@@ -68,16 +68,26 @@ http://www.gnu.org/licenses/lgpl.html
 package com.msopentech.thali.utilities.universal;
 
 import com.msopentech.thali.toronionproxy.OsData;
+import org.apache.http.*;
+import org.apache.http.client.UserTokenHandler;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.conn.*;
 import org.apache.http.conn.params.ConnManagerParams;
 import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.scheme.*;
 import org.apache.http.impl.client.*;
 import org.apache.http.impl.conn.tsccm.*;
 import org.apache.http.params.*;
+import org.apache.http.protocol.HttpContext;
 
+import java.io.IOException;
 import java.net.*;
 import java.security.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Following the lead from NetCipher we need to hijack the createClientConnectionManager method in order to properly
@@ -87,43 +97,218 @@ public class HttpKeyHttpClient extends DefaultHttpClient {
     protected final Proxy proxy;
     protected final SchemeRegistry schemeRegistry;
     protected int torProxyRequestRetryCount = 10;
-    protected int maxConnections = 20;
+    private static final String requestStartAttribute = "com.msopentech.thali.requestStart";
+    public static final int DefaultMaxConnectionsPerRoute = 20;
+    public static final int DefaultMaxConnectionsTotal = 20;
+    protected int maxConnectionsPerRoute = DefaultMaxConnectionsPerRoute;
+    protected int maxConnectionsTotal = DefaultMaxConnectionsTotal;
+    protected final Map<HttpRoute, Integer> maxConnectionsForRoute = new HashMap<HttpRoute, Integer>();
+    protected ThreadSafeClientConnManager pool = null; // Only kept outside of Android, where it can be resized
+    protected ConnPerRouteBean connPerRoute = null;
+    protected SocksHandshake.Version socksVersion = SocksHandshake.Version.SOCKS4A;
+    protected boolean pipelineSocks5 = false;
+    protected SocksIsolationLanes socksIsolationLanes = null;
 
     public HttpKeyHttpClient(PublicKey serverPublicKey, KeyStore clientKeyStore, char[] clientKeyStorePassPhrase,
             Proxy proxy, HttpParams params) throws UnrecoverableKeyException, NoSuchAlgorithmException,
             KeyStoreException, KeyManagementException {
-        super(params);
+        this(HttpKeySSLSocketFactory.getSharedInstance(serverPublicKey, clientKeyStore, clientKeyStorePassPhrase),
+                null, proxy, params);
+    }
+
+    /**
+     *
+     * @param httpKeySSLSocketFactory Typically from {@link HttpKeySSLSocketFactory#getSharedInstance} so TLS sessions
+     *                                are resumed across clients
+     * @param connectionManager A connection manager to share with other clients, it must have been set up for the
+     *                          same socket factory and proxy. If null the client creates its own.
+     * @param proxy
+     * @param params
+     */
+    public HttpKeyHttpClient(HttpKeySSLSocketFactory httpKeySSLSocketFactory, ClientConnectionManager connectionManager,
+                             Proxy proxy, HttpParams params) {
+        super(connectionManager, params);
         schemeRegistry = new SchemeRegistry();
-        HttpKeySSLSocketFactory httpKeySSLSocketFactory = new HttpKeySSLSocketFactory(serverPublicKey, clientKeyStore,
-                clientKeyStorePassPhrase);
         schemeRegistry.register((new Scheme("https", httpKeySSLSocketFactory, 443)));
 
-        // Try to up retries to deal with how flakey the Tor Hidden Service channels seem to be.
-        // Note that modern Apache would set this via a Param but that Param doesn't seem to exist
-        // in Android land. This sucks because we can't be sure if the user is using the default
-        // retry handler or different one. And no, comparing getHttpRequestRetryHandler() against
-        // DefaultHttpRequestRetryHandler.INSTANCE doesn't work. :( In fact, INSTANCE isn't even available
-        // in Android.
+        // Pooled connections can be closed by the server while idle, check before reusing one rather than have the
+        // request fail or hang on it
+        HttpConnectionParams.setStaleCheckingEnabled(getParams(), true);
+
+        // Tor hidden service paths are flakey but retrying them immediately and over and over just makes things
+        // worse, so when going through a proxy retries back off and are budgeted per peer. Note that modern Apache
+        // would set this via a Param but that Param doesn't seem to exist in Android land, and we can't be sure if
+        // the user is using the default retry handler or a different one. Use setHttpRequestRetryHandler to plug in
+        // something else.
         if (proxy != null && this.getHttpRequestRetryHandler() instanceof DefaultHttpRequestRetryHandler) {
-            DefaultHttpRequestRetryHandler currentHandler =
-                    (DefaultHttpRequestRetryHandler) this.getHttpRequestRetryHandler();
-            if (currentHandler.getRetryCount() < torProxyRequestRetryCount) {
-                this.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(torProxyRequestRetryCount,
-                        true));
-            }
+            this.setHttpRequestRetryHandler(new ThaliHttpRequestRetryHandler(torProxyRequestRetryCount));
         }
 
+        addRequestInterceptor(new HttpRequestInterceptor() {
+            @Override
+            public void process(HttpRequest request, HttpContext context) {
+                context.setAttribute(requestStartAttribute, System.currentTimeMillis());
+            }
+        });
+        addResponseInterceptor(new HttpResponseInterceptor() {
+            @Override
+            public void process(HttpResponse response, HttpContext context) {
+                Long requestStart = (Long) context.getAttribute(requestStartAttribute);
+                ThaliPeerStats peerStats = ThaliHttpRequestRetryHandler.getPeerStats(context);
+                if (requestStart != null && peerStats != null) {
+                    peerStats.recordSuccess(System.currentTimeMillis() - requestStart);
+                }
+            }
+        });
+
         this.proxy = proxy;
     }
 
+    /**
+     * Picks how we talk to the SOCKS proxy, this has to be called before the client makes its first request.
+     * @param socksVersion
+     * @param pipelineSocks5 See {@link SocksHandshake#connect}
+     */
+    public void setSocksVersion(SocksHandshake.Version socksVersion, boolean pipelineSocks5) {
+        this.socksVersion = socksVersion;
+        this.pipelineSocks5 = pipelineSocks5;
+    }
+
+    /**
+     * Spreads the connections to each peer over lanesPerPeer Tor circuits, see {@link SocksIsolationLanes}. Like
+     * {@link #setSocksVersion} this has to be called before the client makes its first request.
+     * @param lanesPerPeer 0 turns isolation off, which is the default
+     */
+    public void setSocksIsolationLanes(int lanesPerPeer) {
+        socksIsolationLanes = lanesPerPeer == 0 ? null : new SocksIsolationLanes(lanesPerPeer);
+    }
+
+    /**
+     * Opens connections to target now and keeps them open while they are being used, see
+     * {@link HttpKeyConnectionWarmer}.
+     * @param target
+     * @param connections
+     * @return Call {@link HttpKeyConnectionWarmer#touch()} on it when using the peer, or stop it when done
+     */
+    public HttpKeyConnectionWarmer warmUp(HttpKeyURL target, int connections) {
+        return new HttpKeyConnectionWarmer(this, target, connections).start();
+    }
+
+    /**
+     * Runs an idempotent GET, sending a second copy if the first is slow, see {@link HedgedGet}.
+     * @param get
+     * @return
+     * @throws IOException
+     */
+    public HttpResponse executeHedged(HttpGet get) throws IOException {
+        return HedgedGet.execute(this, get);
+    }
+
+    @Override
+    protected ConnectionKeepAliveStrategy createConnectionKeepAliveStrategy() {
+        return new CappedConnectionKeepAliveStrategy();
+    }
+
+    /**
+     * The default handler makes the TLS client principal the connection's state and the pool only hands a stateful
+     * connection to requests asking for that same state, which ours never do. So with client certs every request
+     * would open a new connection. All the connections a client makes use the same client key anyway.
+     * @return
+     */
+    @Override
+    protected UserTokenHandler createUserTokenHandler() {
+        return new UserTokenHandler() {
+            @Override
+            public Object getUserToken(HttpContext context) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Sets the pool's limits, these apply to the pool this client creates for itself, not to one passed in to the
+     * constructor. On Android the total can't be changed once the client has made its first request.
+     * @param maxPerRoute For any route not given its own limit with {@link #setMaxConnectionsForRoute}
+     * @param maxTotal
+     */
+    public synchronized void setPoolLimits(int maxPerRoute, int maxTotal) {
+        maxConnectionsPerRoute = maxPerRoute;
+        maxConnectionsTotal = maxTotal;
+        if (connPerRoute != null) {
+            connPerRoute.setDefaultMaxPerRoute(maxPerRoute);
+        }
+        if (pool != null) {
+            pool.setDefaultMaxPerRoute(maxPerRoute);
+            pool.setMaxTotal(maxTotal);
+        }
+    }
+
+    /**
+     * Gives one route its own limit, e.g. the relay's one route to the local TDH needs many more connections than
+     * a replicator needs for any one of its peers.
+     * @param route
+     * @param max
+     */
+    public synchronized void setMaxConnectionsForRoute(HttpRoute route, int max) {
+        maxConnectionsForRoute.put(route, max);
+        if (connPerRoute != null) {
+            connPerRoute.setMaxForRoute(route, max);
+        }
+        if (pool != null) {
+            pool.setMaxForRoute(route, max);
+        }
+    }
+
+    /**
+     * {@link #setMaxConnectionsForRoute} for the route this client uses to reach host:port over https.
+     * @param host
+     * @param port
+     * @param max
+     */
+    public void setMaxConnectionsForPeer(String host, int port, int max) {
+        setMaxConnectionsForRoute(getRoute(host, port), max);
+    }
+
+    /**
+     * Our connections are always https and the SOCKS proxy, if any, is hidden in the connection operator so as far
+     * as the pool is concerned every route is direct.
+     * @param host
+     * @param port
+     * @return
+     */
+    public static HttpRoute getRoute(String host, int port) {
+        return new HttpRoute(new HttpHost(host, port, "https"), null, true);
+    }
+
+    /**
+     * @return Per route statistics for the pool this client is using, empty if it isn't one of ours
+     */
+    public List<ConnectionPoolStats> getPoolStats() {
+        ClientConnectionManager connectionManager = getConnectionManager();
+        if (connectionManager instanceof SharedClientConnectionManager) {
+            return ((SharedClientConnectionManager) connectionManager).getPoolStats();
+        }
+        if (connectionManager instanceof MonitoredClientConnectionManager) {
+            return ((MonitoredClientConnectionManager) connectionManager).getStats();
+        }
+        return new ArrayList<ConnectionPoolStats>();
+    }
+
     @Override
     protected ClientConnectionManager createClientConnectionManager() {
+        ClientConnectionManager connectionManager;
         switch(OsData.getOsType()) {
             case Android:
-                return androidCreateClientConnectionManager();
+                connectionManager = androidCreateClientConnectionManager();
+                break;
             default:
-                return javaCreateClientConnectionManager();
+                connectionManager = javaCreateClientConnectionManager();
         }
+        MonitoredClientConnectionManager monitoredConnectionManager =
+                new MonitoredClientConnectionManager(connectionManager);
+        monitoredConnectionManager.startEviction(MonitoredClientConnectionManager.DefaultEvictionIntervalMillis,
+                MonitoredClientConnectionManager.DefaultMaxIdleMillis);
+        return monitoredConnectionManager;
     }
 
     protected ClientConnectionManager javaCreateClientConnectionManager() {
@@ -147,13 +332,20 @@ public class HttpKeyHttpClient extends DefaultHttpClient {
             connManager = new ThreadSafeClientConnManager(schemeRegistry) {
                 @Override
                 protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
-                    return new HttpKeySocksProxyClientConnOperator(schreg, proxy);
+                    return new HttpKeySocksProxyClientConnOperator(schreg, proxy, socksVersion, pipelineSocks5,
+                            socksIsolationLanes);
                 }
             };
         }
 
-        connManager.setDefaultMaxPerRoute(maxConnections);
-        connManager.setMaxTotal(maxConnections);
+        synchronized (this) {
+            connManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connManager.setMaxTotal(maxConnectionsTotal);
+            for (Map.Entry<HttpRoute, Integer> routeLimit : maxConnectionsForRoute.entrySet()) {
+                connManager.setMaxForRoute(routeLimit.getKey(), routeLimit.getValue());
+            }
+            pool = connManager;
+        }
         return connManager;
     }
 
@@ -165,8 +357,13 @@ public class HttpKeyHttpClient extends DefaultHttpClient {
 
         ThreadSafeClientConnManager connManager;
         HttpParams httpParams = getParams();
-        httpParams.setParameter(ConnManagerParams.MAX_CONNECTIONS_PER_ROUTE, new ConnPerRouteBean(maxConnections));
-        httpParams.setParameter(ConnManagerParams.MAX_TOTAL_CONNECTIONS, maxConnections);
+        synchronized (this) {
+            // The pool keeps asking the bean so changes to it after this still count
+            connPerRoute = new ConnPerRouteBean(maxConnectionsPerRoute);
+            connPerRoute.setMaxForRoutes(maxConnectionsForRoute);
+            httpParams.setParameter(ConnManagerParams.MAX_CONNECTIONS_PER_ROUTE, connPerRoute);
+            httpParams.setParameter(ConnManagerParams.MAX_TOTAL_CONNECTIONS, maxConnectionsTotal);
+        }
 
         if (proxy == null) {
             connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry);
@@ -175,7 +372,8 @@ public class HttpKeyHttpClient extends DefaultHttpClient {
             connManager = new ThreadSafeClientConnManager(httpParams, schemeRegistry) {
                 @Override
                 protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schreg) {
-                    return new HttpKeySocksProxyClientConnOperator(schreg, proxy);
+                    return new HttpKeySocksProxyClientConnOperator(schreg, proxy, socksVersion, pipelineSocks5,
+                            socksIsolationLanes);
                 }
             };
         }
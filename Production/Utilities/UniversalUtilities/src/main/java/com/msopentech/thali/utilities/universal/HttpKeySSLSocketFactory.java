@@ -23,6 +23,9 @@ import java.net.*;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Unfortunately Android uses an outdated version of the Apache HTTPClient interfaces and equally unfortunately
@@ -31,8 +34,59 @@ import java.security.cert.X509Certificate;
  * directly from the SSLContext.
  */
 public class HttpKeySSLSocketFactory extends SSLSocketFactory {
+    /**
+     * How many TLS sessions each factory remembers so later connections to the same server can resume rather than
+     * do a full handshake.
+     */
+    public static final int ClientSessionCacheSize = 128;
+    /**
+     * How long, in seconds, a remembered TLS session may be resumed.
+     */
+    public static final int ClientSessionTimeoutSeconds = 4 * 60 * 60;
+    protected static final int sharedInstanceCacheSize = 16;
+
+    private static final Map<SharedInstanceKey, HttpKeySSLSocketFactory> sharedInstances =
+            new LinkedHashMap<SharedInstanceKey, HttpKeySSLSocketFactory>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<SharedInstanceKey, HttpKeySSLSocketFactory> eldest) {
+                    return size() > sharedInstanceCacheSize;
+                }
+            };
+
     protected SSLContext sslContext;
 
+    /**
+     * Returns a factory shared by everyone talking to the same server with the same client key store. Sharing the
+     * factory shares its SSLContext and so its TLS session cache, which is what lets a new connection resume a
+     * session instead of paying for a full RSA handshake.
+     *
+     * The client key store is matched by identity and its keys are read when the factory is first built, so
+     * changing the keys in a key store that is already in use needs {@link #clearSharedInstances()}.
+     * @param serverPublicKey If null then the server won't be validated
+     * @param clientKeyStore
+     * @param clientPassPhrase
+     * @return
+     */
+    public static HttpKeySSLSocketFactory getSharedInstance(PublicKey serverPublicKey, KeyStore clientKeyStore,
+                                                            char[] clientPassPhrase)
+            throws UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
+        SharedInstanceKey sharedInstanceKey = new SharedInstanceKey(serverPublicKey, clientKeyStore, clientPassPhrase);
+        synchronized (sharedInstances) {
+            HttpKeySSLSocketFactory httpKeySSLSocketFactory = sharedInstances.get(sharedInstanceKey);
+            if (httpKeySSLSocketFactory == null) {
+                httpKeySSLSocketFactory = new HttpKeySSLSocketFactory(serverPublicKey, clientKeyStore, clientPassPhrase);
+                sharedInstances.put(sharedInstanceKey, httpKeySSLSocketFactory);
+            }
+            return httpKeySSLSocketFactory;
+        }
+    }
+
+    public static void clearSharedInstances() {
+        synchronized (sharedInstances) {
+            sharedInstances.clear();
+        }
+    }
+
     public HttpKeySSLSocketFactory(final PublicKey serverPublicKey,
                                    final KeyStore clientKeyStore, final char[] clientPassPhrase)
             throws UnrecoverableKeyException, NoSuchAlgorithmException, KeyStoreException, KeyManagementException {
@@ -71,6 +125,11 @@ public class HttpKeySSLSocketFactory extends SSLSocketFactory {
 
         sslContext = SSLContext.getInstance("TLS");
         sslContext.init(keyManagerFactory.getKeyManagers(), new TrustManager[] { trustManager }, new SecureRandom());
+        SSLSessionContext clientSessionContext = sslContext.getClientSessionContext();
+        if (clientSessionContext != null) {
+            clientSessionContext.setSessionCacheSize(ClientSessionCacheSize);
+            clientSessionContext.setSessionTimeout(ClientSessionTimeoutSeconds);
+        }
         this.setHostnameVerifier(SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
     }
 
@@ -102,4 +161,36 @@ public class HttpKeySSLSocketFactory extends SSLSocketFactory {
         prepareSocket(sock);
         return sock;
     }
+
+    private static class SharedInstanceKey {
+        private final String serverKeyFingerprint;
+        private final KeyStore clientKeyStore;
+        private final char[] clientPassPhrase;
+
+        SharedInstanceKey(PublicKey serverPublicKey, KeyStore clientKeyStore, char[] clientPassPhrase) {
+            this.serverKeyFingerprint =
+                    serverPublicKey == null ? null : ThaliPublicKeyComparer.getKeyFingerprint(serverPublicKey);
+            this.clientKeyStore = clientKeyStore;
+            this.clientPassPhrase = clientPassPhrase == null ? null : clientPassPhrase.clone();
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if ((object instanceof SharedInstanceKey) == false) {
+                return false;
+            }
+            SharedInstanceKey compareTo = (SharedInstanceKey) object;
+            return clientKeyStore == compareTo.clientKeyStore &&
+                    (serverKeyFingerprint == null ?
+                            compareTo.serverKeyFingerprint == null :
+                            serverKeyFingerprint.equals(compareTo.serverKeyFingerprint)) &&
+                    Arrays.equals(clientPassPhrase, compareTo.clientPassPhrase);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (serverKeyFingerprint == null ? 0 : serverKeyFingerprint.hashCode()) +
+                    System.identityHashCode(clientKeyStore);
+        }
+    }
 }
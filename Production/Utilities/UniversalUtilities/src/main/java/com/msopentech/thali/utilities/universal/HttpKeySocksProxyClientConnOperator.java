@@ -80,7 +80,7 @@ import java.net.*;
 /**
  * This is all but copied and pasted from SocksProxyClientConnOperator in libnetcipher from the Guardian Project.
  * It's job is to put in a socket underneath the HttpKeySSLSocketFactory to properly handle talking to
- * Tor's SOCKS 4a proxy.
+ * Tor's SOCKS proxy. The SOCKS conversation itself is in {@link SocksHandshake}.
  */
 public class HttpKeySocksProxyClientConnOperator extends DefaultClientConnectionOperator {
 
@@ -88,8 +88,26 @@ public class HttpKeySocksProxyClientConnOperator extends DefaultClientConnection
     private static final int READ_TIMEOUT_MILLISECONDS = 60000;
 
     protected final Proxy proxy;
+    protected final SocksHandshake.Version socksVersion;
+    protected final boolean pipelineSocks5;
+    protected final SocksIsolationLanes isolationLanes;
 
     public HttpKeySocksProxyClientConnOperator(SchemeRegistry registry, Proxy proxy) {
+        this(registry, proxy, SocksHandshake.Version.SOCKS4A, false, null);
+    }
+
+    /**
+     *
+     * @param registry
+     * @param proxy
+     * @param socksVersion
+     * @param pipelineSocks5 See {@link SocksHandshake#connect}, Tor's SOCKS port will take it
+     * @param isolationLanes If not null each new connection uses the next lane's credentials so connections to the
+     *                       same peer get spread over several Tor circuits
+     */
+    public HttpKeySocksProxyClientConnOperator(SchemeRegistry registry, Proxy proxy,
+                                               SocksHandshake.Version socksVersion, boolean pipelineSocks5,
+                                               SocksIsolationLanes isolationLanes) {
         super(registry);
 
         if (proxy == null || proxy.type() != Proxy.Type.SOCKS) {
@@ -97,6 +115,9 @@ public class HttpKeySocksProxyClientConnOperator extends DefaultClientConnection
         }
 
         this.proxy = proxy;
+        this.socksVersion = socksVersion;
+        this.pipelineSocks5 = pipelineSocks5;
+        this.isolationLanes = isolationLanes;
     }
 
     // Derived from the original DefaultClientConnectionOperator.java in Apache HttpClient 4.2
@@ -126,45 +147,24 @@ public class HttpKeySocksProxyClientConnOperator extends DefaultClientConnection
             int port = scheme.resolvePort(target.getPort());
             String host = target.getHostName();
 
-            // Perform explicit SOCKS4a connection request. SOCKS4a supports remote host name resolution
-            // (i.e., Tor resolves the hostname, which may be an onion address).
+            // Perform an explicit SOCKS connection request, both SOCKS4a and SOCKS5 support remote host name
+            // resolution (i.e., Tor resolves the hostname, which may be an onion address).
             // The Android (Apache Harmony) Socket class appears to support only SOCKS4 and throws an
             // exception on an address created using INetAddress.createUnresolved() -- so the typical
             // technique for using Java SOCKS4a/5 doesn't appear to work on Android:
             // https://android.googlesource.com/platform/libcore/+/master/luni/src/main/java/java/net/PlainSocketImpl.java
             // See also: http://www.mit.edu/~foley/TinFoil/src/tinfoil/TorLib.java, for a similar implementation
-
-            // From http://en.wikipedia.org/wiki/SOCKS#SOCKS4a:
-            //
-            // field 1: SOCKS version number, 1 byte, must be 0x04 for this version
-            // field 2: command code, 1 byte:
-            //     0x01 = establish a TCP/IP stream connection
-            //     0x02 = establish a TCP/IP port binding
-            // field 3: network byte order port number, 2 bytes
-            // field 4: deliberate invalid IP address, 4 bytes, first three must be 0x00 and the last one must not be 0x00
-            // field 5: the user ID string, variable length, terminated with a null (0x00)
-            // field 6: the domain name of the host we want to contact, variable length, terminated with a null (0x00)
-
             socket = new Socket();
             conn.opening(socket, target);
             socket.setSoTimeout(READ_TIMEOUT_MILLISECONDS);
             socket.connect(proxy.address(), CONNECT_TIMEOUT_MILLISECONDS);
 
-            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-            outputStream.write((byte)0x04);
-            outputStream.write((byte)0x01);
-            outputStream.writeShort((short)port);
-            outputStream.writeInt(0x01);
-            outputStream.write((byte)0x00);
-            outputStream.write(host.getBytes());
-            outputStream.write((byte)0x00);
-
-            DataInputStream inputStream = new DataInputStream(socket.getInputStream());
-            if (inputStream.readByte() != (byte)0x00 || inputStream.readByte() != (byte)0x5a) {
-                throw new IOException("SOCKS4a connect failed");
+            if (isolationLanes == null) {
+                SocksHandshake.connect(socket, host, port, socksVersion, null, null, pipelineSocks5);
+            } else {
+                SocksHandshake.connect(socket, host, port, socksVersion, isolationLanes.nextUsername(host, port),
+                        isolationLanes.getPassword(), pipelineSocks5);
             }
-            inputStream.readShort();
-            inputStream.readInt();
 
             // In the NetCipher code we cast to SchemeLayeredSocketFactory and call createLayeredSocket which amongst
             // other things takes 'params' as an argument. But none of this is supported in Android. When I looked in
@@ -13,19 +13,47 @@ See the Apache 2 License for the specific language governing permissions and lim
 
 package com.msopentech.thali.utilities.universal;
 
+import org.bouncycastle.util.encoders.Base64;
+
 import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class HttpKeyURL {
     public static final String httpKeySchemeName = "httpkey";
     public static final String rsaKeyType = "rsapublickey";
+    /**
+     * EC keys (always P-256) are written as the base64url encoded, unpadded, X.509 SubjectPublicKeyInfo
+     */
+    public static final String ecKeyType = "ecpublickey";
+    private static final int keyCacheSize = 256;
+
+    // The replicator and the relay keep building URLs for the same few peers, so we hold on to recently parsed keys
+    // and recently encoded key strings rather than redo the BigInteger and KeyFactory work every time.
+    private static final Map<String, PublicKey> parsedKeys =
+            new LinkedHashMap<String, PublicKey>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PublicKey> eldest) {
+                    return size() > keyCacheSize;
+                }
+            };
+    private static final Map<PublicKey, String> encodedKeys =
+            new LinkedHashMap<PublicKey, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<PublicKey, String> eldest) {
+                    return size() > keyCacheSize;
+                }
+            };
 
     private final String host;
     private final Integer port;
@@ -34,6 +62,7 @@ public class HttpKeyURL {
     private final String query;
     private final String fragment;
     private final String stringRepresentationOfUri;
+    private final String keyFingerprint;
 
     public HttpKeyURL(String httpKeyUrlString) throws IllegalArgumentException {
         try {
@@ -54,7 +83,8 @@ public class HttpKeyURL {
             int locationOfPathStart = preprocessedPath.indexOf('/');
             String identityKeyString =
                     locationOfPathStart == -1 ? preprocessedPath : preprocessedPath.substring(0, locationOfPathStart);
-            serverPublicKey = rsaKeyStringToRsaPublicKey(identityKeyString);
+            serverPublicKey = httpKeyStringToPublicKey(identityKeyString);
+            keyFingerprint = ThaliPublicKeyComparer.getKeyFingerprint(serverPublicKey);
             // The path, if it exists, starts with a '/', so the second term of the or checks if the path contains
             // more than just the '/' character.
             path = locationOfPathStart == -1 || preprocessedPath.substring(locationOfPathStart).length() <= 1 ?
@@ -79,18 +109,38 @@ public class HttpKeyURL {
      */
     public HttpKeyURL(PublicKey serverPublicKey, String host, int port, String path, String query, String fragment)
             throws IllegalArgumentException {
-        if ((serverPublicKey instanceof RSAPublicKey) == false) {
-            throw new IllegalArgumentException("We only support serverPublicKey of type RSAPublicKey at the moment.");
+        this(serverPublicKey, host, port, path, query, fragment, false);
+    }
+
+    /**
+     * By default RSA keys go into URLs in the legacy exponent.modulus decimal form, which every peer can read. Once
+     * all the peers a URL is meant for understand it you can ask for the compact form, see
+     * {@link #rsaKeyToCompactHttpKeyString(java.security.interfaces.RSAPublicKey)}, which is about 400 characters
+     * instead of 620. Parsing always accepts both.
+     * @param serverPublicKey
+     * @param host
+     * @param port
+     * @param path - the value after the leading '/' in the URL, can be set to null
+     * @param query can be set to null
+     * @param fragment can be set to null
+     * @param compactRsaKeyEncoding If true and serverPublicKey is an RSA key the URL uses the compact form
+     * @throws IllegalArgumentException
+     */
+    public HttpKeyURL(PublicKey serverPublicKey, String host, int port, String path, String query, String fragment,
+                      boolean compactRsaKeyEncoding) throws IllegalArgumentException {
+        if (ThaliPublicKeyComparer.supportedKeyType(serverPublicKey) == false) {
+            throw new IllegalArgumentException("We only support RSA and P-256 EC keys for serverPublicKey.");
         }
 
         this.host = host;
         this.port = port;
         this.serverPublicKey = serverPublicKey;
+        this.keyFingerprint = ThaliPublicKeyComparer.getKeyFingerprint(serverPublicKey);
         this.path = path;
         this.query = query;
         this.fragment = fragment;
 
-        String httpKeyPath = "/" + rsaKeyToHttpKeyString((RSAPublicKey) getServerPublicKey()) + "/" +
+        String httpKeyPath = "/" + publicKeyToHttpKeyString(getServerPublicKey(), compactRsaKeyEncoding) + "/" +
                 (getPath() == null ? "" : getPath());
 
         try {
@@ -116,13 +166,136 @@ public class HttpKeyURL {
 
     public String toString() { return stringRepresentationOfUri; }
 
+    /**
+     * @return See {@link ThaliPublicKeyComparer#getKeyFingerprint(java.security.PublicKey)}
+     */
+    public String getKeyFingerprint() { return keyFingerprint; }
+
+    /**
+     * Encodes the key the way it appears in a httpkey URL, picking the format by key type. RSA keys always get the
+     * legacy form here since this is also what key documents are named after, so it has to be stable.
+     * @param publicKey
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static String publicKeyToHttpKeyString(PublicKey publicKey) throws IllegalArgumentException {
+        synchronized (encodedKeys) {
+            String encodedKey = encodedKeys.get(publicKey);
+            if (encodedKey != null) {
+                return encodedKey;
+            }
+        }
+
+        String encodedKey;
+        if (publicKey instanceof RSAPublicKey) {
+            encodedKey = rsaKeyToHttpKeyString((RSAPublicKey) publicKey);
+        } else if (publicKey instanceof ECPublicKey && ThaliPublicKeyComparer.supportedKeyType(publicKey)) {
+            encodedKey = ecKeyToHttpKeyString((ECPublicKey) publicKey);
+        } else {
+            throw new IllegalArgumentException("Unsupported key type");
+        }
+
+        synchronized (encodedKeys) {
+            encodedKeys.put(publicKey, encodedKey);
+        }
+        return encodedKey;
+    }
+
+    /**
+     * @param publicKey
+     * @param compactRsa If true RSA keys get the compact form
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static String publicKeyToHttpKeyString(PublicKey publicKey, boolean compactRsa)
+            throws IllegalArgumentException {
+        if (compactRsa && publicKey instanceof RSAPublicKey) {
+            return rsaKeyToCompactHttpKeyString((RSAPublicKey) publicKey);
+        }
+        return publicKeyToHttpKeyString(publicKey);
+    }
+
+    /**
+     * Takes the part of the httpkey url that encodes the server's public key, of any type we support, and turns it
+     * into a PublicKey object.
+     * @param keyValue
+     * @return
+     * @throws IllegalArgumentException
+     */
+    public static PublicKey httpKeyStringToPublicKey(String keyValue) throws IllegalArgumentException {
+        if (keyValue == null) {
+            throw new IllegalArgumentException("No key");
+        }
+
+        synchronized (parsedKeys) {
+            PublicKey publicKey = parsedKeys.get(keyValue);
+            if (publicKey != null) {
+                return publicKey;
+            }
+        }
+
+        PublicKey publicKey;
+        if (keyValue.startsWith(ecKeyType + ":")) {
+            publicKey = ecKeyStringToEcPublicKey(keyValue);
+        } else if (keyValue.startsWith(rsaKeyType + ":")) {
+            publicKey = rsaKeyStringToRsaPublicKey(keyValue);
+        } else {
+            throw new IllegalArgumentException("Unsupported key type in: " + keyValue);
+        }
+
+        synchronized (parsedKeys) {
+            parsedKeys.put(keyValue, publicKey);
+        }
+        return publicKey;
+    }
+
+    public static String ecKeyToHttpKeyString(ECPublicKey publicKey) {
+        assert publicKey != null;
+        return ecKeyType + ":" + base64UrlEncode(publicKey.getEncoded());
+    }
+
+    public static ECPublicKey ecKeyStringToEcPublicKey(String ecKeyValue) throws IllegalArgumentException {
+        assert ecKeyValue != null && ecKeyValue.startsWith(ecKeyType + ":");
+
+        PublicKey publicKey;
+        try {
+            byte[] encodedKey = base64UrlDecode(ecKeyValue.substring(ecKeyType.length() + 1));
+            publicKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encodedKey));
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        } catch (RuntimeException e) {
+            // Bad base64 comes back as one of several runtime exceptions depending on the BouncyCastle version
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        }
+
+        if ((publicKey instanceof ECPublicKey) == false || ThaliPublicKeyComparer.supportedKeyType(publicKey) == false) {
+            throw new IllegalArgumentException("Only P-256 EC keys are supported, got: " + ecKeyValue);
+        }
+
+        return (ECPublicKey) publicKey;
+    }
+
     public static String rsaKeyToHttpKeyString(RSAPublicKey publicKey) {
         assert publicKey != null;
         return rsaKeyType + ":" + publicKey.getPublicExponent().toString() + "." + publicKey.getModulus().toString();
     }
 
+    /**
+     * The compact form is the base64url encoded, unpadded, X.509 SubjectPublicKeyInfo, just like EC keys. It can't
+     * be mistaken for the legacy form because base64url never contains a '.'.
+     * @param publicKey
+     * @return
+     */
+    public static String rsaKeyToCompactHttpKeyString(RSAPublicKey publicKey) {
+        assert publicKey != null;
+        return rsaKeyType + ":" + base64UrlEncode(publicKey.getEncoded());
+    }
+
     /**
      * Takes the part of the httpkey url that encodes the server's public key and turns it into a RSAPublicKey object.
+     * Both the legacy and the compact form are accepted.
      * @param rsaKeyValue
      * @return
      * @throws IllegalArgumentException
@@ -130,6 +303,10 @@ public class HttpKeyURL {
     public static RSAPublicKey rsaKeyStringToRsaPublicKey(String rsaKeyValue) throws IllegalArgumentException {
         assert rsaKeyValue != null && rsaKeyValue.length() > 1 && rsaKeyValue.startsWith(rsaKeyType + ":");
 
+        if (rsaKeyValue.indexOf('.') == -1) {
+            return compactRsaKeyStringToRsaPublicKey(rsaKeyValue.substring(rsaKeyType.length() + 1));
+        }
+
         String[] splitString = rsaKeyValue.substring(rsaKeyType.length() + 1).split("\\.");
         if (splitString.length != 2) {
             throw new IllegalArgumentException("rsaKeyValue must have a single dot, instead it had: " + rsaKeyValue);
@@ -146,18 +323,56 @@ public class HttpKeyURL {
         }
     }
 
-    public boolean equals(HttpKeyURL secondKey) {
+    private static RSAPublicKey compactRsaKeyStringToRsaPublicKey(String encodedKey) {
+        PublicKey publicKey;
         try {
-            return secondKey != null && getHost().equals(secondKey.getHost()) && (getPort() == secondKey.getPort()) &&
-                    ThaliPublicKeyComparer.RsaPublicKeyComparer(
-                            (RSAPublicKey)getServerPublicKey(),
-                            (RSAPublicKey)secondKey.getServerPublicKey()) &&
-                    nullOrEqual(getPath(), secondKey.getPath()) && nullOrEqual(getQuery(), secondKey.getQuery()) &&
-                    nullOrEqual(getFragment(), secondKey.getFragment()) && toString().equals(secondKey.toString()) &&
-                    createHttpsUrl().equals(secondKey.createHttpsUrl());
-        } catch (URISyntaxException e) {
+            publicKey = KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(base64UrlDecode(encodedKey)));
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("can't process submitted key syntax", e);
+        }
+
+        if ((publicKey instanceof RSAPublicKey) == false) {
+            throw new IllegalArgumentException("Encoded key is not an RSA key");
+        }
+        return (RSAPublicKey) publicKey;
+    }
+
+    public boolean equals(HttpKeyURL secondKey) {
+        return equals((Object) secondKey);
+    }
+
+    /**
+     * Two URLs are equal if they point at the same place on a server with the same key, it doesn't matter which
+     * key encoding or escaping produced them.
+     * @param object
+     * @return
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if ((object instanceof HttpKeyURL) == false) {
             return false;
         }
+        HttpKeyURL secondKey = (HttpKeyURL) object;
+        return getPort() == secondKey.getPort() && getKeyFingerprint().equals(secondKey.getKeyFingerprint()) &&
+                getHost().equals(secondKey.getHost()) && nullOrEqual(getPath(), secondKey.getPath()) &&
+                nullOrEqual(getQuery(), secondKey.getQuery()) && nullOrEqual(getFragment(), secondKey.getFragment());
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = keyFingerprint.hashCode();
+        hash = 31 * hash + host.hashCode();
+        hash = 31 * hash + port;
+        hash = 31 * hash + (path == null ? 0 : path.hashCode());
+        hash = 31 * hash + (query == null ? 0 : query.hashCode());
+        return 31 * hash + (fragment == null ? 0 : fragment.hashCode());
     }
 
     /**
@@ -172,4 +387,22 @@ public class HttpKeyURL {
     private boolean nullOrEqual(String first, String second) {
         return first == null ? second == null : first.equals(second);
     }
+
+    static String base64UrlEncode(byte[] bytes) {
+        String base64 = Base64.toBase64String(bytes);
+        int end = base64.length();
+        while (end > 0 && base64.charAt(end - 1) == '=') {
+            end--;
+        }
+        return base64.substring(0, end).replace('+', '-').replace('/', '_');
+    }
+
+    static byte[] base64UrlDecode(String base64Url) {
+        StringBuilder base64 = new StringBuilder(base64Url.length() + 2);
+        base64.append(base64Url.replace('-', '+').replace('_', '/'));
+        while (base64.length() % 4 != 0) {
+            base64.append('=');
+        }
+        return Base64.decode(base64.toString());
+    }
 }
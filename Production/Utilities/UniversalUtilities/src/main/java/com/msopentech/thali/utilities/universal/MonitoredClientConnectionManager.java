@@ -0,0 +1,239 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Wraps a connection manager to keep per route statistics (see {@link ConnectionPoolStats}) and to close idle and
+ * expired connections in the background, which the pools we use otherwise only do when someone asks for a
+ * connection.
+ *
+ * The statistics come from watching connections go out and come back rather than from the pool itself, the pool on
+ * Android doesn't tell us much. Only the idle count has to come from the pool and we only have it for a
+ * {@link ThreadSafeClientConnManager}.
+ */
+public class MonitoredClientConnectionManager implements ClientConnectionManager {
+    public static final long DefaultEvictionIntervalMillis = 10 * 1000;
+    /**
+     * Longer than {@link HttpKeyConnectionWarmer#DefaultProbeIntervalMillis} so we don't close warmed connections,
+     * anything the server will have closed is caught by the keep-alive expiry anyway
+     */
+    public static final long DefaultMaxIdleMillis = 30 * 1000;
+
+    private static final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Thali Connection Evictor");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    protected final ClientConnectionManager connectionManager;
+    private final ConcurrentMap<HttpRoute, RouteStats> routeStats = new ConcurrentHashMap<HttpRoute, RouteStats>();
+    private final Map<ManagedClientConnection, HttpRoute> leasedConnections =
+            new IdentityHashMap<ManagedClientConnection, HttpRoute>();
+    private ScheduledFuture<?> eviction = null;
+
+    private static class RouteStats {
+        final AtomicInteger leased = new AtomicInteger();
+        final AtomicInteger pending = new AtomicInteger();
+        long leases = 0;
+        long totalWaitMillis = 0;
+        long maxWaitMillis = 0;
+
+        synchronized void recordLease(long waitMillis) {
+            leased.incrementAndGet();
+            leases++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+        }
+    }
+
+    /**
+     * Static so it doesn't hold on to the MonitoredClientConnectionManager
+     */
+    private static class Eviction implements Runnable {
+        private final WeakReference<ClientConnectionManager> connectionManager;
+        private final long maxIdleMillis;
+
+        Eviction(ClientConnectionManager connectionManager, long maxIdleMillis) {
+            this.connectionManager = new WeakReference<ClientConnectionManager>(connectionManager);
+            this.maxIdleMillis = maxIdleMillis;
+        }
+
+        @Override
+        public void run() {
+            ClientConnectionManager manager = connectionManager.get();
+            if (manager == null) {
+                // Throwing is how a periodic task takes itself off the schedule
+                throw new CancellationException("Connection manager is gone");
+            }
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public MonitoredClientConnectionManager(ClientConnectionManager connectionManager) {
+        assert connectionManager != null;
+        this.connectionManager = connectionManager;
+    }
+
+    public ClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * Starts closing expired connections, and those idle for longer than maxIdleMillis, every intervalMillis. The
+     * evictor only holds on to us weakly so a client that is dropped without being shut down can still be collected.
+     * @param intervalMillis
+     * @param maxIdleMillis
+     */
+    public synchronized void startEviction(long intervalMillis, long maxIdleMillis) {
+        stopEviction();
+        eviction = evictor.scheduleWithFixedDelay(new Eviction(connectionManager, maxIdleMillis), intervalMillis,
+                intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopEviction() {
+        if (eviction != null) {
+            eviction.cancel(false);
+            eviction = null;
+        }
+    }
+
+    /**
+     * @param route
+     * @return How the route is doing, all zeros if we've never seen it
+     */
+    public ConnectionPoolStats getStats(HttpRoute route) {
+        RouteStats stats = routeStats.get(route);
+        if (stats == null) {
+            return new ConnectionPoolStats(route, 0, 0, getAvailable(route, 0), 0, 0, 0);
+        }
+        int leased = stats.leased.get();
+        synchronized (stats) {
+            return new ConnectionPoolStats(route, leased, stats.pending.get(), getAvailable(route, leased),
+                    stats.leases, stats.totalWaitMillis, stats.maxWaitMillis);
+        }
+    }
+
+    /**
+     * @return Stats for every route that has asked for a connection
+     */
+    public List<ConnectionPoolStats> getStats() {
+        List<ConnectionPoolStats> allStats = new ArrayList<ConnectionPoolStats>();
+        for (HttpRoute route : routeStats.keySet()) {
+            allStats.add(getStats(route));
+        }
+        return allStats;
+    }
+
+    private int getAvailable(HttpRoute route, int leased) {
+        if (connectionManager instanceof ThreadSafeClientConnManager == false) {
+            return -1;
+        }
+        return Math.max(0, ((ThreadSafeClientConnManager) connectionManager).getConnectionsInPool(route) - leased);
+    }
+
+    private RouteStats getRouteStats(HttpRoute route) {
+        RouteStats stats = routeStats.get(route);
+        if (stats == null) {
+            RouteStats newStats = new RouteStats();
+            stats = routeStats.putIfAbsent(route, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public SchemeRegistry getSchemeRegistry() {
+        return connectionManager.getSchemeRegistry();
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(final HttpRoute route, Object state) {
+        final ClientConnectionRequest request = connectionManager.requestConnection(route, state);
+        final RouteStats stats = getRouteStats(route);
+        return new ClientConnectionRequest() {
+            @Override
+            public ManagedClientConnection getConnection(long timeout, TimeUnit tunit)
+                    throws InterruptedException, ConnectionPoolTimeoutException {
+                long start = System.currentTimeMillis();
+                stats.pending.incrementAndGet();
+                try {
+                    ManagedClientConnection connection = request.getConnection(timeout, tunit);
+                    stats.recordLease(System.currentTimeMillis() - start);
+                    synchronized (leasedConnections) {
+                        leasedConnections.put(connection, route);
+                    }
+                    return connection;
+                } finally {
+                    stats.pending.decrementAndGet();
+                }
+            }
+
+            @Override
+            public void abortRequest() {
+                request.abortRequest();
+            }
+        };
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+        HttpRoute route;
+        synchronized (leasedConnections) {
+            route = leasedConnections.remove(conn);
+        }
+        if (route != null) {
+            getRouteStats(route).leased.decrementAndGet();
+        }
+        connectionManager.releaseConnection(conn, validDuration, timeUnit);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        connectionManager.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    public void shutdown() {
+        stopEviction();
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.SchemeRegistry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection manager handed to several HttpClients at once. Couchbase's replicator creates an HttpClient for
+ * each piece of work and shuts its connection manager down when it is done, which would close the pool out from
+ * under everyone else. So shutdown() from a client is ignored and the pool is only shut down by whoever owns it
+ * through {@link #shutdownShared()}.
+ */
+public class SharedClientConnectionManager implements ClientConnectionManager {
+    protected final ClientConnectionManager connectionManager;
+
+    public SharedClientConnectionManager(ClientConnectionManager connectionManager) {
+        assert connectionManager != null;
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public SchemeRegistry getSchemeRegistry() {
+        return connectionManager.getSchemeRegistry();
+    }
+
+    @Override
+    public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+        return connectionManager.requestConnection(route, state);
+    }
+
+    @Override
+    public void releaseConnection(ManagedClientConnection conn, long validDuration, TimeUnit timeUnit) {
+        connectionManager.releaseConnection(conn, validDuration, timeUnit);
+    }
+
+    @Override
+    public void closeIdleConnections(long idletime, TimeUnit tunit) {
+        connectionManager.closeIdleConnections(idletime, tunit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    /**
+     * Doesn't shut anything down, see the class comment, it just takes the chance to drop expired connections.
+     */
+    @Override
+    public void shutdown() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    /**
+     * @return Per route statistics if the pool is a {@link MonitoredClientConnectionManager}, otherwise empty
+     */
+    public List<ConnectionPoolStats> getPoolStats() {
+        if (connectionManager instanceof MonitoredClientConnectionManager) {
+            return ((MonitoredClientConnectionManager) connectionManager).getStats();
+        }
+        return new ArrayList<ConnectionPoolStats>();
+    }
+
+    public void shutdownShared() {
+        connectionManager.shutdown();
+    }
+}
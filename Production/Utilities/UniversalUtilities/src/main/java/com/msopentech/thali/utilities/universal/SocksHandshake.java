@@ -0,0 +1,238 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Does the client side of a SOCKS CONNECT on a socket that is already connected to the proxy. Host names are always
+ * sent to the proxy to resolve, which is the only way to reach an onion address and keeps DNS off the local network.
+ *
+ * Each request is put together in a buffer and sent with one write on a socket with Nagle turned off, writing it a
+ * field at a time can mean a handful of tiny segments to the proxy. For SOCKS5 the greeting, the username/password
+ * sub-negotiation and the CONNECT request can also be pipelined into that one write, we only ever offer one method so
+ * the proxy's choice is known in advance. Not every proxy will read ahead like that though, so it is optional.
+ *
+ * We don't pipeline the TLS ClientHello behind the CONNECT. On Android the TLS socket is layered straight onto the
+ * socket's file descriptor so we'd have no place to pick the proxy's reply out of the stream, and a failed CONNECT
+ * would show up as a confusing TLS error.
+ */
+public class SocksHandshake {
+    public enum Version { SOCKS4A, SOCKS5 }
+
+    private static final byte Socks4Version = 0x04;
+    private static final byte Socks4Granted = 0x5a;
+    private static final byte Socks5Version = 0x05;
+    private static final byte Socks5NoAuthentication = 0x00;
+    private static final byte Socks5UsernamePassword = 0x02;
+    private static final byte Socks5NoAcceptableMethods = (byte) 0xff;
+    private static final byte Socks5UsernamePasswordVersion = 0x01;
+    private static final byte Socks5Succeeded = 0x00;
+    private static final byte SocksConnect = 0x01;
+    private static final byte Socks5AddressIPv4 = 0x01;
+    private static final byte Socks5AddressDomainName = 0x03;
+    private static final byte Socks5AddressIPv6 = 0x04;
+
+    private SocksHandshake() {
+    }
+
+    /**
+     * Asks the proxy at the other end of socket to connect to host:port and waits for its answer. When this returns
+     * socket is a stream to the target.
+     * @param socket Already connected to the proxy
+     * @param host Resolved by the proxy
+     * @param port
+     * @param version
+     * @param username Sent as the SOCKS4a user ID or, if not null, for SOCKS5 username/password authentication.
+     *                 Tor uses these to decide which streams may share a circuit.
+     * @param password Only used with SOCKS5 and a username, null is sent as an empty password
+     * @param pipelined Only matters for SOCKS5, if true everything is sent before reading any replies
+     * @throws IOException If the proxy refuses or the connection fails
+     */
+    public static void connect(Socket socket, String host, int port, Version version, String username,
+                               String password, boolean pipelined) throws IOException {
+        socket.setTcpNoDelay(true);
+        OutputStream outputStream = socket.getOutputStream();
+        DataInputStream inputStream = new DataInputStream(socket.getInputStream());
+
+        if (version == Version.SOCKS4A) {
+            outputStream.write(socks4aConnectRequest(host, port, username));
+            outputStream.flush();
+            readSocks4Reply(inputStream);
+            return;
+        }
+
+        boolean authenticate = username != null;
+        byte[] greeting = socks5Greeting(authenticate);
+        byte[] authentication = authenticate ? socks5UsernamePasswordRequest(username, password) : new byte[0];
+        byte[] connectRequest = socks5ConnectRequest(host, port);
+
+        if (pipelined) {
+            ByteArrayOutputStream everything =
+                    new ByteArrayOutputStream(greeting.length + authentication.length + connectRequest.length);
+            everything.write(greeting);
+            everything.write(authentication);
+            everything.write(connectRequest);
+            outputStream.write(everything.toByteArray());
+            outputStream.flush();
+            readSocks5MethodReply(inputStream, authenticate);
+            if (authenticate) {
+                readSocks5UsernamePasswordReply(inputStream);
+            }
+            readSocks5ConnectReply(inputStream);
+            return;
+        }
+
+        outputStream.write(greeting);
+        outputStream.flush();
+        readSocks5MethodReply(inputStream, authenticate);
+        if (authenticate) {
+            outputStream.write(authentication);
+            outputStream.flush();
+            readSocks5UsernamePasswordReply(inputStream);
+        }
+        outputStream.write(connectRequest);
+        outputStream.flush();
+        readSocks5ConnectReply(inputStream);
+    }
+
+    // From http://en.wikipedia.org/wiki/SOCKS#SOCKS4a:
+    //
+    // field 1: SOCKS version number, 1 byte, must be 0x04 for this version
+    // field 2: command code, 1 byte:
+    //     0x01 = establish a TCP/IP stream connection
+    //     0x02 = establish a TCP/IP port binding
+    // field 3: network byte order port number, 2 bytes
+    // field 4: deliberate invalid IP address, 4 bytes, first three must be 0x00 and the last one must not be 0x00
+    // field 5: the user ID string, variable length, terminated with a null (0x00)
+    // field 6: the domain name of the host we want to contact, variable length, terminated with a null (0x00)
+    static byte[] socks4aConnectRequest(String host, int port, String userId) throws IOException {
+        byte[] userIdBytes = userId == null ? new byte[0] : userId.getBytes("UTF-8");
+        byte[] hostBytes = host.getBytes("US-ASCII");
+        ByteArrayOutputStream request = new ByteArrayOutputStream(10 + userIdBytes.length + hostBytes.length);
+        request.write(Socks4Version);
+        request.write(SocksConnect);
+        request.write(port >> 8);
+        request.write(port);
+        request.write(0);
+        request.write(0);
+        request.write(0);
+        request.write(1);
+        request.write(userIdBytes);
+        request.write(0);
+        request.write(hostBytes);
+        request.write(0);
+        return request.toByteArray();
+    }
+
+    // RFC 1928 section 3, we offer exactly one method
+    static byte[] socks5Greeting(boolean authenticate) {
+        return new byte[] { Socks5Version, 1, authenticate ? Socks5UsernamePassword : Socks5NoAuthentication };
+    }
+
+    // RFC 1929 section 2
+    static byte[] socks5UsernamePasswordRequest(String username, String password) throws IOException {
+        byte[] usernameBytes = checkedLength(username.getBytes("UTF-8"), "username");
+        byte[] passwordBytes = checkedLength(password == null ? new byte[0] : password.getBytes("UTF-8"), "password");
+        ByteArrayOutputStream request = new ByteArrayOutputStream(3 + usernameBytes.length + passwordBytes.length);
+        request.write(Socks5UsernamePasswordVersion);
+        request.write(usernameBytes.length);
+        request.write(usernameBytes);
+        request.write(passwordBytes.length);
+        request.write(passwordBytes);
+        return request.toByteArray();
+    }
+
+    // RFC 1928 section 4, always with a domain name so the proxy does the resolving
+    static byte[] socks5ConnectRequest(String host, int port) throws IOException {
+        byte[] hostBytes = checkedLength(host.getBytes("US-ASCII"), "host name");
+        ByteArrayOutputStream request = new ByteArrayOutputStream(7 + hostBytes.length);
+        request.write(Socks5Version);
+        request.write(SocksConnect);
+        request.write(0);
+        request.write(Socks5AddressDomainName);
+        request.write(hostBytes.length);
+        request.write(hostBytes);
+        request.write(port >> 8);
+        request.write(port);
+        return request.toByteArray();
+    }
+
+    private static byte[] checkedLength(byte[] field, String fieldName) {
+        if (field.length > 255) {
+            throw new IllegalArgumentException("SOCKS5 " + fieldName + " can't be longer than 255 bytes");
+        }
+        return field;
+    }
+
+    private static void readSocks4Reply(DataInputStream inputStream) throws IOException {
+        byte[] reply = new byte[8];
+        inputStream.readFully(reply);
+        if (reply[0] != 0x00 || reply[1] != Socks4Granted) {
+            throw new IOException("SOCKS4a connect failed, status " + (reply[1] & 0xff));
+        }
+    }
+
+    private static void readSocks5MethodReply(DataInputStream inputStream, boolean authenticate) throws IOException {
+        byte[] reply = new byte[2];
+        inputStream.readFully(reply);
+        if (reply[0] != Socks5Version) {
+            throw new IOException("Proxy did not answer as SOCKS5");
+        }
+        byte expectedMethod = authenticate ? Socks5UsernamePassword : Socks5NoAuthentication;
+        if (reply[1] == Socks5NoAcceptableMethods || reply[1] != expectedMethod) {
+            throw new IOException("SOCKS5 proxy would not accept authentication method " + expectedMethod);
+        }
+    }
+
+    private static void readSocks5UsernamePasswordReply(DataInputStream inputStream) throws IOException {
+        byte[] reply = new byte[2];
+        inputStream.readFully(reply);
+        if (reply[1] != 0x00) {
+            throw new IOException("SOCKS5 username/password authentication failed");
+        }
+    }
+
+    private static void readSocks5ConnectReply(DataInputStream inputStream) throws IOException {
+        byte[] reply = new byte[4];
+        inputStream.readFully(reply);
+        if (reply[0] != Socks5Version) {
+            throw new IOException("Proxy did not answer as SOCKS5");
+        }
+        if (reply[1] != Socks5Succeeded) {
+            throw new IOException("SOCKS5 connect failed, reply " + (reply[1] & 0xff));
+        }
+
+        // Skip the bound address and port, we have no use for them
+        int addressLength;
+        switch (reply[3]) {
+            case Socks5AddressIPv4:
+                addressLength = 4;
+                break;
+            case Socks5AddressIPv6:
+                addressLength = 16;
+                break;
+            case Socks5AddressDomainName:
+                addressLength = inputStream.readUnsignedByte();
+                break;
+            default:
+                throw new IOException("SOCKS5 reply had unknown address type " + reply[3]);
+        }
+        inputStream.readFully(new byte[addressLength + 2]);
+    }
+}
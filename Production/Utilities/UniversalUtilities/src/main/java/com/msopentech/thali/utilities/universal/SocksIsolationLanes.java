@@ -0,0 +1,76 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.bouncycastle.util.encoders.Hex;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tor puts streams that arrive with the same SOCKS credentials on the same circuit (IsolateSOCKSAuth is on by
+ * default), so if every connection to a peer looks the same they all end up squeezed through one circuit. This hands
+ * out credentials for a fixed number of lanes per peer, round robin, so the connections in the pool get spread over
+ * that many circuits.
+ *
+ * The password is random per instance so our lanes never get mixed up with anyone else's streams that happen to
+ * use the same user names.
+ */
+public class SocksIsolationLanes {
+    private final int lanesPerPeer;
+    private final String password;
+    private final ConcurrentMap<String, AtomicInteger> nextLane = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * @param lanesPerPeer How many circuits to spread the connections to one peer over, at least 1
+     */
+    public SocksIsolationLanes(int lanesPerPeer) {
+        if (lanesPerPeer < 1) {
+            throw new IllegalArgumentException("lanesPerPeer must be at least 1");
+        }
+        this.lanesPerPeer = lanesPerPeer;
+        byte[] randomBytes = new byte[8];
+        new SecureRandom().nextBytes(randomBytes);
+        this.password = Hex.toHexString(randomBytes);
+    }
+
+    public int getLanesPerPeer() {
+        return lanesPerPeer;
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @return The user name for the next connection to host:port
+     */
+    public String nextUsername(String host, int port) {
+        String peer = host + ":" + port;
+        AtomicInteger counter = nextLane.get(peer);
+        if (counter == null) {
+            AtomicInteger newCounter = new AtomicInteger();
+            counter = nextLane.putIfAbsent(peer, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        int lane = (counter.getAndIncrement() & Integer.MAX_VALUE) % lanesPerPeer;
+        return "thali/" + peer + "/" + lane;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+}
@@ -79,6 +79,8 @@ public class ThaliClientToDeviceHubUtilities {
      * create a new key and register it with the Thali Device Hub.
      * Note that in most cases host should be 127.0.0.1 and proxy should be null. We allow these values to be set
      * in order to support certain kinds of testing.
+     * On a first run this blocks until the key is generated, apps that want that out of the way sooner should call
+     * {@link ThaliCryptoUtilities#startThaliKeyGenerationIfNeeded(File)} as early in their start up as they can.
      */
     public static ThaliCouchDbInstance GetLocalCouchDbInstance(File filesDir, CreateClientBuilder createClientBuilder,
                                                                String host, int port, char[] passPhrase, Proxy proxy)
@@ -31,6 +31,7 @@ import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.*;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Date;
 
 /**
@@ -43,6 +44,9 @@ public class ThaliCryptoUtilities {
     public final static String KeyTypeIdentifier = "RSA";
     public final static int KeySizeInBits = 2048;
     public final static String SignerAlgorithm = "SHA256withRSA"; // TODO: Need to validate if that's a good choice
+    public final static String EcKeyTypeIdentifier = "EC";
+    public final static String EcCurveName = "secp256r1"; // a.k.a. NIST P-256
+    public final static String EcSignerAlgorithm = "SHA256withECDSA";
     public final static long ExpirationPeriodForCertsInDays = 365;
     public final static String X500Name = "CN=Thali";
     private static final String KeystoreFileName = "com.msopentech.thali.name.keystore";
@@ -57,19 +61,45 @@ public class ThaliCryptoUtilities {
      * @return
      */
     public static KeyStore getThaliKeyStoreByAnyMeansNecessary(File filesDir) {
-        KeyStore clientKeyStore = ThaliCryptoUtilities.validateThaliKeyStore(filesDir);
+        // Hold the handle so two callers who both find no key store don't both try to create one
+        ThaliKeyStoreHandle keyStoreHandle = getThaliKeyStoreHandle(filesDir);
+        synchronized (keyStoreHandle) {
+            KeyStore clientKeyStore = ThaliCryptoUtilities.validateThaliKeyStore(filesDir);
+
+            // Unrecoverable error with the keystore (or it doesn't exist) so lets nuke and start over
+            if (clientKeyStore == null) {
+                File keyFile = ThaliCryptoUtilities.getThaliKeyStoreFileObject(filesDir);
+                if (keyFile.exists()) {
+                    keyFile.delete();
+                }
 
-        // Unrecoverable error with the keystore (or it doesn't exist) so lets nuke and start over
-        if (clientKeyStore == null) {
-            File keyFile = ThaliCryptoUtilities.getThaliKeyStoreFileObject(filesDir);
-            if (keyFile.exists()) {
-                keyFile.delete();
+                clientKeyStore = ThaliCryptoUtilities.createNewThaliKeyInKeyStore(filesDir);
             }
 
-            clientKeyStore = ThaliCryptoUtilities.createNewThaliKeyInKeyStore(filesDir);
+            return clientKeyStore;
+        }
+    }
+
+    /**
+     * If there is no key store in filesDir this starts generating a key pair for it in the background, so by the
+     * time {@link #getThaliKeyStoreByAnyMeansNecessary(java.io.File)} gets called the slow part is hopefully done.
+     * Apps should call this as early in their start up as they can. It only checks if the file exists so it is
+     * cheap enough for a UI thread.
+     * @param filesDir
+     */
+    public static void startThaliKeyGenerationIfNeeded(File filesDir) {
+        if (getThaliKeyStoreFileObject(filesDir).exists() == false) {
+            ThaliKeyPairProvisioner.getDefault().startGenerating();
         }
+    }
 
-        return clientKeyStore;
+    /**
+     * The key store is only read from disk when it changes, this handle is where it is cached.
+     * @param filesDir
+     * @return
+     */
+    public static ThaliKeyStoreHandle getThaliKeyStoreHandle(File filesDir) {
+        return ThaliKeyStoreHandle.forFile(getThaliKeyStoreFileObject(filesDir));
     }
 
     /**
@@ -87,21 +117,26 @@ public class ThaliCryptoUtilities {
      * that right now we treat cert expiration as a failure condition. In the long run that doesn't make sense but
      * this is not final code and it's actually good to freak out with any keys generated with this generation of code.
      * They shouldn't last long enough to expire.
+     *
+     * The result is cached, see {@link ThaliKeyStoreHandle}, so this only parses the file when it has changed. Every
+     * call gets the same KeyStore object until then, which must not be modified.
      * @param filesDir
      * @return
      */
     public static KeyStore validateThaliKeyStore(File filesDir) {
         assert filesDir != null && filesDir.exists();
-        File keyStoreFile = getThaliKeyStoreFileObject(filesDir);
-        if (keyStoreFile.exists() == false) {
-            return null;
-        }
+        return getThaliKeyStoreHandle(filesDir).getKeyStore();
+    }
 
-        FileInputStream keyStoreFileStream = null;
+    /**
+     * Does the actual work for {@link #validateThaliKeyStore(java.io.File)}.
+     * @param keyStoreFileContents
+     * @return The key store's Thali entry or null if the key store isn't valid
+     */
+    static KeyStore.PrivateKeyEntry readThaliKeyStore(byte[] keyStoreFileContents) {
         try {
             KeyStore keyStore = KeyStore.getInstance(PrivateKeyHolderFormat);
-            keyStoreFileStream = new FileInputStream(keyStoreFile);
-            keyStore.load(keyStoreFileStream, DefaultPassPhrase);
+            keyStore.load(new ByteArrayInputStream(keyStoreFileContents), DefaultPassPhrase);
             KeyStore.Entry thaliKeystoreEntry =
                     getThaliListenerKeyStoreEntry(keyStore);
 
@@ -140,22 +175,20 @@ public class ThaliCryptoUtilities {
 
             // We don't check the cert name because we just don't care, it doesn't matter for Thali
 
-            if ((certificates[0].getPublicKey() instanceof RSAPublicKey) == false) {
-                logger.debug("Public key is not a RSA Public Key!");
+            PublicKey publicKey = certificates[0].getPublicKey();
+
+            if (ThaliPublicKeyComparer.supportedKeyType(publicKey) == false) {
+                logger.debug("Public key is not a RSA or P-256 EC Public Key!");
                 return null;
             }
 
-            RSAPublicKey rsaPublicKey = (RSAPublicKey) certificates[0].getPublicKey();
-
-            if (rsaPublicKey.getModulus().bitLength() < KeySizeInBits) {
-                logger.debug("Public key size is less than required minimum, required size is " + KeySizeInBits + ", actual size is " + rsaPublicKey.getModulus().bitLength());
+            if (publicKey instanceof RSAPublicKey &&
+                    ((RSAPublicKey) publicKey).getModulus().bitLength() < KeySizeInBits) {
+                logger.debug("Public key size is less than required minimum, required size is " + KeySizeInBits + ", actual size is " + ((RSAPublicKey) publicKey).getModulus().bitLength());
                 return null;
             }
 
-            return keyStore;
-        } catch (FileNotFoundException e) {
-            logger.debug("Could not get a stream from a keyStoreFile we had previously validated existed.", e);
-            return null;
+            return privateThaliKeystoreEntry;
         } catch (KeyStoreException e) {
             logger.debug("Could not create a keystore of type " + PrivateKeyHolderFormat, e);
             return null;
@@ -177,14 +210,6 @@ public class ThaliCryptoUtilities {
         } catch (UnrecoverableEntryException e) {
             logger.debug("Failure on keyStore.getEntry", e);
             return null;
-        } finally {
-            if (keyStoreFileStream != null) {
-                try {
-                    keyStoreFileStream.close();
-                } catch (IOException e) {
-                    logger.debug("Attempt to close keyStoreFileStream failed", e);
-                }
-            }
         }
     }
 
@@ -215,6 +240,8 @@ public class ThaliCryptoUtilities {
 
     /**
      * Creates a new keystore file with a validate Thali public/private key pair and returns the KeyStore object.
+     * The key pair comes from {@link ThaliKeyPairProvisioner#getDefault()} so we pick up any key that was already
+     * being generated in the background.
      * @param filesDir
      * @return
      */
@@ -227,7 +254,7 @@ public class ThaliCryptoUtilities {
 
         KeyStore keyStore =
                 ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(
-                        GenerateThaliAcceptablePublicPrivateKeyPair(),
+                        ThaliKeyPairProvisioner.getDefault().take(),
                         ThaliKeyAlias,
                         DefaultPassPhrase);
 
@@ -237,6 +264,9 @@ public class ThaliCryptoUtilities {
             try {
                 fileOutputStream =  new FileOutputStream(keyStoreFile);
                 keyStore.store(fileOutputStream, DefaultPassPhrase);
+                fileOutputStream.close();
+                fileOutputStream = null;
+                ThaliKeyStoreHandle.forFile(keyStoreFile).update(keyStore, getThaliListenerKeyStoreEntry(keyStore));
             } catch (Exception e) {
                 logger.error("oops", e);
                 throw e;
@@ -259,17 +289,34 @@ public class ThaliCryptoUtilities {
      * @return
      */
     public static KeyPair GenerateThaliAcceptablePublicPrivateKeyPair() {
+        return GenerateThaliAcceptablePublicPrivateKeyPair(KeyTypeIdentifier);
+    }
+
+    /**
+     * Generates a public/private key pair of the given type that meets Thali's security requirements.
+     * @param keyType Either {@link #KeyTypeIdentifier} for 2048 bit RSA or {@link #EcKeyTypeIdentifier} for P-256
+     * @return
+     */
+    public static KeyPair GenerateThaliAcceptablePublicPrivateKeyPair(String keyType) {
         KeyPairGenerator keyPairGenerator = null;
         try {
-            keyPairGenerator = KeyPairGenerator.getInstance(KeyTypeIdentifier);
+            keyPairGenerator = KeyPairGenerator.getInstance(keyType);
             // TODO: http://android-developers.blogspot.com/2013/08/some-securerandom-thoughts.html talks about security
             // failures in Android caused by improperly initialized RNGs. It would appear that this issue doesn't
             // apply to the latest version of Android. But obviously this is something that has to be further investigated
             // to make sure we are doing this correctly.
-            keyPairGenerator.initialize(KeySizeInBits, new SecureRandom());
+            if (EcKeyTypeIdentifier.equals(keyType)) {
+                keyPairGenerator.initialize(new ECGenParameterSpec(EcCurveName), new SecureRandom());
+            } else if (KeyTypeIdentifier.equals(keyType)) {
+                keyPairGenerator.initialize(KeySizeInBits, new SecureRandom());
+            } else {
+                throw new IllegalArgumentException("Unsupported key type " + keyType);
+            }
             return keyPairGenerator.generateKeyPair();
         } catch (NoSuchAlgorithmException e) {
             throw new RuntimeException(e.getMessage(),e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e.getMessage(),e);
         }
     }
 
@@ -277,10 +324,10 @@ public class ThaliCryptoUtilities {
      * Creates a PKCS12 keystore and puts into it the submitted public/private key pair under the submitted
      * Key Alias using the submitted passphrase to 'secure' the file.
      *
-     * Right now we only generate large RSA keys because I'm paranoid that the curves used in
+     * By default we generate large RSA keys because I'm paranoid that the curves used in
      * Elliptic Curve crypto may have been designed by folks for whom security was not the paramount
-     * concern. Once this issue is put to rest I would expect to switch to Elliptic Curve because
-     * it is considered (with appropriate curves) to be more secure and is certainly faster.
+     * concern. But P-256 keys are accepted and can be generated (see {@link ThaliKeyPairProvisioner#setKeyType})
+     * because the handshake is so much cheaper, the cert is signed with ECDSA in that case.
      * @param keyPair
      * @param keyAlias
      * @param passphrase
@@ -303,7 +350,9 @@ public class ThaliCryptoUtilities {
 
             // Note that by not specify .setProvider("BC") we are using the default provider, this is because bouncy castle as
             // previously mentioned is installed on Android but is a challenge for the applet so I'll just use the default for now.
-            ContentSigner contentSigner = new JcaContentSignerBuilder(SignerAlgorithm).build(keyPair.getPrivate());
+            String signerAlgorithm =
+                    keyPair.getPublic() instanceof RSAPublicKey ? SignerAlgorithm : EcSignerAlgorithm;
+            ContentSigner contentSigner = new JcaContentSignerBuilder(signerAlgorithm).build(keyPair.getPrivate());
 
             X509v1CertificateBuilder x509v1CertificateBuilder = new X509v1CertificateBuilder(x500Name, BigInteger.ONE, startDate, endDate, x500Name, subjectPublicKeyInfo);
             X509CertificateHolder x509CertificateHolder = x509v1CertificateBuilder.build(contentSigner);
@@ -0,0 +1,157 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.impl.client.RequestWrapper;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+/**
+ * Retries for flaky paths like Tor hidden services, used instead of a lot of immediate retries which just pile onto
+ * a path that is already in trouble.
+ *
+ * <ul>
+ *     <li>Retries wait an exponentially growing, randomly jittered, time. The starting wait is the peer's average
+ *     latency if we know it (and that is longer than the base) since there is no point coming back sooner than a
+ *     slow peer can answer. HttpClient 4.2 gives us nowhere to wait but the request's own thread, so all the waits
+ *     for one request together are capped at the max backoff, after that we give up on it.</li>
+ *     <li>Each retry comes out of the peer's budget, see {@link ThaliPeerStats}.</li>
+ *     <li>A request that may have reached the server is only retried if its method is idempotent.</li>
+ *     <li>Like the default handler we don't retry timeouts, unknown hosts or TLS failures, another try won't help.</li>
+ * </ul>
+ *
+ * Successes and latency are recorded by {@link HttpKeyHttpClient}'s interceptors, failures by this handler. A request
+ * counts as one failure when we give up on it, not one per attempt, since a retry may yet succeed.
+ */
+public class ThaliHttpRequestRetryHandler implements HttpRequestRetryHandler {
+    public static final long DefaultBaseBackoffMillis = 250;
+    public static final long DefaultMaxBackoffMillis = 8000;
+    private static final String BackoffSpentAttribute = "com.msopentech.thali.retryBackoffSpentMillis";
+    private static final Logger logger = LoggerFactory.getLogger(ThaliHttpRequestRetryHandler.class);
+
+    private final int maxRetries;
+    private final long baseBackoffMillis;
+    private final long maxBackoffMillis;
+    private final Random random = new Random();
+
+    public ThaliHttpRequestRetryHandler(int maxRetries) {
+        this(maxRetries, DefaultBaseBackoffMillis, DefaultMaxBackoffMillis);
+    }
+
+    public ThaliHttpRequestRetryHandler(int maxRetries, long baseBackoffMillis, long maxBackoffMillis) {
+        this.maxRetries = maxRetries;
+        this.baseBackoffMillis = baseBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    @Override
+    public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+        ThaliPeerStats peerStats = getPeerStats(context);
+        boolean retry = retryAfterBackoff(exception, executionCount, context, peerStats);
+        if (retry == false && peerStats != null) {
+            peerStats.recordFailure();
+        }
+        return retry;
+    }
+
+    private boolean retryAfterBackoff(IOException exception, int executionCount, HttpContext context,
+                                      ThaliPeerStats peerStats) {
+        if (executionCount > maxRetries || retriable(exception) == false) {
+            return false;
+        }
+
+        HttpRequest request = (HttpRequest) context.getAttribute(ExecutionContext.HTTP_REQUEST);
+        Boolean requestSent = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+        if (requestSent != null && requestSent && isIdempotent(request) == false) {
+            return false;
+        }
+
+        Long backoffSpentMillis = (Long) context.getAttribute(BackoffSpentAttribute);
+        long spentMillis = backoffSpentMillis == null ? 0 : backoffSpentMillis;
+        if (spentMillis >= maxBackoffMillis) {
+            logger.debug("Already waited " + spentMillis + "ms to retry " + request);
+            return false;
+        }
+
+        if (peerStats != null && peerStats.tryAcquireRetry() == false) {
+            logger.debug("Out of retry budget for " + peerStats);
+            return false;
+        }
+
+        long backoffMillis = Math.min(getBackoffMillis(executionCount, peerStats), maxBackoffMillis - spentMillis);
+        context.setAttribute(BackoffSpentAttribute, spentMillis + backoffMillis);
+        try {
+            Thread.sleep(backoffMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Full jitter, a random time between 0 and min(max, start * 2^(executionCount - 1)).
+     * @param executionCount How many times the request has been tried, starting at 1
+     * @param peerStats Can be null
+     * @return
+     */
+    protected long getBackoffMillis(int executionCount, ThaliPeerStats peerStats) {
+        long startMillis = baseBackoffMillis;
+        if (peerStats != null && peerStats.getAverageLatencyMillis() > startMillis) {
+            startMillis = (long) peerStats.getAverageLatencyMillis();
+        }
+        long ceilingMillis = Math.min(maxBackoffMillis, startMillis << Math.min(executionCount - 1, 20));
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceilingMillis);
+        }
+    }
+
+    protected boolean retriable(IOException exception) {
+        return (exception instanceof InterruptedIOException ||
+                exception instanceof UnknownHostException ||
+                exception instanceof SSLException) == false;
+    }
+
+    protected static boolean isIdempotent(HttpRequest request) {
+        if (request == null) {
+            return false;
+        }
+        if (request instanceof RequestWrapper) {
+            request = ((RequestWrapper) request).getOriginal();
+        }
+        String method = request.getRequestLine().getMethod().toUpperCase();
+        return "GET".equals(method) || "HEAD".equals(method) || "PUT".equals(method) || "DELETE".equals(method) ||
+                "OPTIONS".equals(method) || "TRACE".equals(method);
+    }
+
+    static ThaliPeerStats getPeerStats(HttpContext context) {
+        HttpHost target = (HttpHost) context.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
+        return target == null ? null : ThaliPeerStats.forPeer(target.getHostName(), target.getPort());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+
+/**
+ * Generating a 2048 bit RSA key takes seconds on a slow phone and the first launch of the hub or of an app has to
+ * have one before it can do anything. So we generate keys on a background thread, ideally kicked off (see
+ * {@link ThaliCryptoUtilities#startThaliKeyGenerationIfNeeded(java.io.File)}) as soon as we know there is no key
+ * store, and whoever ends up needing the key waits on the future rather than starting from scratch.
+ *
+ * Every key pair is handed out exactly once, two identities must never share a key.
+ *
+ * A pool size can be set to keep a few keys generated ahead of time, which is handy for tests and for anyone
+ * creating several identities. By default the pool is empty and we only generate keys someone asked for.
+ */
+public class ThaliKeyPairProvisioner {
+    private static final ThaliKeyPairProvisioner defaultProvisioner = new ThaliKeyPairProvisioner();
+    private static final Logger logger = LoggerFactory.getLogger(ThaliKeyPairProvisioner.class);
+
+    // Keys that are generated or being generated, in the order they were asked for
+    private final LinkedList<Future<KeyPair>> keyPairs = new LinkedList<Future<KeyPair>>();
+    private ExecutorService executor = null;
+    private int poolSize = 0;
+    private String keyType = ThaliCryptoUtilities.KeyTypeIdentifier;
+
+    /**
+     * @return The provisioner used by {@link ThaliCryptoUtilities#createNewThaliKeyInKeyStore(java.io.File)}
+     */
+    public static ThaliKeyPairProvisioner getDefault() {
+        return defaultProvisioner;
+    }
+
+    /**
+     * Makes sure there is at least one key ready or on its way. Calling this more than once without taking a key
+     * doesn't start more work.
+     */
+    public synchronized void startGenerating() {
+        fill(Math.max(1, poolSize));
+    }
+
+    /**
+     * Removes the next key pair from the pool, starting to generate one if the pool is empty, and tops the pool back
+     * up in the background.
+     * @return A future for a key pair no one else will be given
+     */
+    public synchronized Future<KeyPair> takeFuture() {
+        fill(1);
+        Future<KeyPair> keyPair = keyPairs.removeFirst();
+        fill(poolSize);
+        return keyPair;
+    }
+
+    /**
+     * Like {@link #takeFuture()} but waits for the key. If the background generation failed we try once more on
+     * the caller's thread so a bad run of the generator doesn't leave us without a key.
+     * @return
+     */
+    public KeyPair take() {
+        Future<KeyPair> keyPair = takeFuture();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return keyPair.get();
+                } catch (InterruptedException e) {
+                    // The key is still coming and the caller can't proceed without it, so finish the wait and
+                    // pass the interrupt on afterwards.
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            logger.error("Background key pair generation failed, generating on the calling thread", e.getCause());
+            return ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair(getKeyType());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @param poolSize How many key pairs to keep ready, 0 (the default) means only generate keys on request
+     */
+    public synchronized void setPoolSize(int poolSize) {
+        if (poolSize < 0) {
+            throw new IllegalArgumentException("poolSize must not be negative");
+        }
+        this.poolSize = poolSize;
+        fill(poolSize);
+    }
+
+    public synchronized int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Switches the type of key generated from now on, keys of the old type that haven't been taken are thrown away.
+     * @param keyType {@link ThaliCryptoUtilities#KeyTypeIdentifier} (the default) or
+     *                {@link ThaliCryptoUtilities#EcKeyTypeIdentifier}
+     */
+    public synchronized void setKeyType(String keyType) {
+        if (ThaliCryptoUtilities.KeyTypeIdentifier.equals(keyType) == false &&
+                ThaliCryptoUtilities.EcKeyTypeIdentifier.equals(keyType) == false) {
+            throw new IllegalArgumentException("Unsupported key type " + keyType);
+        }
+        if (keyType.equals(this.keyType)) {
+            return;
+        }
+        this.keyType = keyType;
+        for (Future<KeyPair> keyPair : keyPairs) {
+            keyPair.cancel(false);
+        }
+        keyPairs.clear();
+        fill(poolSize);
+    }
+
+    public synchronized String getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * @return How many key pairs are finished and waiting to be taken
+     */
+    public synchronized int getReadyCount() {
+        int ready = 0;
+        for (Future<KeyPair> keyPair : keyPairs) {
+            if (keyPair.isDone()) {
+                ready += 1;
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Throws away any keys that haven't been taken yet and stops the background thread, a later request will
+     * start a new one.
+     */
+    public synchronized void clear() {
+        for (Future<KeyPair> keyPair : keyPairs) {
+            keyPair.cancel(false);
+        }
+        keyPairs.clear();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private void fill(int count) {
+        final String keyTypeToGenerate = keyType;
+        while (keyPairs.size() < count) {
+            keyPairs.addLast(getExecutor().submit(new Callable<KeyPair>() {
+                @Override
+                public KeyPair call() throws Exception {
+                    return ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair(keyTypeToGenerate);
+                }
+            }));
+        }
+    }
+
+    private ExecutorService getExecutor() {
+        if (executor == null) {
+            // Key generation is all CPU, a second thread would just fight the first one (and the app) for it.
+            // The thread is a daemon so a pool full of keys no one wants doesn't keep the process alive.
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Thali Key Pair Generator");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opening our PKCS12 key store means a PBE key derivation, decrypting the private key and parsing and checking the
+ * cert, all of which used to happen every time anyone asked for the key store. There is one handle per key store
+ * file in the process and it only parses the file again when its contents change or the cert expires, otherwise
+ * everyone gets the same KeyStore, PrivateKeyEntry and PublicKey objects.
+ *
+ * Most calls only stat the file. We keep a SHA-256 of the file and only read and hash it again when its size or
+ * modification time changes, or when the modification time is too close to when we last hashed it to be sure a
+ * later write in the same tick would have moved it (modification times can be as coarse as a couple of seconds).
+ *
+ * Handing out the one KeyStore is what lets {@link HttpKeySSLSocketFactory#getSharedInstance} share a factory
+ * between everyone using the key, so callers must treat it as read only.
+ */
+public class ThaliKeyStoreHandle {
+    private static final Map<File, ThaliKeyStoreHandle> handles = new HashMap<File, ThaliKeyStoreHandle>();
+    private static final String ContentDigestAlgorithm = "SHA-256";
+    /**
+     * Coarsest modification time granularity we expect (FAT), a file modified within this long of when we hashed it
+     * could have been written again since without its modification time changing
+     */
+    private static final long ModificationTimeGranularityMillis = 2000;
+
+    private final File keyStoreFile;
+    private KeyStore.PrivateKeyEntry privateKeyEntry;
+    private KeyStore keyStore;
+    private PublicKey publicKey;
+    private byte[] contentDigest;
+    private long certNotAfter;
+    private long fileLength;
+    private long fileLastModified;
+    private long digestedAt;
+
+    private ThaliKeyStoreHandle(File keyStoreFile) {
+        this.keyStoreFile = keyStoreFile;
+    }
+
+    /**
+     * @param keyStoreFile
+     * @return The process wide handle for the key store in the given file
+     */
+    public static ThaliKeyStoreHandle forFile(File keyStoreFile) {
+        File key = keyStoreFile.getAbsoluteFile();
+        try {
+            key = keyStoreFile.getCanonicalFile();
+        } catch (IOException e) {
+            // Fall back to the absolute path, we just might end up with two handles for one file
+        }
+        synchronized (handles) {
+            ThaliKeyStoreHandle handle = handles.get(key);
+            if (handle == null) {
+                handle = new ThaliKeyStoreHandle(key);
+                handles.put(key, handle);
+            }
+            return handle;
+        }
+    }
+
+    public File getKeyStoreFile() {
+        return keyStoreFile;
+    }
+
+    /**
+     * @return The shared, read only, key store holding the validated Thali key, or null if the file doesn't exist or
+     * doesn't hold a valid Thali key, see {@link ThaliCryptoUtilities#validateThaliKeyStore(java.io.File)}
+     */
+    public synchronized KeyStore getKeyStore() {
+        return refresh() ? keyStore : null;
+    }
+
+    public synchronized KeyStore.PrivateKeyEntry getPrivateKeyEntry() {
+        return refresh() ? privateKeyEntry : null;
+    }
+
+    public synchronized PublicKey getPublicKey() {
+        return refresh() ? publicKey : null;
+    }
+
+    /**
+     * Forgets what we have cached, the next call will read the file again.
+     */
+    public synchronized void invalidate() {
+        privateKeyEntry = null;
+        keyStore = null;
+        publicKey = null;
+        contentDigest = null;
+    }
+
+    /**
+     * Records a key store that was just written to our file so we don't have to parse it back, it becomes the one
+     * everyone is handed.
+     * @param newKeyStore
+     * @param newPrivateKeyEntry Its Thali entry
+     */
+    synchronized void update(KeyStore newKeyStore, KeyStore.PrivateKeyEntry newPrivateKeyEntry) {
+        long length = keyStoreFile.length();
+        long lastModified = keyStoreFile.lastModified();
+        byte[] fileContents = readFile();
+        if (fileContents == null) {
+            invalidate();
+            return;
+        }
+        set(newKeyStore, newPrivateKeyEntry, digest(fileContents), length, lastModified);
+    }
+
+    /**
+     * @return true if we hold a valid key that matches the file
+     */
+    private boolean refresh() {
+        // Stat before reading, so a write that lands in between looks like a change next time rather than being missed
+        long length = keyStoreFile.length();
+        long lastModified = keyStoreFile.lastModified();
+        long now = System.currentTimeMillis();
+        if (privateKeyEntry != null && now >= certNotAfter) {
+            invalidate();
+        }
+        if (privateKeyEntry != null && length == fileLength && lastModified == fileLastModified &&
+                lastModified + ModificationTimeGranularityMillis < digestedAt) {
+            return true;
+        }
+
+        byte[] fileContents = readFile();
+        if (fileContents == null) {
+            invalidate();
+            return false;
+        }
+
+        byte[] fileDigest = digest(fileContents);
+        if (privateKeyEntry != null && Arrays.equals(fileDigest, contentDigest)) {
+            fileLength = length;
+            fileLastModified = lastModified;
+            digestedAt = now;
+            return true;
+        }
+
+        invalidate();
+        KeyStore.PrivateKeyEntry filePrivateKeyEntry = ThaliCryptoUtilities.readThaliKeyStore(fileContents);
+        if (filePrivateKeyEntry == null) {
+            return false;
+        }
+        set(newKeyStore(filePrivateKeyEntry), filePrivateKeyEntry, fileDigest, length, lastModified);
+        return true;
+    }
+
+    private void set(KeyStore newKeyStore, KeyStore.PrivateKeyEntry newPrivateKeyEntry, byte[] newContentDigest,
+                     long length, long lastModified) {
+        X509Certificate certificate = (X509Certificate) newPrivateKeyEntry.getCertificate();
+        keyStore = newKeyStore;
+        privateKeyEntry = newPrivateKeyEntry;
+        publicKey = certificate.getPublicKey();
+        certNotAfter = certificate.getNotAfter().getTime();
+        contentDigest = newContentDigest;
+        fileLength = length;
+        fileLastModified = lastModified;
+        digestedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * @return The file's contents or null if it doesn't exist or can't be read
+     */
+    private byte[] readFile() {
+        if (keyStoreFile.exists() == false) {
+            return null;
+        }
+        FileInputStream fileInputStream = null;
+        try {
+            fileInputStream = new FileInputStream(keyStoreFile);
+            ByteArrayOutputStream contents = new ByteArrayOutputStream((int) keyStoreFile.length());
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = fileInputStream.read(buffer)) != -1) {
+                contents.write(buffer, 0, read);
+            }
+            return contents.toByteArray();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (fileInputStream != null) {
+                try {
+                    fileInputStream.close();
+                } catch (IOException e) {
+                    // We already have what we wanted
+                }
+            }
+        }
+    }
+
+    private static byte[] digest(byte[] fileContents) {
+        try {
+            return MessageDigest.getInstance(ContentDigestAlgorithm).digest(fileContents);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore newKeyStore(KeyStore.PrivateKeyEntry privateKeyEntry) {
+        try {
+            KeyStore keyStore = KeyStore.getInstance(ThaliCryptoUtilities.PrivateKeyHolderFormat);
+            keyStore.load(null, null);
+            keyStore.setEntry(ThaliCryptoUtilities.ThaliKeyAlias, privateKeyEntry,
+                    new KeyStore.PasswordProtection(ThaliCryptoUtilities.DefaultPassPhrase));
+            return keyStore;
+        } catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+}
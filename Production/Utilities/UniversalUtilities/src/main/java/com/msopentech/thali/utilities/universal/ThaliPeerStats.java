@@ -0,0 +1,126 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * What we have seen of one peer: how many requests succeeded and failed, a moving average of how long successful
+ * requests took and a retry budget. The stats are process wide, keyed by host and port, because clients come and go
+ * with every request the replicator makes while the peer stays the same.
+ *
+ * The retry budget is a token bucket. Each retry takes a token and each success puts back a fraction of one, so a
+ * peer that keeps failing soon gets no retries at all rather than every request retrying it over and over, and
+ * earns them back once it starts answering again.
+ */
+public class ThaliPeerStats {
+    public static final double MaxRetryTokens = 10;
+    public static final double RetryTokensPerSuccess = 0.2;
+    private static final double latencyWeight = 0.2;
+    private static final int maxPeers = 256;
+
+    private static final Map<String, ThaliPeerStats> peers =
+            new LinkedHashMap<String, ThaliPeerStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ThaliPeerStats> eldest) {
+                    return size() > maxPeers;
+                }
+            };
+
+    private final String peer;
+    private long successes = 0;
+    private long failures = 0;
+    private long retries = 0;
+    private double averageLatencyMillis = -1;
+    private double retryTokens = MaxRetryTokens;
+
+    private ThaliPeerStats(String peer) {
+        this.peer = peer;
+    }
+
+    public static ThaliPeerStats forPeer(String host, int port) {
+        String peer = host + ":" + port;
+        synchronized (peers) {
+            ThaliPeerStats stats = peers.get(peer);
+            if (stats == null) {
+                stats = new ThaliPeerStats(peer);
+                peers.put(peer, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Forgets everything we know about every peer.
+     */
+    public static void clear() {
+        synchronized (peers) {
+            peers.clear();
+        }
+    }
+
+    public synchronized void recordSuccess(long latencyMillis) {
+        successes++;
+        averageLatencyMillis = averageLatencyMillis < 0 ?
+                latencyMillis :
+                latencyWeight * latencyMillis + (1 - latencyWeight) * averageLatencyMillis;
+        retryTokens = Math.min(MaxRetryTokens, retryTokens + RetryTokensPerSuccess);
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+    }
+
+    /**
+     * @return True, and uses up a token, if there is budget left for a retry
+     */
+    public synchronized boolean tryAcquireRetry() {
+        if (retryTokens < 1) {
+            return false;
+        }
+        retryTokens -= 1;
+        retries++;
+        return true;
+    }
+
+    public synchronized long getSuccesses() {
+        return successes;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    public synchronized double getRetryTokens() {
+        return retryTokens;
+    }
+
+    /**
+     * @return Exponentially weighted moving average of successful request times or -1 if we haven't had one yet
+     */
+    public synchronized double getAverageLatencyMillis() {
+        return averageLatencyMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return peer + " successes " + successes + " failures " + failures + " retries " + retries +
+                " average latency " + Math.round(averageLatencyMillis) + "ms";
+    }
+}
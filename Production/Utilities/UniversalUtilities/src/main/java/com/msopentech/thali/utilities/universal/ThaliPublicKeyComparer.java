@@ -13,30 +13,108 @@ See the Apache 2 License for the specific language governing permissions and lim
 
 package com.msopentech.thali.utilities.universal;
 
+import org.bouncycastle.util.encoders.Hex;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.EllipticCurve;
 
 /**
  * Centralizes the logic for comparing keys and by extension also what key types we support, this lets us pass
  * PublicKey as the type in most places and only worry about binding here.
+ *
+ * We support RSA keys and EC keys on NIST P-256 (secp256r1), which is the one curve every TLS stack we run on
+ * can do ECDSA with. EC keys on any other curve are treated as unsupported.
+ *
+ * A key's fingerprint is the hex SHA-256 of its X.509 SubjectPublicKeyInfo. Two supported keys are equal exactly
+ * when their fingerprints are, so the fingerprint is what to use when a key needs to be a map key.
  */
 public class ThaliPublicKeyComparer {
+    private static final BigInteger P256Prime =
+            new BigInteger("ffffffff00000001000000000000000000000000ffffffffffffffffffffffff", 16);
+    private static final BigInteger P256A =
+            new BigInteger("ffffffff00000001000000000000000000000000fffffffffffffffffffffffc", 16);
+    private static final BigInteger P256B =
+            new BigInteger("5ac635d8aa3a93e7b3ebbd55769886bc651d06b0cc53b0f63bce3c3e27d2604b", 16);
+    private static final BigInteger P256GeneratorX =
+            new BigInteger("6b17d1f2e12c4247f8bce6e563a440f277037d812deb33a0f4a13945d898c296", 16);
+    private static final BigInteger P256GeneratorY =
+            new BigInteger("4fe342e2fe1a7f9b8ee7eb4a7c0f9e162bce33576b315ececbb6406837bf51f5", 16);
+    private static final BigInteger P256Order =
+            new BigInteger("ffffffff00000000ffffffffffffffffbce6faada7179e84f3b9cac2fc632551", 16);
+
     private final PublicKey publicKey;
+    private final String fingerprint;
+
+    /**
+     * @param publicKey
+     * @return True if publicKey is a type of key Thali accepts as an identity
+     */
+    public static boolean supportedKeyType(PublicKey publicKey) {
+        return publicKey instanceof RSAPublicKey ||
+                (publicKey instanceof ECPublicKey && isP256(((ECPublicKey) publicKey).getParams()));
+    }
+
+    public static boolean isP256(ECParameterSpec ecParameterSpec) {
+        if (ecParameterSpec == null) {
+            return false;
+        }
+
+        EllipticCurve curve = ecParameterSpec.getCurve();
+        return curve.getField() instanceof ECFieldFp &&
+                P256Prime.equals(((ECFieldFp) curve.getField()).getP()) &&
+                P256A.equals(curve.getA()) &&
+                P256B.equals(curve.getB()) &&
+                P256GeneratorX.equals(ecParameterSpec.getGenerator().getAffineX()) &&
+                P256GeneratorY.equals(ecParameterSpec.getGenerator().getAffineY()) &&
+                P256Order.equals(ecParameterSpec.getOrder()) &&
+                ecParameterSpec.getCofactor() == 1;
+    }
 
-    private boolean supportedKeyType(PublicKey publicKey) {
-        return publicKey instanceof RSAPublicKey;
+    /**
+     * @param publicKey
+     * @return The hex encoded SHA-256 of the key's SubjectPublicKeyInfo
+     */
+    public static String getKeyFingerprint(PublicKey publicKey) {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(publicKey.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
     }
 
     public static boolean RsaPublicKeyComparer(RSAPublicKey key1, RSAPublicKey key2) {
         return key1.getPublicExponent().compareTo(key2.getPublicExponent()) == 0 && key1.getModulus().compareTo(key2.getModulus()) == 0;
     }
 
+    /**
+     * Both keys have to be on P-256, see {@link #supportedKeyType(java.security.PublicKey)}, so comparing the points
+     * is enough.
+     * @param key1
+     * @param key2
+     * @return
+     */
+    public static boolean EcPublicKeyComparer(ECPublicKey key1, ECPublicKey key2) {
+        return key1.getW().equals(key2.getW());
+    }
+
     public ThaliPublicKeyComparer(PublicKey publicKey) {
         if (supportedKeyType(publicKey) == false) {
             throw new RuntimeException("Unsupported key type");
         }
 
         this.publicKey = publicKey;
+        this.fingerprint = getKeyFingerprint(publicKey);
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
     }
 
     public boolean KeysEqual(PublicKey otherPublicKey) {
@@ -44,6 +122,12 @@ public class ThaliPublicKeyComparer {
             return false;
         }
 
-        return RsaPublicKeyComparer((RSAPublicKey)otherPublicKey, (RSAPublicKey)publicKey);
+        if (publicKey instanceof RSAPublicKey) {
+            return otherPublicKey instanceof RSAPublicKey &&
+                    RsaPublicKeyComparer((RSAPublicKey)otherPublicKey, (RSAPublicKey)publicKey);
+        }
+
+        return otherPublicKey instanceof ECPublicKey &&
+                EcPublicKeyComparer((ECPublicKey)otherPublicKey, (ECPublicKey)publicKey);
     }
 }
@@ -101,6 +101,7 @@ public class ThaliTestEktorpClient {
         this.proxy = proxy;
 
         thaliTestServer = new ThaliListener();
+        thaliTestServer.setKeepAlive(true);
 
         thaliTestServer.startServer(context, tdhDirectPort, proxy);
 
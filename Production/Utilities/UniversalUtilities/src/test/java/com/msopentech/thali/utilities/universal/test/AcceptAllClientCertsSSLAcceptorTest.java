@@ -0,0 +1,157 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import Acme.Serve.SSLAcceptor;
+import com.msopentech.thali.CouchDBListener.AcceptAllClientCertsSSLAcceptor;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.*;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AcceptAllClientCertsSSLAcceptorTest {
+    /**
+     * What Android 4.x clients negotiate, there are still Thali devices out there that can't do better
+     */
+    private static final String LEGACY_CIPHER_SUITE = "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA";
+
+    static class TestAcceptor extends AcceptAllClientCertsSSLAcceptor {
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private File keyStoreFile;
+    private TestAcceptor acceptor;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyStore keyStore = ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(
+                ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair(), ThaliCryptoUtilities.ThaliKeyAlias,
+                ThaliCryptoUtilities.DefaultPassPhrase);
+        keyStoreFile = File.createTempFile("acceptorTest", ".p12");
+        FileOutputStream out = new FileOutputStream(keyStoreFile);
+        try {
+            keyStore.store(out, ThaliCryptoUtilities.DefaultPassPhrase);
+        } finally {
+            out.close();
+        }
+
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put(SSLAcceptor.ARG_PORT, "0");
+        properties.put(SSLAcceptor.ARG_IFADDRESS, "127.0.0.1");
+        properties.put(SSLAcceptor.ARG_KEYSTORETYPE, ThaliCryptoUtilities.PrivateKeyHolderFormat);
+        properties.put(SSLAcceptor.ARG_KEYSTOREFILE, keyStoreFile.getAbsolutePath());
+        properties.put(SSLAcceptor.ARG_KEYSTOREPASS, new String(ThaliCryptoUtilities.DefaultPassPhrase));
+        acceptor = new TestAcceptor();
+        acceptor.init(properties, null);
+
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        SSLSocket socket = (SSLSocket) acceptor.accept();
+                        try {
+                            socket.startHandshake();
+                        } catch (IOException e) {
+                            // The client is told why
+                        } finally {
+                            socket.close();
+                        }
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "Acceptor test");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        acceptor.close();
+        keyStoreFile.delete();
+    }
+
+    private SSLSession handshake(String... cipherSuites) throws Exception {
+        TrustManager trustAll = new X509TrustManager() {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[] { trustAll }, null);
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket("127.0.0.1", acceptor.getPort());
+        try {
+            // Restricting the suites only means something below TLS 1.3, which has its own
+            socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+            socket.setEnabledCipherSuites(cipherSuites);
+            socket.startHandshake();
+            return socket.getSession();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testLegacyClientCanStillConnect() throws Exception {
+        assertEquals(LEGACY_CIPHER_SUITE, handshake(LEGACY_CIPHER_SUITE).getCipherSuite());
+    }
+
+    @Test
+    public void testServerOrderWins() throws Exception {
+        // The client would rather have the CBC suite but we put GCM first
+        SSLSession session = handshake(LEGACY_CIPHER_SUITE, "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256");
+        assertEquals("TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", session.getCipherSuite());
+    }
+
+    @Test
+    public void testPreferredCipherSuitesComeFirst() {
+        String[] supported = { "TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+                "SSL_RSA_WITH_RC4_128_SHA", "TLS_AES_128_GCM_SHA256" };
+        String[] defaults = { "TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256" };
+        // RC4 is supported but the JDK doesn't enable it by default, so neither do we
+        assertEquals(Arrays.asList("TLS_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+                        "TLS_RSA_WITH_AES_128_CBC_SHA"),
+                Arrays.asList(AcceptAllClientCertsSSLAcceptor.getPreferredCipherSuites(supported, defaults)));
+    }
+}
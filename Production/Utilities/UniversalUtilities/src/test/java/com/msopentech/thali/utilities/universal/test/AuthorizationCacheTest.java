@@ -0,0 +1,111 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.CouchDBListener.AuthorizationCache;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.KeyFactory;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+
+import static org.junit.Assert.*;
+
+public class AuthorizationCacheTest {
+    private static SSLSession session(final byte[] id) {
+        return (SSLSession) Proxy.newProxyInstance(SSLSession.class.getClassLoader(), new Class<?>[] { SSLSession.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getId")) {
+                            return id;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static PublicKey newPublicKey() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(1024);
+        return keyPairGenerator.generateKeyPair().getPublic();
+    }
+
+    @Test
+    public void testSessionHit() {
+        AuthorizationCache cache = new AuthorizationCache(10, 60 * 1000);
+        String sessionKey = cache.sessionKey(session(new byte[] { 1, 2, 3 }));
+        assertFalse(cache.isAuthorized(sessionKey));
+
+        cache.authorize(sessionKey, cache.getGeneration());
+        assertTrue(cache.isAuthorized(cache.sessionKey(session(new byte[] { 1, 2, 3 }))));
+        assertFalse(cache.isAuthorized(cache.sessionKey(session(new byte[] { 1, 2, 4 }))));
+
+        // No session ID, nothing to cache by
+        assertNull(cache.sessionKey(session(new byte[0])));
+        assertNull(cache.sessionKey(null));
+        assertFalse(cache.isAuthorized(null));
+    }
+
+    @Test
+    public void testKeyHit() throws Exception {
+        AuthorizationCache cache = new AuthorizationCache(10, 60 * 1000);
+        PublicKey publicKey = newPublicKey();
+        cache.authorize(cache.publicKeyKey(publicKey), cache.getGeneration());
+
+        // The same key arriving on a new session, decoded into a new object
+        PublicKey sameKey =
+                KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(publicKey.getEncoded()));
+        assertTrue(cache.isAuthorized(cache.publicKeyKey(sameKey)));
+        assertFalse(cache.isAuthorized(cache.publicKeyKey(newPublicKey())));
+        assertFalse(cache.isAuthorized(cache.sessionKey(session(new byte[] { 1, 2, 3 }))));
+    }
+
+    @Test
+    public void testClearOnChange() {
+        AuthorizationCache cache = new AuthorizationCache(10, 60 * 1000);
+        String sessionKey = cache.sessionKey(session(new byte[] { 1 }));
+        cache.authorize(sessionKey, cache.getGeneration());
+
+        // A lookup that started before the key database changed mustn't cache its now stale answer
+        long generationBeforeChange = cache.getGeneration();
+        cache.clear();
+        assertFalse(cache.isAuthorized(sessionKey));
+        cache.authorize(sessionKey, generationBeforeChange);
+        assertFalse(cache.isAuthorized(sessionKey));
+        assertEquals(0, cache.size());
+
+        cache.authorize(sessionKey, cache.getGeneration());
+        assertTrue(cache.isAuthorized(sessionKey));
+    }
+
+    @Test
+    public void testSizeAndTtl() {
+        AuthorizationCache cache = new AuthorizationCache(2, 60 * 1000);
+        for (byte i = 0; i < 3; ++i) {
+            cache.authorize(cache.sessionKey(session(new byte[] { i })), cache.getGeneration());
+        }
+        assertEquals(2, cache.size());
+        assertFalse(cache.isAuthorized(cache.sessionKey(session(new byte[] { 0 }))));
+
+        AuthorizationCache off = new AuthorizationCache(2, 0);
+        assertNull(off.sessionKey(session(new byte[] { 1 })));
+        assertNull(off.publicKeyKey(null));
+    }
+}
@@ -0,0 +1,221 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.HedgedGet;
+import com.msopentech.thali.utilities.universal.ThaliPeerStats;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgedGetTest {
+    /**
+     * Plain HTTP server that holds on to the first stalledRequests requests for stallMillis before answering them.
+     * If answer is false it hangs up instead of answering anything. Counts the requests it sees and the stalled ones
+     * the client gave up on.
+     */
+    static class StallingServer implements Runnable {
+        final ServerSocket serverSocket;
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger abandoned = new AtomicInteger();
+        final int stalledRequests;
+        final int stallMillis;
+        final boolean answer;
+
+        StallingServer(int stalledRequests, int stallMillis, boolean answer) throws IOException {
+            this.stalledRequests = stalledRequests;
+            this.stallMillis = stallMillis;
+            this.answer = answer;
+            serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "Stalling server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+        }
+
+        ThaliPeerStats getPeerStats() {
+            return ThaliPeerStats.forPeer("127.0.0.1", serverSocket.getLocalPort());
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (serverSocket.isClosed() == false) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread connectionThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(socket);
+                            } catch (IOException e) {
+                                // The client went away
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                }
+                            }
+                        }
+                    });
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        void handle(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                // Requests here never have a body so the empty line ends them
+                int matched = 0;
+                while (matched < 4) {
+                    int b = in.read();
+                    if (b == -1) {
+                        return;
+                    }
+                    matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+                }
+                if (requests.incrementAndGet() <= stalledRequests) {
+                    // Nothing more should come from the client, so a read only returns if it hangs up on us
+                    socket.setSoTimeout(stallMillis);
+                    try {
+                        if (in.read() == -1) {
+                            abandoned.incrementAndGet();
+                            return;
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // Done stalling
+                    } catch (IOException e) {
+                        abandoned.incrementAndGet();
+                        return;
+                    }
+                    socket.setSoTimeout(0);
+                }
+                if (answer == false) {
+                    return;
+                }
+                out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok".getBytes("US-ASCII"));
+                out.flush();
+            }
+        }
+    }
+
+    private DefaultHttpClient httpClient;
+    private StallingServer server;
+
+    @Before
+    public void setUp() {
+        ThaliPeerStats.clear();
+        httpClient = new DefaultHttpClient(new PoolingClientConnectionManager());
+        // Let the hedge be the only second try
+        httpClient.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.getConnectionManager().shutdown();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private static void assertOk(HttpResponse response) throws IOException {
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("ok", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testHedgeWins() throws Exception {
+        server = new StallingServer(1, 10 * 1000, true);
+        long start = System.currentTimeMillis();
+        assertOk(HedgedGet.execute(httpClient, new HttpGet(server.getUrl()), 100));
+        assertTrue(System.currentTimeMillis() - start < 5 * 1000);
+        assertEquals(2, server.requests.get());
+        assertEquals(1, server.getPeerStats().getRetries());
+
+        // The stuck request was torn off its connection rather than left to finish
+        long deadline = System.currentTimeMillis() + 5 * 1000;
+        while (server.abandoned.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.abandoned.get());
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testNoHedgeWhenAnsweredInTime() throws Exception {
+        server = new StallingServer(0, 0, true);
+        assertOk(HedgedGet.execute(httpClient, new HttpGet(server.getUrl()), 5 * 1000));
+        assertEquals(1, server.requests.get());
+        assertEquals(0, server.getPeerStats().getRetries());
+
+        // Nothing known about the peer's latency, so nothing to hedge against
+        assertTrue(server.getPeerStats().getAverageLatencyMillis() < 0);
+        assertOk(HedgedGet.execute(httpClient, new HttpGet(server.getUrl())));
+        assertEquals(2, server.requests.get());
+        assertEquals(0, server.getPeerStats().getRetries());
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testNoHedgeWithoutRetryBudget() throws Exception {
+        server = new StallingServer(1, 300, true);
+        ThaliPeerStats peerStats = server.getPeerStats();
+        while (peerStats.tryAcquireRetry()) {
+        }
+        long retries = peerStats.getRetries();
+
+        assertOk(HedgedGet.execute(httpClient, new HttpGet(server.getUrl()), 50));
+        assertEquals(1, server.requests.get());
+        assertEquals(retries, peerStats.getRetries());
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testBothFail() throws Exception {
+        server = new StallingServer(2, 300, false);
+        try {
+            HedgedGet.execute(httpClient, new HttpGet(server.getUrl()), 50);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals(2, server.requests.get());
+        assertEquals(1, server.getPeerStats().getRetries());
+    }
+}
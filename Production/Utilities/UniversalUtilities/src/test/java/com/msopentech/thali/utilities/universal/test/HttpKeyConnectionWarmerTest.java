@@ -0,0 +1,105 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.HttpKeyConnectionWarmer;
+import com.msopentech.thali.utilities.universal.HttpKeyHttpClient;
+import com.msopentech.thali.utilities.universal.HttpKeyURL;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyStore;
+
+import static org.junit.Assert.*;
+
+public class HttpKeyConnectionWarmerTest {
+    private KeyPair keyPair;
+    private KeyStore keyStore;
+    private HttpKeyHttpClientTest.KeepAliveTlsServer server;
+    private HttpKeyHttpClient httpClient;
+
+    @Before
+    public void setUp() throws Exception {
+        keyPair = ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair();
+        keyStore = ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(keyPair,
+                ThaliCryptoUtilities.ThaliKeyAlias, ThaliCryptoUtilities.DefaultPassPhrase);
+        httpClient = new HttpKeyHttpClient(keyPair.getPublic(), keyStore, ThaliCryptoUtilities.DefaultPassPhrase, null,
+                new BasicHttpParams());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpClient.getConnectionManager().shutdown();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private HttpKeyConnectionWarmer newWarmer(int keepAliveTimeoutSeconds, int connections) throws Exception {
+        server = new HttpKeyHttpClientTest.KeepAliveTlsServer(keyStore, keepAliveTimeoutSeconds);
+        return new HttpKeyConnectionWarmer(httpClient,
+                new HttpKeyURL(keyPair.getPublic(), "127.0.0.1", server.getPort(), null, null, null), connections);
+    }
+
+    /**
+     * The peer's keep-alive is much shorter than the default probe interval, so we have to probe sooner to keep the
+     * connections in the pool.
+     */
+    @Test(timeout = 30 * 1000)
+    public void testKeepsConnectionsWarmWithinShortPeerKeepAlive() throws Exception {
+        HttpKeyConnectionWarmer warmer = newWarmer(3, 2).start();
+        try {
+            Thread.sleep(3500);
+            assertFalse(warmer.isStopped());
+            assertEquals(2000, warmer.getPeerKeepAliveMillis());
+
+            // Long after the first round's connections would have expired a request still finds one warm
+            HttpResponse response =
+                    httpClient.execute(new HttpGet("https://127.0.0.1:" + server.getPort() + "/"));
+            assertEquals("ok", EntityUtils.toString(response.getEntity()));
+            assertEquals(2, server.connections.get());
+        } finally {
+            warmer.stop();
+        }
+    }
+
+    @Test(timeout = 30 * 1000)
+    public void testGivesUpOnPeerThatWontKeepConnections() throws Exception {
+        // What a listener still using the old one second keep-alive looks like
+        HttpKeyConnectionWarmer warmer = newWarmer(1, 1).start();
+        while (warmer.isStopped() == false) {
+            Thread.sleep(50);
+        }
+        assertEquals(1, warmer.getPeerKeepAliveMillis());
+    }
+
+    @Test
+    public void testStopBeforeOrDuringProbe() throws Exception {
+        HttpKeyConnectionWarmer warmer = newWarmer(3, 2);
+        assertEquals(2, warmer.probe());
+        warmer.stop();
+
+        // Neither a round that was already on its way nor a late start blow up once we are stopped
+        assertEquals(0, warmer.probe());
+        warmer.start();
+        assertTrue(warmer.isStopped());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.HttpKeyHttpClient;
+import com.msopentech.thali.utilities.universal.HttpKeySSLSocketFactory;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.*;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HttpKeyHttpClientTest {
+    /**
+     * A mutual TLS server that answers every request on a connection with a small keep-alive response and counts
+     * the connections it accepts. If given a keep-alive timeout it advertises it and then stops answering on a
+     * connection that has been idle for nearly that long, without closing it. That is what a client sees when it
+     * reuses a connection just as the server times it out, the request is still in flight when the server gives up.
+     */
+    static class KeepAliveTlsServer implements Runnable {
+        final SSLServerSocket serverSocket;
+        final AtomicInteger connections = new AtomicInteger();
+        final int keepAliveTimeoutSeconds;
+
+        KeepAliveTlsServer(KeyStore keyStore) throws Exception {
+            this(keyStore, 0);
+        }
+
+        KeepAliveTlsServer(KeyStore keyStore, int keepAliveTimeoutSeconds) throws Exception {
+            this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, ThaliCryptoUtilities.DefaultPassPhrase);
+            TrustManager acceptAllClients = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), new TrustManager[] { acceptAllClients }, null);
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0);
+            serverSocket.setNeedClientAuth(true);
+            Thread thread = new Thread(this, "Keep alive TLS server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (serverSocket.isClosed() == false) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread connectionThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(socket);
+                            } catch (IOException e) {
+                                // The client went away
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                }
+                            }
+                        }
+                    });
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+
+        void handle(Socket socket) throws IOException {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            String keepAliveHeader = "";
+            if (keepAliveTimeoutSeconds > 0) {
+                socket.setSoTimeout(keepAliveTimeoutSeconds * 1000 - 500);
+                keepAliveHeader = "Keep-Alive: timeout=" + keepAliveTimeoutSeconds + "\r\n";
+            }
+            while (true) {
+                // Requests here never have a body so the empty line ends them
+                int matched = 0;
+                while (matched < 4) {
+                    int b;
+                    try {
+                        b = in.read();
+                    } catch (SocketTimeoutException e) {
+                        // Timed out, leave the connection hanging until the server is closed
+                        while (serverSocket.isClosed() == false) {
+                            try {
+                                Thread.sleep(100);
+                            } catch (InterruptedException interrupted) {
+                                return;
+                            }
+                        }
+                        return;
+                    }
+                    if (b == -1) {
+                        return;
+                    }
+                    matched = b == "\r\n\r\n".charAt(matched) ? matched + 1 : (b == '\r' ? 1 : 0);
+                }
+                out.write(("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n" + keepAliveHeader + "\r\nok")
+                        .getBytes("US-ASCII"));
+                out.flush();
+            }
+        }
+    }
+
+    private KeyPair keyPair;
+    private KeyStore keyStore;
+    private KeepAliveTlsServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        keyPair = ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair();
+        keyStore = ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(keyPair,
+                ThaliCryptoUtilities.ThaliKeyAlias, ThaliCryptoUtilities.DefaultPassPhrase);
+        server = new KeepAliveTlsServer(keyStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    private void get(HttpKeyHttpClient httpClient) throws IOException {
+        get(httpClient, server);
+    }
+
+    private void get(HttpKeyHttpClient httpClient, KeepAliveTlsServer server) throws IOException {
+        HttpResponse response = httpClient.execute(new HttpGet("https://127.0.0.1:" + server.getPort() + "/"));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("ok", EntityUtils.toString(response.getEntity()));
+    }
+
+    /**
+     * With client certs the default user token handler would tie each pooled connection to the client principal and
+     * no later request would be given it.
+     */
+    @Test
+    public void testPooledConnectionIsReused() throws Exception {
+        // The server is its own client here, it's the client cert that matters
+        HttpKeySSLSocketFactory socketFactory =
+                HttpKeySSLSocketFactory.getSharedInstance(keyPair.getPublic(), keyStore,
+                        ThaliCryptoUtilities.DefaultPassPhrase);
+        HttpKeyHttpClient httpClient = new HttpKeyHttpClient(socketFactory, null, null, new BasicHttpParams());
+        try {
+            get(httpClient);
+            get(httpClient);
+            assertEquals(1, server.connections.get());
+
+            // A second client on the same pool, as ThaliHttpClientFactory hands out, gets the same connection
+            HttpKeyHttpClient sharingClient = new HttpKeyHttpClient(socketFactory, httpClient.getConnectionManager(),
+                    null, new BasicHttpParams());
+            get(sharingClient);
+            assertEquals(1, server.connections.get());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * What ThaliListener.setKeepAlive relies on: a connection is reused while the server still wants it and given up
+     * before the server's advertised timeout, so a request never goes out on a connection the server has dropped.
+     */
+    @Test(timeout = 30 * 1000)
+    public void testNoHangWhenServerKeepAliveExpires() throws Exception {
+        KeepAliveTlsServer keepAliveServer = new KeepAliveTlsServer(keyStore, 3);
+        HttpKeyHttpClient httpClient = new HttpKeyHttpClient(keyPair.getPublic(), keyStore,
+                ThaliCryptoUtilities.DefaultPassPhrase, null, new BasicHttpParams());
+        try {
+            get(httpClient, keepAliveServer);
+            get(httpClient, keepAliveServer);
+            assertEquals(1, keepAliveServer.connections.get());
+
+            // Still inside the advertised timeout but the server has already dropped the connection, reusing it would
+            // wait forever for an answer
+            Thread.sleep(2750);
+            get(httpClient, keepAliveServer);
+            assertEquals(2, keepAliveServer.connections.get());
+        } finally {
+            httpClient.getConnectionManager().shutdown();
+            keepAliveServer.close();
+        }
+    }
+}
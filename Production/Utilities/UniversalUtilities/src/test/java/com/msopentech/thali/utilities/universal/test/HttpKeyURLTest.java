@@ -15,12 +15,18 @@ package com.msopentech.thali.utilities.universal.test;
 
 import com.msopentech.thali.utilities.universal.HttpKeyURL;
 import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import com.msopentech.thali.utilities.universal.ThaliPublicKeyComparer;
 import org.junit.Test;
 
 import java.net.URISyntaxException;
 import java.security.KeyPair;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
+import java.util.HashSet;
+import java.util.Set;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -80,4 +86,65 @@ public class HttpKeyURLTest {
         expectedHttpsURL = "https://" + host + ":" + port + "/ick%20%20%3F" + "?" + "??????%20%20%20%20" + "#" + "%23%23%23???///???";
         assertTrue(expectedHttpsURL.equals(escapedChars.createHttpsUrl()));
     }
+
+    @Test
+    public void testEcHttpKeyURL() throws URISyntaxException {
+        KeyPair keyPair =
+                ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair(ThaliCryptoUtilities.EcKeyTypeIdentifier);
+        ECPublicKey serverPublicKey = (ECPublicKey) keyPair.getPublic();
+
+        HttpKeyURL httpKeyURL = new HttpKeyURL(serverPublicKey, "foo.com", 413, "ick", null, null);
+        String keyString = httpKeyURL.toString().split("/")[3];
+        assertTrue(keyString.startsWith(HttpKeyURL.ecKeyType + ":"));
+        assertTrue(keyString.matches("[a-z]+:[A-Za-z0-9_-]+"));
+
+        HttpKeyURL parsedHttpKeyURL = new HttpKeyURL(httpKeyURL.toString());
+        assertTrue(parsedHttpKeyURL.getServerPublicKey() instanceof ECPublicKey);
+        assertTrue(serverPublicKey.getW().equals(((ECPublicKey) parsedHttpKeyURL.getServerPublicKey()).getW()));
+        assertTrue(httpKeyURL.equals(parsedHttpKeyURL));
+        assertTrue("ick".equals(parsedHttpKeyURL.getPath()));
+
+        HttpKeyURL rsaHttpKeyURL = new HttpKeyURL(ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair()
+                .getPublic(), "foo.com", 413, "ick", null, null);
+        assertFalse(httpKeyURL.equals(rsaHttpKeyURL));
+        assertFalse(rsaHttpKeyURL.equals(httpKeyURL));
+    }
+
+    @Test
+    public void testCompactRsaHttpKeyURL() {
+        RSAPublicKey serverPublicKey =
+                (RSAPublicKey) ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair().getPublic();
+        HttpKeyURL legacyHttpKeyURL = new HttpKeyURL(serverPublicKey, "foo.com", 413, "ick", null, null);
+
+        String compactKeyString = HttpKeyURL.rsaKeyToCompactHttpKeyString(serverPublicKey);
+        assertTrue(compactKeyString.startsWith(HttpKeyURL.rsaKeyType + ":"));
+        assertTrue(compactKeyString.length() < HttpKeyURL.rsaKeyToHttpKeyString(serverPublicKey).length());
+
+        HttpKeyURL compactHttpKeyURL = new HttpKeyURL(serverPublicKey, "foo.com", 413, "ick", null, null, true);
+        assertTrue(compactHttpKeyURL.toString().contains("/" + compactKeyString + "/"));
+        // Asking one URL for the compact form doesn't change anyone else's
+        assertEquals(legacyHttpKeyURL.toString(),
+                new HttpKeyURL(serverPublicKey, "foo.com", 413, "ick", null, null).toString());
+
+        // Both forms parse to the same key and parsing the same string twice gives back the same object
+        HttpKeyURL parsedCompact = new HttpKeyURL(compactHttpKeyURL.toString());
+        HttpKeyURL parsedLegacy = new HttpKeyURL(legacyHttpKeyURL.toString());
+        assertTrue(new ThaliPublicKeyComparer(serverPublicKey).KeysEqual(parsedCompact.getServerPublicKey()));
+        assertTrue(new ThaliPublicKeyComparer(serverPublicKey).KeysEqual(parsedLegacy.getServerPublicKey()));
+        assertTrue(parsedCompact.getServerPublicKey() ==
+                new HttpKeyURL(compactHttpKeyURL.toString()).getServerPublicKey());
+
+        // Same key, same place, so the same URL however the key was written
+        assertTrue(parsedCompact.equals(parsedLegacy));
+        assertTrue(parsedCompact.hashCode() == parsedLegacy.hashCode());
+        assertTrue(parsedCompact.getKeyFingerprint().equals(legacyHttpKeyURL.getKeyFingerprint()));
+        Set<HttpKeyURL> urls = new HashSet<HttpKeyURL>();
+        urls.add(parsedLegacy);
+        assertTrue(urls.contains(parsedCompact));
+        assertFalse(urls.contains(new HttpKeyURL(serverPublicKey, "foo.com", 413, "bark", null, null)));
+
+        // The canonical form used for key document IDs is always the legacy one
+        assertTrue(HttpKeyURL.publicKeyToHttpKeyString(serverPublicKey)
+                .equals(HttpKeyURL.rsaKeyToHttpKeyString(serverPublicKey)));
+    }
 }
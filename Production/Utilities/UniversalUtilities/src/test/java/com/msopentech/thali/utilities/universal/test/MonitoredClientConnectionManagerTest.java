@@ -0,0 +1,88 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.ConnectionPoolStats;
+import com.msopentech.thali.utilities.universal.MonitoredClientConnectionManager;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MonitoredClientConnectionManagerTest {
+    @Test
+    public void testRouteStats() throws Exception {
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        ThreadSafeClientConnManager pool = new ThreadSafeClientConnManager(schemeRegistry);
+        pool.setDefaultMaxPerRoute(1);
+        final MonitoredClientConnectionManager connectionManager = new MonitoredClientConnectionManager(pool);
+        final HttpRoute route = new HttpRoute(new HttpHost("127.0.0.1", 9898, "http"));
+
+        try {
+            ManagedClientConnection first =
+                    connectionManager.requestConnection(route, null).getConnection(1, TimeUnit.SECONDS);
+            ConnectionPoolStats stats = connectionManager.getStats(route);
+            assertEquals(1, stats.getLeased());
+            assertEquals(0, stats.getPending());
+            assertEquals(0, stats.getAvailable());
+
+            // The route only gets one connection so this has to wait for the first to come back
+            final AtomicReference<ManagedClientConnection> second = new AtomicReference<ManagedClientConnection>();
+            Thread waiter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        second.set(connectionManager.requestConnection(route, null)
+                                .getConnection(10, TimeUnit.SECONDS));
+                    } catch (Exception e) {
+                        // second stays null
+                    }
+                }
+            });
+            waiter.start();
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (connectionManager.getStats(route).getPending() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, connectionManager.getStats(route).getPending());
+            Thread.sleep(50);
+
+            connectionManager.releaseConnection(first, 0, TimeUnit.MILLISECONDS);
+            waiter.join();
+            assertNotNull(second.get());
+
+            stats = connectionManager.getStats(route);
+            assertEquals(1, stats.getLeased());
+            assertEquals(0, stats.getPending());
+            assertEquals(2, stats.getLeases());
+            assertTrue(stats.getMaxWaitMillis() >= 50);
+            assertEquals(1, connectionManager.getStats().size());
+
+            connectionManager.releaseConnection(second.get(), 0, TimeUnit.MILLISECONDS);
+            assertEquals(0, connectionManager.getStats(route).getLeased());
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+}
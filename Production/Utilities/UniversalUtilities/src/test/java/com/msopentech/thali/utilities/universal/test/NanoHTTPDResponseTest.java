@@ -0,0 +1,208 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.nanohttp.NanoHTTPD;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Responses sent by NanoHTTPD and read back by HttpClient over a real connection.
+ */
+public class NanoHTTPDResponseTest {
+    /**
+     * Bigger than one chunk, so a chunked response takes several
+     */
+    private static final byte[] bigBody = new byte[40 * 1024 + 17];
+
+    static {
+        for (int i = 0; i < bigBody.length; ++i) {
+            bigBody[i] = (byte) ('a' + i % 26);
+        }
+    }
+
+    static class TestServer extends NanoHTTPD {
+        final AtomicInteger connections = new AtomicInteger();
+        final CountDownLatch longPollRelease = new CountDownLatch(1);
+
+        TestServer() {
+            super("127.0.0.1", 0);
+        }
+
+        @Override
+        public synchronized void registerConnection(Socket socket) {
+            connections.incrementAndGet();
+            super.registerConnection(socket);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            String uri = session.getUri();
+            if (uri.equals("/fixed")) {
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, "fixed length");
+            }
+            if (uri.equals("/chunked")) {
+                Response response =
+                        new Response(Response.Status.OK, "application/octet-stream", new ByteArrayInputStream(bigBody));
+                response.setChunkedTransfer(true);
+                return response;
+            }
+            if (uri.equals("/longpoll")) {
+                // Like a _changes feed with nothing to report yet, the body only turns up once the test says so
+                Response response = new Response(Response.Status.OK, "application/json", new InputStream() {
+                    private final byte[] body = "{}".getBytes();
+                    private int position = 0;
+
+                    @Override
+                    public int read() throws IOException {
+                        try {
+                            if (!longPollRelease.await(10, TimeUnit.SECONDS)) {
+                                throw new IOException("Never released");
+                            }
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        return position < body.length ? body[position++] : -1;
+                    }
+                });
+                response.setChunkedTransfer(true);
+                return response;
+            }
+            if (uri.equals("/override")) {
+                // What subclasses could always do, and still can
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, "overridden") {
+                    @Override
+                    protected void sendConnectionHeaderIfNotAlreadyPresent(PrintWriter pw, Map<String, String> header) {
+                        pw.print("Connection: close\r\n");
+                    }
+
+                    @Override
+                    protected void sendContentLengthHeaderIfNotAlreadyPresent(PrintWriter pw,
+                                                                              Map<String, String> header, int size) {
+                        super.sendContentLengthHeaderIfNotAlreadyPresent(pw, header, size);
+                        pw.print("X-Body-Length: ");
+                        pw.print(size);
+                        pw.print("\r\n");
+                    }
+                };
+            }
+            return new Response(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "not found");
+        }
+    }
+
+    private TestServer server;
+    private DefaultHttpClient httpClient;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new TestServer();
+        server.start();
+        httpClient = new DefaultHttpClient();
+    }
+
+    @After
+    public void tearDown() {
+        httpClient.getConnectionManager().shutdown();
+        server.stop();
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getListeningPort() + path;
+    }
+
+    @Test
+    public void testFixedLength() throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(url("/fixed")));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("text/plain", response.getFirstHeader("Content-Type").getValue());
+        assertEquals("12", response.getFirstHeader("Content-Length").getValue());
+        assertNotNull(response.getFirstHeader("Date"));
+        assertNull(response.getFirstHeader("Transfer-Encoding"));
+        assertEquals("fixed length", EntityUtils.toString(response.getEntity()));
+
+        // Same headers, no body
+        response = httpClient.execute(new HttpHead(url("/fixed")));
+        assertEquals("12", response.getFirstHeader("Content-Length").getValue());
+        assertNull(response.getEntity());
+
+        response = httpClient.execute(new HttpGet(url("/missing")));
+        assertEquals(404, response.getStatusLine().getStatusCode());
+        assertEquals("not found", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testChunked() throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(url("/chunked")));
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("chunked", response.getFirstHeader("Transfer-Encoding").getValue());
+        assertNull(response.getFirstHeader("Content-Length"));
+        assertTrue(Arrays.equals(bigBody, EntityUtils.toByteArray(response.getEntity())));
+    }
+
+    @Test(timeout = 20 * 1000)
+    public void testChunkedHeadersDoNotWaitForTheBody() throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(url("/longpoll")));
+        // We only get here because the status and headers came before the body had anything to give
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        assertEquals("chunked", response.getFirstHeader("Transfer-Encoding").getValue());
+        assertEquals(1, server.longPollRelease.getCount());
+        server.longPollRelease.countDown();
+        assertEquals("{}", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testKeepAlive() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            HttpResponse response = httpClient.execute(new HttpGet(url("/fixed")));
+            assertEquals("keep-alive", response.getFirstHeader("Connection").getValue());
+            EntityUtils.consume(response.getEntity());
+            response = httpClient.execute(new HttpGet(url("/chunked")));
+            EntityUtils.consume(response.getEntity());
+        }
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testOverriddenHeaders() throws Exception {
+        HttpResponse response = httpClient.execute(new HttpGet(url("/override")));
+        assertEquals("close", response.getFirstHeader("Connection").getValue());
+        assertEquals("10", response.getFirstHeader("Content-Length").getValue());
+        assertEquals("10", response.getFirstHeader("X-Body-Length").getValue());
+        assertEquals("overridden", EntityUtils.toString(response.getEntity()));
+
+        // The client took the server at its word
+        EntityUtils.consume(httpClient.execute(new HttpGet(url("/fixed"))).getEntity());
+        assertEquals(2, server.connections.get());
+    }
+}
@@ -0,0 +1,483 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.nanohttp.NanoHTTPD;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NanoHTTPDSessionTest {
+    /**
+     * Hands each request to serveRequest instead of answering on a socket, sessions are driven by hand from streams.
+     */
+    static class TestServer extends NanoHTTPD {
+        final List<Map<String, String>> seen = new ArrayList<Map<String, String>>();
+
+        TestServer() {
+            super(0);
+        }
+
+        /**
+         * Records what the session made of the request, override to look at it differently
+         */
+        Map<String, String> record(IHTTPSession session) throws Exception {
+            Map<String, String> request = new HashMap<String, String>(session.getHeaders());
+            request.put(":method", session.getMethod().toString());
+            request.put(":rawUri", session.getRawUri());
+            request.put(":uri", session.getUri());
+            request.put(":query", session.getQueryParameterString());
+            return request;
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            try {
+                seen.add(record(session));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            return new Response(Response.Status.OK, MIME_PLAINTEXT, "ok");
+        }
+
+        Map<String, List<String>> decodeAll(String queryString) {
+            return decodeParameters(queryString);
+        }
+
+        /**
+         * Runs the session until the client's stream runs out
+         */
+        void executeAll(HTTPSession session) throws IOException {
+            try {
+                while (true) {
+                    session.execute();
+                }
+            } catch (SocketException e) {
+                // Out of requests
+            }
+        }
+
+        HTTPSession session(InputStream in, ByteArrayOutputStream out) {
+            return session(new DefaultTempFileManager(), in, out);
+        }
+
+        HTTPSession session(TempFileManager tempFileManager, InputStream in, ByteArrayOutputStream out) {
+            return new HTTPSession(tempFileManager, in, out);
+        }
+    }
+
+    /**
+     * Gives a read no more than the bytes up to the next of the given offsets, the way a request can turn up in
+     * pieces off a socket. Claims nothing is available so the session can't tell where the pieces end.
+     */
+    static class PiecewiseInputStream extends InputStream {
+        private final byte[] data;
+        private final int[] splits;
+        private int position = 0;
+
+        PiecewiseInputStream(byte[] data, int... splits) {
+            this.data = data;
+            this.splits = splits;
+        }
+
+        static PiecewiseInputStream everyByte(byte[] data) {
+            int[] splits = new int[data.length];
+            for (int i = 0; i < splits.length; ++i) {
+                splits[i] = i + 1;
+            }
+            return new PiecewiseInputStream(data, splits);
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int end = data.length;
+            for (int split : splits) {
+                if (split > position) {
+                    end = Math.min(end, split);
+                    break;
+                }
+            }
+            len = Math.min(len, end - position);
+            System.arraycopy(data, position, b, off, len);
+            position += len;
+            return len;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+
+    /**
+     * Keeps each POST's body as getBody() returned it, the buffer itself and not a copy, along with what was in it
+     * at the time. A PUT's body goes through parseBody() into a file instead.
+     */
+    static class BodyServer extends TestServer {
+        final List<ByteBuffer> bodies = new ArrayList<ByteBuffer>();
+
+        @Override
+        Map<String, String> record(IHTTPSession session) throws Exception {
+            Map<String, String> request = new HashMap<String, String>();
+            if (session.getMethod() == Method.PUT) {
+                Map<String, String> files = new HashMap<String, String>();
+                session.parseBody(files);
+                File file = new File(files.get("content"));
+                request.put(":file", file.getPath());
+                request.put(":body", new String(readFully(file), "US-ASCII"));
+                return request;
+            }
+            ByteBuffer body = ((HTTPSession) session).getBody();
+            bodies.add(body);
+            request.put(":body", string(body));
+            return request;
+        }
+    }
+
+    static byte[] readFully(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.readFully(bytes);
+        } finally {
+            randomAccessFile.close();
+        }
+        return bytes;
+    }
+
+    static byte[] bytes(String request) throws IOException {
+        return request.getBytes("US-ASCII");
+    }
+
+    static String string(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, "US-ASCII");
+    }
+
+    static String post(String body) {
+        return "POST / HTTP/1.1\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+    }
+
+    static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static final String request = "GET /a/b?x=1&y=two HTTP/1.1\r\n" +
+            "Host: example.com\r\n" +
+            "X-Padded:   spaced out  \r\n" +
+            "content-length: 0\r\n" +
+            "\r\n";
+
+    private static void assertParsed(Map<String, String> seen) {
+        assertEquals("GET", seen.get(":method"));
+        assertEquals("/a/b", seen.get(":rawUri"));
+        assertEquals("x=1&y=two", seen.get(":query"));
+        assertEquals("example.com", seen.get("host"));
+        assertEquals("spaced out", seen.get("x-padded"));
+        assertEquals("0", seen.get("content-length"));
+    }
+
+    @Test
+    public void testHeaderSplitAcrossReads() throws Exception {
+        byte[] requestBytes = bytes(request);
+        // Wherever the reads break the header up, including inside the \r\n\r\n at its end
+        for (int split = 1; split < requestBytes.length; ++split) {
+            TestServer server = new TestServer();
+            server.executeAll(server.session(new PiecewiseInputStream(requestBytes, split),
+                    new ByteArrayOutputStream()));
+            assertEquals("split at " + split, 1, server.seen.size());
+            assertParsed(server.seen.get(0));
+        }
+
+        TestServer server = new TestServer();
+        server.executeAll(server.session(PiecewiseInputStream.everyByte(requestBytes), new ByteArrayOutputStream()));
+        assertEquals(1, server.seen.size());
+        assertParsed(server.seen.get(0));
+    }
+
+    @Test
+    public void testHeaderEndingAtBufferBoundary() throws Exception {
+        // Pad the first request's header to exactly fill the session's buffer, the next one starts in a new read
+        String start = "GET /a/b?x=1&y=two HTTP/1.1\r\nHost: example.com\r\nX-Padded:   spaced out  \r\n" +
+                "content-length: 0\r\nX-Filler: ";
+        String end = "\r\n\r\n";
+        StringBuilder filler = new StringBuilder();
+        while (start.length() + filler.length() + end.length() < NanoHTTPD.HTTPSession.BUFSIZE) {
+            filler.append('f');
+        }
+        byte[] first = bytes(start + filler + end);
+        assertEquals(NanoHTTPD.HTTPSession.BUFSIZE, first.length);
+        byte[] second = bytes(request);
+        byte[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+
+        // In one go, and with a read that straddles the end of the buffer
+        int[][] splitsToTry = { {}, { NanoHTTPD.HTTPSession.BUFSIZE - 2, NanoHTTPD.HTTPSession.BUFSIZE + 3 } };
+        for (int[] splits : splitsToTry) {
+            TestServer server = new TestServer();
+            server.executeAll(server.session(new PiecewiseInputStream(both, splits), new ByteArrayOutputStream()));
+            assertEquals(2, server.seen.size());
+            assertParsed(server.seen.get(0));
+            assertEquals(filler.toString(), server.seen.get(0).get("x-filler"));
+            assertParsed(server.seen.get(1));
+            assertNull(server.seen.get(1).get("x-filler"));
+        }
+    }
+
+    @Test
+    public void testEncodedPath() throws Exception {
+        TestServer server = new TestServer();
+        server.executeAll(server.session(new ByteArrayInputStream(
+                bytes("GET /db/a%20doc%2Fwith%3Fodd%25chars?rev=1-%41 HTTP/1.1\r\n\r\n")),
+                new ByteArrayOutputStream()));
+        Map<String, String> seen = server.seen.get(0);
+        assertEquals("/db/a%20doc%2Fwith%3Fodd%25chars", seen.get(":rawUri"));
+        assertEquals("/db/a doc/with?odd%chars", seen.get(":uri"));
+        // The query string is left as sent
+        assertEquals("rev=1-%41", seen.get(":query"));
+    }
+
+    @Test
+    public void testDuplicateParameters() throws Exception {
+        TestServer server = new TestServer() {
+            @Override
+            Map<String, String> record(IHTTPSession session) {
+                return session.getParms();
+            }
+        };
+        String query = "a=1&a=2&b=%41%20b&c&a%3D=3";
+        server.executeAll(server.session(new ByteArrayInputStream(bytes("GET /?" + query + " HTTP/1.1\r\n\r\n")),
+                new ByteArrayOutputStream()));
+        Map<String, String> parms = server.seen.get(0);
+        // One value per name, the last one wins
+        assertEquals("2", parms.get("a"));
+        assertEquals("A b", parms.get("b"));
+        assertEquals("", parms.get("c"));
+        assertEquals("3", parms.get("a="));
+        assertEquals(4, parms.size());
+
+        // All of them are still there for whoever wants them
+        Map<String, List<String>> all = server.decodeAll(query);
+        assertEquals(Arrays.asList("1", "2"), all.get("a"));
+        assertEquals(Arrays.asList("A b"), all.get("b"));
+    }
+
+    @Test
+    public void testCookies() throws Exception {
+        TestServer server = new TestServer() {
+            @Override
+            Map<String, String> record(IHTTPSession session) {
+                CookieHandler cookies = session.getCookies();
+                Map<String, String> request = new HashMap<String, String>();
+                for (String name : cookies) {
+                    request.put(name, cookies.read(name));
+                }
+                if (session.getUri().equals("/set")) {
+                    cookies.set(new Cookie("session", "abc", "Thu, 01 Jan 2026 00:00:00 GMT"));
+                }
+                return request;
+            }
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(
+                "GET /set HTTP/1.1\r\nCookie: a=1;b=two;  broken; c=x=y\r\n\r\n" +
+                "GET /get HTTP/1.1\r\n\r\n")), out));
+
+        // Anything that isn't a plain name=value is dropped
+        Map<String, String> cookies = server.seen.get(0);
+        assertEquals("1", cookies.get("a"));
+        assertEquals("two", cookies.get("b"));
+        assertEquals(2, cookies.size());
+        // The next request on the connection sent none
+        assertTrue(server.seen.get(1).isEmpty());
+
+        String responses = out.toString("US-ASCII");
+        assertEquals(responses.indexOf("Set-Cookie: session=abc; expires=Thu, 01 Jan 2026 00:00:00 GMT\r\n"),
+                responses.lastIndexOf("Set-Cookie"));
+        assertTrue(responses.indexOf("Set-Cookie") < responses.lastIndexOf("HTTP/1.1 200"));
+    }
+
+    /**
+     * Three requests on one connection, each read into the same session buffer over the last. Whatever a request
+     * does or doesn't ask for, what it gets is its own.
+     */
+    @Test
+    public void testLazyGettersAfterBufferReuse() throws Exception {
+        TestServer server = new TestServer() {
+            @Override
+            Map<String, String> record(IHTTPSession session) throws Exception {
+                // Read the body off the connection first, the session has moved on from the header by then
+                Map<String, String> request = new HashMap<String, String>();
+                InputStream body = ((HTTPSession) session).getBodyInputStream();
+                if (body != null) {
+                    ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = body.read()) != -1) {
+                        bodyBytes.write(b);
+                    }
+                    request.put(":body", bodyBytes.toString("US-ASCII"));
+                }
+                if (session.getRawUri().equals("/skip")) {
+                    return request;
+                }
+                request.put(":uri", session.getUri());
+                request.put(":cookies", String.valueOf(session.getCookies().read("s")));
+                request.putAll(session.getParms());
+                return request;
+            }
+        };
+        byte[] first = bytes("POST /first%20request/with/a/long/path?a=1&b=2 HTTP/1.1\r\n" +
+                "Cookie: s=first\r\nContent-Length: 7\r\n\r\nGET /no");
+        byte[] second = bytes("GET /skip?a=skipped HTTP/1.1\r\nCookie: s=skipped\r\n\r\n");
+        byte[] third = bytes("GET /3%20rd HTTP/1.1\r\n\r\n");
+        byte[] all = Arrays.copyOf(first, first.length + second.length + third.length);
+        System.arraycopy(second, 0, all, first.length, second.length);
+        System.arraycopy(third, 0, all, first.length + second.length, third.length);
+        server.executeAll(server.session(new PiecewiseInputStream(all, first.length, first.length + second.length),
+                new ByteArrayOutputStream()));
+        assertEquals(3, server.seen.size());
+
+        // The body looks like the start of a request, it mustn't be taken for one
+        Map<String, String> seen = server.seen.get(0);
+        assertEquals("GET /no", seen.get(":body"));
+        assertEquals("/first request/with/a/long/path", seen.get(":uri"));
+        assertEquals("first", seen.get(":cookies"));
+        assertEquals("1", seen.get("a"));
+        assertEquals("2", seen.get("b"));
+
+        seen = server.seen.get(2);
+        assertEquals("/3 rd", seen.get(":uri"));
+        assertEquals("null", seen.get(":cookies"));
+        assertNull(seen.get("a"));
+        assertNull(seen.get("b"));
+        assertNull(seen.get(":body"));
+    }
+
+    @Test
+    public void testBodyInMemory() throws Exception {
+        BodyServer server = new BodyServer();
+        String big = repeat('x', 100);
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(
+                post("hello world") + post("short") + post(big) + post(""))), new ByteArrayOutputStream()));
+        assertEquals(4, server.seen.size());
+        assertEquals("hello world", server.seen.get(0).get(":body"));
+        assertEquals("short", server.seen.get(1).get(":body"));
+        assertEquals(big, server.seen.get(2).get(":body"));
+        assertEquals("", server.seen.get(3).get(":body"));
+        assertEquals(4, server.getBodiesBufferedInMemory());
+        assertEquals(0, server.getBodiesSpilledToDisk());
+
+        // Buffers are sized to the body, not the threshold, and go back to the pool once the response is sent
+        ByteBuffer first = server.bodies.get(0);
+        assertEquals(11, first.array().length);
+        assertSame(first.array(), server.bodies.get(1).array());
+        assertEquals(100, server.bodies.get(2).array().length);
+
+        // Which is why a body is only good until then, the second request wrote over the first one's
+        assertEquals("short world", string(first));
+    }
+
+    @Test
+    public void testBodyInTempFile() throws Exception {
+        BodyServer server = new BodyServer();
+        server.setBodyMemoryThreshold(16);
+        String fits = repeat('m', 16);
+        String tooBig = repeat('d', 40 * 1024 + 1);
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(
+                post(fits) + post(tooBig) + "PUT / HTTP/1.1\r\nContent-Length: 17\r\n\r\n" + repeat('p', 17))),
+                new ByteArrayOutputStream()));
+        assertEquals(3, server.seen.size());
+        assertEquals(fits, server.seen.get(0).get(":body"));
+        assertTrue(server.bodies.get(0).hasArray());
+        assertEquals(tooBig, server.seen.get(1).get(":body"));
+        assertFalse(server.bodies.get(1).hasArray());
+        assertEquals(repeat('p', 17), server.seen.get(2).get(":body"));
+        assertEquals(1, server.getBodiesBufferedInMemory());
+        assertEquals(2, server.getBodiesSpilledToDisk());
+
+        // The PUT's content file was read while the request was served and is cleared up after
+        assertFalse(new File(server.seen.get(2).get(":file")).exists());
+
+        // With no threshold every body goes to disk
+        server = new BodyServer();
+        server.setBodyMemoryThreshold(0);
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(post("tiny"))), new ByteArrayOutputStream()));
+        assertEquals("tiny", server.seen.get(0).get(":body"));
+        assertEquals(0, server.getBodiesBufferedInMemory());
+        assertEquals(1, server.getBodiesSpilledToDisk());
+    }
+
+    @Test
+    public void testInvalidContentLength() throws Exception {
+        final List<NanoHTTPD.ResponseException> rejected = new ArrayList<NanoHTTPD.ResponseException>();
+        BodyServer server = new BodyServer() {
+            @Override
+            Map<String, String> record(IHTTPSession session) throws Exception {
+                try {
+                    return super.record(session);
+                } catch (ResponseException e) {
+                    rejected.add(e);
+                    return new HashMap<String, String>();
+                }
+            }
+        };
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(
+                "POST / HTTP/1.1\r\nContent-Length: -5\r\n\r\n" +
+                "POST / HTTP/1.1\r\nContent-Length: lots\r\n\r\n" +
+                "PUT / HTTP/1.1\r\nContent-Length: -1\r\n\r\n" +
+                "PUT / HTTP/1.1\r\nContent-Length: 1e3\r\n\r\n")), new ByteArrayOutputStream()));
+        assertEquals(4, server.seen.size());
+        assertEquals(4, rejected.size());
+        for (NanoHTTPD.ResponseException e : rejected) {
+            assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, e.getStatus());
+        }
+        assertEquals(0, server.getBodiesBufferedInMemory());
+        assertEquals(0, server.getBodiesSpilledToDisk());
+
+        // Too big for an int, which mustn't wrap it round to 5. The client gives up long before it's all there.
+        server = new BodyServer();
+        server.executeAll(server.session(new ByteArrayInputStream(bytes(
+                "POST / HTTP/1.1\r\nContent-Length: " + ((1L << 32) + 5) + "\r\n\r\nhello world")),
+                new ByteArrayOutputStream()));
+        assertEquals("hello world", server.seen.get(0).get(":body"));
+        assertEquals(1, server.getBodiesSpilledToDisk());
+    }
+}
@@ -0,0 +1,264 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.nanohttp.NanoHTTPD;
+import com.msopentech.thali.nanohttp.NanoHTTPD.PooledAsyncRunner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class NioEngineTest {
+    /**
+     * Longer than any request here should take, a connection the engine has lost track of shows up as a read
+     * timeout rather than a hang
+     */
+    private static final int CLIENT_READ_TIMEOUT = 5000;
+
+    /**
+     * Answers a POST with its body and anything else with the uri, counting requests as it goes
+     */
+    private static class EchoServer extends NanoHTTPD {
+        final AtomicInteger requests = new AtomicInteger();
+
+        EchoServer() {
+            super("127.0.0.1", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            requests.incrementAndGet();
+            if (session.getMethod() != Method.POST) {
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, session.getUri());
+            }
+            try {
+                ByteBuffer body = ((HTTPSession) session).getBody();
+                byte[] bytes = new byte[body.remaining()];
+                body.get(bytes);
+                return new Response(Response.Status.OK, MIME_PLAINTEXT, new String(bytes, "US-ASCII"));
+            } catch (Exception e) {
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, e.toString());
+            }
+        }
+    }
+
+    private EchoServer server;
+    private PooledAsyncRunner runner;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new EchoServer();
+        runner = new PooledAsyncRunner(2, 2, 0, 1000, PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION);
+        server.setAsyncRunner(runner);
+        server.setUseNio(true);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        runner.shutdown();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getListeningPort());
+        socket.setSoTimeout(CLIENT_READ_TIMEOUT);
+        return socket;
+    }
+
+    private static void write(Socket socket, String text) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes("US-ASCII"));
+        out.flush();
+    }
+
+    private static String get(String uri) {
+        return "GET " + uri + " HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    }
+
+    /**
+     * Reads one response off the connection, leaving it open, and returns its body
+     */
+    private static String readResponse(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        String statusLine = readLine(in);
+        assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 200 OK"));
+        int contentLength = -1;
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+            }
+        }
+        assertTrue("No content-length", contentLength >= 0);
+        byte[] body = new byte[contentLength];
+        for (int read = 0; read < contentLength; ) {
+            int count = in.read(body, read, contentLength - read);
+            assertTrue("Connection closed in the body", count != -1);
+            read += count;
+        }
+        return new String(body, "US-ASCII");
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            assertTrue("Connection closed in the headers", b != -1);
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString("US-ASCII");
+    }
+
+    /**
+     * @return true if the server closed the connection, false if it is still open after CLIENT_READ_TIMEOUT
+     */
+    private static boolean closedByServer(Socket socket) throws IOException {
+        try {
+            return socket.getInputStream().read() == -1;
+        } catch (SocketException e) {
+            // Reset
+            return true;
+        }
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CLIENT_READ_TIMEOUT;
+        while (runner.getActiveCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testKeepAliveConnectionIsReused() throws Exception {
+        server.start();
+        Socket socket = connect();
+        try {
+            for (int i = 0; i < 5; ++i) {
+                write(socket, get("/request" + i));
+                assertEquals("/request" + i, readResponse(socket));
+                // In between requests the connection waits on the selector rather than holding a thread
+                awaitIdle();
+                assertEquals(0, runner.getActiveCount());
+            }
+            assertEquals(5, server.requests.get());
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * The second request is already read into the session's buffer with the first, so the channel never becomes
+     * readable for it
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        server.start();
+        Socket socket = connect();
+        try {
+            write(socket, get("/first") + get("/second") + get("/third"));
+            assertEquals("/first", readResponse(socket));
+            assertEquals("/second", readResponse(socket));
+            assertEquals("/third", readResponse(socket));
+
+            write(socket, get("/after"));
+            assertEquals("/after", readResponse(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testIdleConnectionIsClosed() throws Exception {
+        server.setNioIdleTimeout(200);
+        server.start();
+        Socket socket = connect();
+        try {
+            write(socket, get("/"));
+            assertEquals("/", readResponse(socket));
+            // The sweep runs about once a second, well inside CLIENT_READ_TIMEOUT
+            assertTrue(closedByServer(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testBodyArrivingInPieces() throws Exception {
+        server.start();
+        Socket socket = connect();
+        try {
+            write(socket, "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 15\r\n\r\nhello");
+            Thread.sleep(200);
+            write(socket, " there");
+            Thread.sleep(200);
+            write(socket, " you");
+            assertEquals("hello there you", readResponse(socket));
+
+            // And the headers in pieces, split mid line
+            write(socket, "POST /echo HTTP/1.1\r\nHost: loc");
+            Thread.sleep(200);
+            write(socket, "alhost\r\nContent-Le");
+            Thread.sleep(200);
+            write(socket, "ngth: 2\r\n\r\nok");
+            assertEquals("ok", readResponse(socket));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 20 * 1000)
+    public void testStopClosesOpenConnections() throws Exception {
+        server.start();
+        Socket idle = connect();
+        Socket silent = connect();
+        Socket partial = connect();
+        try {
+            // One that has had a request and is back on the selector, one that hasn't sent anything and one that
+            // is part way through a request, so holds a thread
+            write(idle, get("/"));
+            assertEquals("/", readResponse(idle));
+            write(partial, "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\n\r\nhel");
+            long deadline = System.currentTimeMillis() + CLIENT_READ_TIMEOUT;
+            while (runner.getActiveCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, runner.getActiveCount());
+
+            server.stop();
+            assertTrue(closedByServer(idle));
+            assertTrue(closedByServer(silent));
+            assertTrue(closedByServer(partial));
+            awaitIdle();
+            assertEquals(0, runner.getActiveCount());
+        } finally {
+            idle.close();
+            silent.close();
+            partial.close();
+        }
+    }
+}
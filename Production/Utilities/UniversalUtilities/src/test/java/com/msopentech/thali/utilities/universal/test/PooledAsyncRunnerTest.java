@@ -0,0 +1,270 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.nanohttp.NanoHTTPD;
+import com.msopentech.thali.nanohttp.NanoHTTPD.PooledAsyncRunner;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PooledAsyncRunnerTest {
+    /**
+     * Longer than any request here should take but shorter than NanoHTTPD.SOCKET_READ_TIMEOUT, so a connection
+     * stuck on the wrong thread shows up as a read timeout rather than as a slow pass
+     */
+    private static final int CLIENT_READ_TIMEOUT = 3000;
+
+    private static class HelloServer extends NanoHTTPD {
+        HelloServer() {
+            super("127.0.0.1", 0);
+        }
+
+        @Override
+        public Response serve(IHTTPSession session) {
+            return new Response("hello");
+        }
+    }
+
+    private static Runnable blockUntil(final CountDownLatch started, final CountDownLatch release) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+    }
+
+    private static Socket get(int port) throws IOException {
+        Socket socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(CLIENT_READ_TIMEOUT);
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+        return socket;
+    }
+
+    /**
+     * Reads one response with a body of "hello", leaving the connection open.
+     */
+    private static void readHello(Socket socket) throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\nhello")) {
+            int b = in.read();
+            assertTrue("Connection closed after " + response, b != -1);
+            response.append((char) b);
+        }
+        assertTrue(response.toString().startsWith("HTTP/1.1 200 OK"));
+    }
+
+    @Test
+    public void testClosesConnectionWhenSaturated() throws Exception {
+        PooledAsyncRunner runner = new PooledAsyncRunner(1, 1, 0, 1000, PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            runner.exec(blockUntil(started, release));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(1, runner.getActiveCount());
+            assertEquals(0, runner.getQueuedCount());
+
+            try {
+                runner.exec(blockUntil(new CountDownLatch(1), release));
+                fail("The runner should be saturated");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(1, runner.getRejectedCount());
+        } finally {
+            release.countDown();
+            runner.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueuesUpToCapacity() throws Exception {
+        PooledAsyncRunner runner = new PooledAsyncRunner(1, 1, 1, 1000, PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch queuedStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            runner.exec(blockUntil(started, release));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            runner.exec(blockUntil(queuedStarted, release));
+            assertEquals(1, runner.getQueuedCount());
+
+            release.countDown();
+            assertTrue(queuedStarted.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (runner.getCompletedCount() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, runner.getCompletedCount());
+            assertEquals(0, runner.getActiveCount());
+            assertEquals(0, runner.getRejectedCount());
+        } finally {
+            release.countDown();
+            runner.shutdown();
+        }
+    }
+
+    /**
+     * ThreadPoolExecutor on its own only starts threads above corePoolSize once the queue is full, so with
+     * core < max connections would wait behind the core threads while the rest of the pool sat unstarted.
+     */
+    @Test
+    public void testGrowsToMaxPoolSizeBeforeQueueing() throws Exception {
+        PooledAsyncRunner runner = new PooledAsyncRunner(1, 3, 4, 1000, PooledAsyncRunner.RejectionPolicy.CLOSE_CONNECTION);
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch queuedStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 3; ++i) {
+                runner.exec(blockUntil(started, release));
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(3, runner.getActiveCount());
+            assertEquals(0, runner.getQueuedCount());
+            assertEquals(3, runner.getPoolSize());
+
+            // Only now that every thread is busy does a connection wait
+            runner.exec(blockUntil(queuedStarted, release));
+            assertEquals(1, runner.getQueuedCount());
+            assertEquals(3, runner.getPoolSize());
+
+            release.countDown();
+            assertTrue(queuedStarted.await(10, TimeUnit.SECONDS));
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (runner.getCompletedCount() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, runner.getCompletedCount());
+
+            // An idle thread takes the next connection rather than a new one being started
+            CountDownLatch reused = new CountDownLatch(1);
+            runner.exec(blockUntil(reused, new CountDownLatch(0)));
+            assertTrue(reused.await(10, TimeUnit.SECONDS));
+            assertEquals(3, runner.getLargestPoolSize());
+            assertEquals(0, runner.getRejectedCount());
+        } finally {
+            release.countDown();
+            runner.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallerRunsWhenSaturated() throws Exception {
+        PooledAsyncRunner runner = new PooledAsyncRunner(1, 1, 0, 1000, PooledAsyncRunner.RejectionPolicy.CALLER_RUNS);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            runner.exec(blockUntil(started, release));
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+            runner.exec(new Runnable() {
+                @Override
+                public void run() {
+                    ranOn.set(Thread.currentThread());
+                }
+            });
+            assertSame(Thread.currentThread(), ranOn.get());
+            assertEquals(1, runner.getRejectedCount());
+        } finally {
+            release.countDown();
+            runner.shutdown();
+        }
+    }
+
+    /**
+     * With one pool thread taken by a keep-alive client a second client is served on the accept thread, which has
+     * to let go of it after that one request or nobody else gets accepted until the second client goes away.
+     */
+    @Test
+    public void testCallerRunsOnlyHoldsAcceptThreadForOneRequest() throws Exception {
+        HelloServer server = new HelloServer();
+        server.setAsyncRunner(new PooledAsyncRunner(1, 1, 0, 1000, PooledAsyncRunner.RejectionPolicy.CALLER_RUNS));
+        server.start();
+        Socket first = null;
+        Socket second = null;
+        Socket third = null;
+        try {
+            first = get(server.getListeningPort());
+            readHello(first);
+
+            second = get(server.getListeningPort());
+            readHello(second);
+            // The pool is still busy with the first connection so the second one is closed rather than kept
+            assertEquals(-1, second.getInputStream().read());
+
+            third = get(server.getListeningPort());
+            readHello(third);
+        } finally {
+            for (Socket socket : new Socket[] { first, second, third }) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testNioRefusesCallerRuns() throws Exception {
+        HelloServer server = new HelloServer();
+        server.setAsyncRunner(new PooledAsyncRunner(1, 1, 0, 1000, PooledAsyncRunner.RejectionPolicy.CALLER_RUNS));
+        server.setUseNio(true);
+        try {
+            server.start();
+            fail("CALLER_RUNS would run connections on the selector thread");
+        } catch (IllegalStateException e) {
+            // expected
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        PooledAsyncRunner runner = new PooledAsyncRunner();
+        try {
+            if (!runner.setUseVirtualThreads(true)) {
+                // Not on this JDK, the runner has to stay on its pool
+                assertFalse(runner.isUsingVirtualThreads());
+                return;
+            }
+            assertEquals(-1, runner.getQueuedCount());
+            CountDownLatch ran = new CountDownLatch(1);
+            runner.exec(blockUntil(ran, new CountDownLatch(0)));
+            assertTrue(ran.await(10, TimeUnit.SECONDS));
+
+            assertFalse(runner.setUseVirtualThreads(false));
+            assertFalse(runner.isUsingVirtualThreads());
+            assertEquals(0, runner.getQueuedCount());
+        } finally {
+            runner.shutdown();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.nanohttp.NanoHTTPD;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PooledTempFileManagerFactoryTest {
+    private File directory;
+    private NanoHTTPD.PooledTempFileManagerFactory factory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("pooledTempFileTest", "");
+        assertTrue(directory.delete());
+        factory = new NanoHTTPD.PooledTempFileManagerFactory(directory, 2);
+    }
+
+    @After
+    public void tearDown() {
+        factory.deleteIdleFiles();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static File write(NanoHTTPD.TempFile tempFile) throws Exception {
+        OutputStream out = tempFile.open();
+        out.write(new byte[] { 1, 2, 3 });
+        out.flush();
+        return new File(tempFile.getName());
+    }
+
+    private Set<String> filesInDirectory() {
+        return new HashSet<String>(Arrays.asList(directory.list()));
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        assertTrue(directory.isDirectory());
+        NanoHTTPD.TempFileManager manager = factory.create();
+        File file = write(manager.createTempFile());
+        assertEquals(directory, file.getParentFile());
+        assertEquals(3, file.length());
+        manager.clear();
+
+        // Kept and emptied for the next request
+        assertTrue(file.isFile());
+        assertEquals(0, file.length());
+        assertEquals(1, factory.getIdleFileCount());
+
+        NanoHTTPD.TempFileManager nextManager = factory.create();
+        assertEquals(file, write(nextManager.createTempFile()));
+        nextManager.clear();
+        assertEquals(1, factory.getHits());
+        assertEquals(1, factory.getMisses());
+        assertEquals(1, filesInDirectory().size());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        NanoHTTPD.TempFileManager manager = factory.create();
+        File first = write(manager.createTempFile());
+        File second = write(manager.createTempFile());
+        // The pool only has two, the rest are one offs
+        File third = write(manager.createTempFile());
+        File fourth = write(factory.create().createTempFile());
+        assertEquals(4, new HashSet<File>(Arrays.asList(first, second, third, fourth)).size());
+        assertEquals(4, filesInDirectory().size());
+        assertEquals(0, factory.getHits());
+        assertEquals(4, factory.getMisses());
+
+        manager.clear();
+        assertTrue(first.isFile());
+        assertTrue(second.isFile());
+        assertFalse(third.exists());
+        assertEquals(2, factory.getIdleFileCount());
+
+        // The pool doesn't grow past its size however many one offs went back
+        NanoHTTPD.TempFileManager nextManager = factory.create();
+        Set<File> reused = new HashSet<File>(Arrays.asList(write(nextManager.createTempFile()),
+                write(nextManager.createTempFile())));
+        assertEquals(new HashSet<File>(Arrays.asList(first, second)), reused);
+        nextManager.clear();
+        assertEquals(2, factory.getIdleFileCount());
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        NanoHTTPD.TempFileManager manager = factory.create();
+        File kept = write(manager.createTempFile());
+        File taken = write(manager.createTempFile());
+        File oneOff = write(manager.createTempFile());
+
+        // A handler that moves its temp file somewhere else keeps it, the pool makes a new one
+        File moved = new File(directory, "moved");
+        assertTrue(taken.renameTo(moved));
+        manager.clear();
+        assertTrue(kept.isFile());
+        assertTrue(moved.isFile());
+        assertFalse(oneOff.exists());
+        assertEquals(1, factory.getIdleFileCount());
+        assertTrue(moved.delete());
+
+        // Clearing twice is harmless
+        manager.clear();
+        assertEquals(1, factory.getIdleFileCount());
+
+        NanoHTTPD.TempFileManager nextManager = factory.create();
+        assertEquals(kept, write(nextManager.createTempFile()));
+        File replacement = write(nextManager.createTempFile());
+        assertFalse(replacement.equals(taken));
+        nextManager.clear();
+        assertEquals(2, factory.getIdleFileCount());
+
+        factory.deleteIdleFiles();
+        assertEquals(0, factory.getIdleFileCount());
+        assertTrue(filesInDirectory().isEmpty());
+
+        factory.preallocate();
+        assertEquals(2, factory.getIdleFileCount());
+        assertEquals(2, filesInDirectory().size());
+    }
+
+    /**
+     * A spilled body stays mapped for as long as anyone holds on to it, truncating its file under it would crash the
+     * JVM the next time the old buffer was read
+     */
+    @Test
+    public void testMappedBodiesAreNeverTruncated() throws Exception {
+        NanoHTTPDSessionTest.BodyServer server = new NanoHTTPDSessionTest.BodyServer();
+        server.setBodyMemoryThreshold(0);
+        String big = NanoHTTPDSessionTest.repeat('b', 10000);
+        server.executeAll(server.session(factory.create(), new ByteArrayInputStream(NanoHTTPDSessionTest.bytes(
+                NanoHTTPDSessionTest.post(big) + NanoHTTPDSessionTest.post("small"))), new ByteArrayOutputStream()));
+        assertEquals(big, server.seen.get(0).get(":body"));
+        assertEquals("small", server.seen.get(1).get(":body"));
+
+        // The second body reused the first one's file without emptying it, and only mapped what it wrote
+        ByteBuffer first = server.bodies.get(0);
+        assertEquals(1, factory.getHits());
+        assertEquals(1, factory.getIdleFileCount());
+        assertEquals(5, server.bodies.get(1).remaining());
+        assertEquals(10000, first.remaining());
+        assertEquals("small" + big.substring(5), NanoHTTPDSessionTest.string(first));
+
+        // An ordinary temp file doesn't get the mapped one, which would have to be emptied, but one of its own
+        NanoHTTPD.TempFileManager manager = factory.create();
+        File file = write(manager.createTempFile());
+        assertEquals(3, file.length());
+        File second = write(manager.createTempFile());
+        assertEquals(3, second.length());
+        manager.clear();
+        assertEquals(2, factory.getIdleFileCount());
+        // The mapped file was swapped for the second one, its mapping outlives it
+        assertEquals(2, filesInDirectory().size());
+        assertEquals(10000, first.remaining());
+        assertEquals('b', first.get(9999));
+    }
+}
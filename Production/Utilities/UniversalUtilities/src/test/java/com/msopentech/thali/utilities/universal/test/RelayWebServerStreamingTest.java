@@ -0,0 +1,319 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.CouchDBListener.HttpKeyTypes;
+import com.msopentech.thali.relay.RelayWebServer;
+import com.msopentech.thali.utilities.universal.HttpKeyHttpClient;
+import com.msopentech.thali.utilities.universal.HttpKeyURL;
+import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import org.apache.http.*;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.impl.DefaultHttpServerConnection;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.protocol.*;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.Socket;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bodies streamed through the relay in both directions, against a stand in TDH.
+ */
+public class RelayWebServerStreamingTest {
+    /**
+     * Stands in for the TDH. /echo answers with the body it was sent, /stream sends a line every 50ms until the
+     * connection goes away.
+     */
+    static class FakeTdh implements Runnable {
+        final SSLServerSocket serverSocket;
+        final HttpService httpService;
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicReference<HttpRequest> lastRequest = new AtomicReference<HttpRequest>();
+        final CountDownLatch streamAborted = new CountDownLatch(1);
+
+        FakeTdh(KeyStore keyStore) throws Exception {
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, ThaliCryptoUtilities.DefaultPassPhrase);
+            TrustManager acceptAllClients = new X509TrustManager() {
+                @Override
+                public void checkClientTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                }
+
+                @Override
+                public X509Certificate[] getAcceptedIssuers() {
+                    return new X509Certificate[0];
+                }
+            };
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), new TrustManager[] { acceptAllClients }, null);
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket(0);
+            serverSocket.setWantClientAuth(true);
+
+            HttpRequestHandlerRegistry handlers = new HttpRequestHandlerRegistry();
+            handlers.register("/echo", new HttpRequestHandler() {
+                @Override
+                public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+                        throws HttpException, IOException {
+                    requests.incrementAndGet();
+                    lastRequest.set(request);
+                    byte[] body = request instanceof HttpEntityEnclosingRequest ?
+                            EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity()) :
+                            new byte[0];
+                    ByteArrayEntity entity = new ByteArrayEntity(body);
+                    entity.setContentType("application/octet-stream");
+                    response.setEntity(entity);
+                }
+            });
+            handlers.register("/stream", new HttpRequestHandler() {
+                @Override
+                public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+                    requests.incrementAndGet();
+                    // Chunked so the relay's connection stays reusable, and closing the feed without an abort
+                    // would try to read it to the end
+                    AbstractHttpEntity entity = new AbstractHttpEntity() {
+                        @Override
+                        public boolean isRepeatable() {
+                            return false;
+                        }
+
+                        @Override
+                        public long getContentLength() {
+                            return -1;
+                        }
+
+                        @Override
+                        public InputStream getContent() {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            try {
+                                for (int line = 0; ; ++line) {
+                                    out.write(("line " + line + "\n").getBytes("US-ASCII"));
+                                    out.flush();
+                                    Thread.sleep(50);
+                                }
+                            } catch (IOException e) {
+                                streamAborted.countDown();
+                                throw e;
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException();
+                            }
+                        }
+
+                        @Override
+                        public boolean isStreaming() {
+                            return true;
+                        }
+                    };
+                    entity.setChunked(true);
+                    response.setEntity(entity);
+                }
+            });
+            httpService = new HttpService(new ImmutableHttpProcessor(new HttpResponseInterceptor[] {
+                    new ResponseDate(), new ResponseContent(), new ResponseConnControl() }),
+                    new DefaultConnectionReuseStrategy(), new DefaultHttpResponseFactory(), handlers,
+                    new BasicHttpParams());
+
+            Thread thread = new Thread(this, "Fake TDH");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (serverSocket.isClosed() == false) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread connectionThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            DefaultHttpServerConnection connection = new DefaultHttpServerConnection();
+                            try {
+                                connection.bind(socket, new BasicHttpParams());
+                                while (connection.isOpen()) {
+                                    httpService.handleRequest(connection, new BasicHttpContext());
+                                }
+                            } catch (Exception e) {
+                                // The relay went away
+                            } finally {
+                                try {
+                                    connection.shutdown();
+                                } catch (IOException e) {
+                                }
+                            }
+                        }
+                    });
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    // Closed
+                }
+            }
+        }
+    }
+
+    private FakeTdh tdh;
+    private HttpKeyHttpClient relayClient;
+    private RelayWebServer relay;
+    private DefaultHttpClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        KeyPair keyPair = ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair();
+        KeyStore keyStore = ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(keyPair,
+                ThaliCryptoUtilities.ThaliKeyAlias, ThaliCryptoUtilities.DefaultPassPhrase);
+        tdh = new FakeTdh(keyStore);
+        relayClient = new HttpKeyHttpClient(keyPair.getPublic(), keyStore, ThaliCryptoUtilities.DefaultPassPhrase,
+                null, new BasicHttpParams());
+        relay = new RelayWebServer(relayClient,
+                new HttpKeyTypes(new HttpKeyURL(keyPair.getPublic(), "127.0.0.1", tdh.getPort(), null, null, null)), 0);
+        relay.start();
+        client = new DefaultHttpClient();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.getConnectionManager().shutdown();
+        relay.stop();
+        relayClient.getConnectionManager().shutdown();
+        tdh.close();
+    }
+
+    private String url(String path) {
+        return "http://" + RelayWebServer.relayHost + ":" + relay.getListeningPort() + path;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Sends request over a plain socket and returns the status line of the answer
+     */
+    private String rawRequest(String request) throws IOException {
+        Socket socket = new Socket(RelayWebServer.relayHost, relay.getListeningPort());
+        try {
+            socket.setSoTimeout(10 * 1000);
+            socket.getOutputStream().write(request.getBytes("US-ASCII"));
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII")).readLine();
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testRequestAndResponseBodiesStream() throws Exception {
+        // Bigger than anything NanoHTTPD or the relay would buffer in one go
+        byte[] body = randomBytes(3 * 1024 * 1024 + 5);
+        HttpPost post = new HttpPost(url("/echo"));
+        post.setEntity(new ByteArrayEntity(body));
+        HttpResponse response = client.execute(post);
+        assertEquals(200, response.getStatusLine().getStatusCode());
+        // Streamed back to the client as it comes from the TDH
+        assertEquals("chunked", response.getFirstHeader("Transfer-Encoding").getValue());
+        assertTrue(Arrays.equals(body, EntityUtils.toByteArray(response.getEntity())));
+        assertEquals(String.valueOf(body.length),
+                tdh.lastRequest.get().getFirstHeader("Content-Length").getValue());
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testChunkedRequestBody() throws Exception {
+        byte[] body = randomBytes(200 * 1024 + 3);
+        for (int i = 0; i < 2; ++i) {
+            HttpPut put = new HttpPut(url("/echo"));
+            InputStreamEntity entity = new InputStreamEntity(new ByteArrayInputStream(body), -1);
+            entity.setChunked(true);
+            put.setEntity(entity);
+            HttpResponse response = client.execute(put);
+            assertEquals(200, response.getStatusLine().getStatusCode());
+            assertTrue(Arrays.equals(body, EntityUtils.toByteArray(response.getEntity())));
+            assertEquals("chunked", tdh.lastRequest.get().getFirstHeader("Transfer-Encoding").getValue());
+        }
+        assertEquals(2, tdh.requests.get());
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testBadRequestBodiesAreRejected() throws Exception {
+        assertTrue(rawRequest("PUT /echo HTTP/1.1\r\nContent-Length: lots\r\n\r\n").contains(" 400 "));
+        assertTrue(rawRequest("PUT /echo HTTP/1.1\r\nContent-Length: -5\r\n\r\n").contains(" 400 "));
+        assertTrue(rawRequest("PUT /echo HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n").contains(" 400 "));
+        assertEquals(0, tdh.requests.get());
+    }
+
+    @Test(timeout = 60 * 1000)
+    public void testClientDisconnectAbortsTdhResponse() throws Exception {
+        Socket socket = new Socket(RelayWebServer.relayHost, relay.getListeningPort());
+        try {
+            socket.setSoTimeout(10 * 1000);
+            socket.getOutputStream().write("GET /stream HTTP/1.1\r\n\r\n".getBytes("US-ASCII"));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            assertTrue(in.readLine().contains(" 200 "));
+            String line;
+            do {
+                line = in.readLine();
+                assertNotNull(line);
+            } while (!line.equals("line 1"));
+        } finally {
+            socket.close();
+        }
+
+        // The feed never ends, so only aborting the relay's connection to the TDH stops it
+        assertTrue(tdh.streamAborted.await(20, TimeUnit.SECONDS));
+
+        // And the relay carries on
+        HttpPost post = new HttpPost(url("/echo"));
+        post.setEntity(new ByteArrayEntity(new byte[] { 1, 2, 3 }));
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 },
+                EntityUtils.toByteArray(client.execute(post).getEntity())));
+    }
+}
@@ -0,0 +1,320 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.SocksHandshake;
+import com.msopentech.thali.utilities.universal.SocksIsolationLanes;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SocksHandshakeTest {
+    /**
+     * Just enough of a SOCKS4a/SOCKS5 server to check what the client sends. It accepts every CONNECT, remembers
+     * the host, port and username it was asked for and then echoes whatever the client sends.
+     */
+    static class StandInSocksProxy implements Runnable {
+        final ServerSocket serverSocket;
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+        StandInSocksProxy() throws IOException {
+            serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(this, "Stand in SOCKS proxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (serverSocket.isClosed() == false) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    Thread connectionThread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(socket);
+                            } catch (IOException e) {
+                                // The client went away
+                            } finally {
+                                try {
+                                    socket.close();
+                                } catch (IOException e) {
+                                }
+                            }
+                        }
+                    });
+                    connectionThread.setDaemon(true);
+                    connectionThread.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        void handle(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String username = null;
+            String host;
+            int port;
+
+            int version = in.readUnsignedByte();
+            if (version == 4) {
+                in.readUnsignedByte();
+                port = in.readUnsignedShort();
+                in.readInt();
+                username = readNullTerminated(in);
+                host = readNullTerminated(in);
+                out.write(new byte[]{0, 0x5a, 0, 0, 0, 0, 0, 0});
+            } else {
+                int methodCount = in.readUnsignedByte();
+                byte[] methods = new byte[methodCount];
+                in.readFully(methods);
+                out.write(new byte[]{5, methods[0]});
+                if (methods[0] == 2) {
+                    in.readUnsignedByte();
+                    username = readLengthPrefixed(in);
+                    readLengthPrefixed(in);
+                    out.write(new byte[]{1, 0});
+                }
+                in.readFully(new byte[3]);
+                assertEquals(3, in.readUnsignedByte());
+                host = readLengthPrefixed(in);
+                port = in.readUnsignedShort();
+                out.write(new byte[]{5, 0, 0, 1, 0, 0, 0, 0, 0, 0});
+            }
+            out.flush();
+            requests.add(host + ":" + port + "/" + username);
+            onConnected(socket, username);
+        }
+
+        void onConnected(Socket socket, String username) throws IOException {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = socket.getInputStream().read(buffer)) != -1) {
+                socket.getOutputStream().write(buffer, 0, read);
+            }
+        }
+
+        private static String readNullTerminated(DataInputStream in) throws IOException {
+            StringBuilder value = new StringBuilder();
+            int next;
+            while ((next = in.readUnsignedByte()) != 0) {
+                value.append((char) next);
+            }
+            return value.toString();
+        }
+
+        private static String readLengthPrefixed(DataInputStream in) throws IOException {
+            byte[] value = new byte[in.readUnsignedByte()];
+            in.readFully(value);
+            return new String(value, "UTF-8");
+        }
+    }
+
+    /**
+     * Pretends every distinct set of credentials is its own Tor circuit and that a circuit can only move one chunk
+     * every chunkMillis, however many streams share it. Each stream gets downloadBytes. Streams don't start sending
+     * until expectedStreams have connected, and we record how many chunks were ever moving at once.
+     */
+    static class CircuitCappedSocksProxy extends StandInSocksProxy {
+        static final int chunkSize = 4096;
+        static final int chunkMillis = 10;
+        static final int downloadBytes = 16 * chunkSize;
+        final Map<String, Object> circuits = new HashMap<String, Object>();
+        final CountDownLatch allConnected;
+        final AtomicInteger chunksMoving = new AtomicInteger();
+        final AtomicInteger peakChunksMoving = new AtomicInteger();
+
+        CircuitCappedSocksProxy(int expectedStreams) throws IOException {
+            allConnected = new CountDownLatch(expectedStreams);
+        }
+
+        @Override
+        void onConnected(Socket socket, String username) throws IOException {
+            Object circuit;
+            synchronized (circuits) {
+                circuit = circuits.get(username);
+                if (circuit == null) {
+                    circuit = new Object();
+                    circuits.put(username, circuit);
+                }
+            }
+
+            try {
+                allConnected.countDown();
+                allConnected.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+
+            byte[] chunk = new byte[chunkSize];
+            for (int sent = 0; sent < downloadBytes; sent += chunkSize) {
+                synchronized (circuit) {
+                    int moving = chunksMoving.incrementAndGet();
+                    int peak;
+                    while ((peak = peakChunksMoving.get()) < moving &&
+                            peakChunksMoving.compareAndSet(peak, moving) == false) {
+                    }
+                    try {
+                        Thread.sleep(chunkMillis);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e.getMessage());
+                    } finally {
+                        chunksMoving.decrementAndGet();
+                    }
+                }
+                socket.getOutputStream().write(chunk);
+            }
+            socket.getOutputStream().flush();
+        }
+    }
+
+    private StandInSocksProxy proxy;
+
+    @Before
+    public void setUp() throws IOException {
+        proxy = new StandInSocksProxy();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        proxy.close();
+    }
+
+    private void connectAndEcho(SocksHandshake.Version version, String username, boolean pipelined)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", proxy.getPort()));
+            SocksHandshake.connect(socket, "abcdefghijklmnop.onion", 9898, version, username, "secret", pipelined);
+            assertTrue(socket.getTcpNoDelay());
+            socket.getOutputStream().write(42);
+            assertEquals(42, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testSocks4a() throws IOException {
+        connectAndEcho(SocksHandshake.Version.SOCKS4A, null, false);
+        assertEquals("abcdefghijklmnop.onion:9898/", proxy.requests.get(0));
+    }
+
+    @Test
+    public void testSocks5() throws IOException {
+        connectAndEcho(SocksHandshake.Version.SOCKS5, null, false);
+        connectAndEcho(SocksHandshake.Version.SOCKS5, null, true);
+        connectAndEcho(SocksHandshake.Version.SOCKS5, "lane0", false);
+        connectAndEcho(SocksHandshake.Version.SOCKS5, "lane1", true);
+        assertEquals("abcdefghijklmnop.onion:9898/null", proxy.requests.get(0));
+        assertEquals("abcdefghijklmnop.onion:9898/null", proxy.requests.get(1));
+        assertEquals("abcdefghijklmnop.onion:9898/lane0", proxy.requests.get(2));
+        assertEquals("abcdefghijklmnop.onion:9898/lane1", proxy.requests.get(3));
+    }
+
+    @Test
+    public void testIsolationLanesRoundRobin() {
+        SocksIsolationLanes lanes = new SocksIsolationLanes(3);
+        Set<String> usernames = new HashSet<String>();
+        for (int i = 0; i < 6; ++i) {
+            usernames.add(lanes.nextUsername("peer.onion", 9898));
+        }
+        assertEquals(3, usernames.size());
+        assertFalse(usernames.contains(lanes.nextUsername("otherpeer.onion", 9898)));
+        assertFalse(lanes.getPassword().equals(new SocksIsolationLanes(3).getPassword()));
+    }
+
+    /**
+     * Four parallel downloads through one lane share one simulated circuit and take turns, through four lanes they
+     * each get their own and move at the same time.
+     */
+    @Test
+    public void testIsolationLanesSpreadLoadOverCircuits() throws Exception {
+        CircuitCappedSocksProxy oneLaneProxy = runParallelDownloads(new SocksIsolationLanes(1), 4);
+        assertEquals(1, oneLaneProxy.circuits.size());
+        assertEquals(1, oneLaneProxy.peakChunksMoving.get());
+
+        CircuitCappedSocksProxy fourLanesProxy = runParallelDownloads(new SocksIsolationLanes(4), 4);
+        assertEquals(4, fourLanesProxy.circuits.size());
+        assertTrue("peak " + fourLanesProxy.peakChunksMoving.get(), fourLanesProxy.peakChunksMoving.get() > 1);
+    }
+
+    private CircuitCappedSocksProxy runParallelDownloads(final SocksIsolationLanes lanes, int connections)
+            throws Exception {
+        final CircuitCappedSocksProxy cappedProxy = new CircuitCappedSocksProxy(connections);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] threads = new Thread[connections];
+        for (int i = 0; i < connections; ++i) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Socket socket = new Socket();
+                    try {
+                        socket.connect(new InetSocketAddress("127.0.0.1", cappedProxy.getPort()));
+                        SocksHandshake.connect(socket, "peer.onion", 9898, SocksHandshake.Version.SOCKS5,
+                                lanes.nextUsername("peer.onion", 9898), lanes.getPassword(), true);
+                        new DataInputStream(socket.getInputStream())
+                                .readFully(new byte[CircuitCappedSocksProxy.downloadBytes]);
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } finally {
+            cappedProxy.close();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        return cappedProxy;
+    }
+}
@@ -15,13 +15,22 @@ See the Apache 2 License for the specific language governing permissions and lim
 package com.msopentech.thali.utilities.universal.test;
 
 import com.msopentech.thali.utilities.universal.ThaliCryptoUtilities;
+import com.msopentech.thali.utilities.universal.ThaliKeyPairProvisioner;
+import com.msopentech.thali.utilities.universal.ThaliKeyStoreHandle;
+import com.msopentech.thali.utilities.universal.ThaliPublicKeyComparer;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.security.KeyPair;
 import java.security.KeyStore;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.*;
 
@@ -51,4 +60,92 @@ public class ThaliCryptoUtilitiesTest {
         privateKeyEntry.getCertificate().verify(keyPair.getPublic());
         assertEquals(privateKeyEntry.getCertificateChain().length, 1);
     }
+
+    @Test
+    public void testCreatePKCS12KeyStoreWithEcKeyPair() throws Exception {
+        KeyPair keyPair =
+                ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair(ThaliCryptoUtilities.EcKeyTypeIdentifier);
+        assertTrue(keyPair.getPublic() instanceof ECPublicKey);
+        assertTrue(ThaliPublicKeyComparer.supportedKeyType(keyPair.getPublic()));
+
+        KeyStore keyStore = ThaliCryptoUtilities.CreatePKCS12KeyStoreWithPublicPrivateKeyPair(keyPair,
+                ThaliCryptoUtilities.ThaliKeyAlias, ThaliCryptoUtilities.DefaultPassPhrase);
+        KeyStore.PrivateKeyEntry privateKeyEntry = ThaliCryptoUtilities.getThaliListenerKeyStoreEntry(keyStore);
+        privateKeyEntry.getCertificate().verify(keyPair.getPublic());
+        assertEquals(ThaliCryptoUtilities.getAppKeyFromKeyStore(keyStore), keyPair.getPublic());
+    }
+
+    @Test
+    public void testValidateThaliKeyStoreIsCachedUntilFileChanges() throws Exception {
+        File filesDir = File.createTempFile("thaliKeyStoreTest", "");
+        assertTrue(filesDir.delete() && filesDir.mkdir());
+        File keyStoreFile = ThaliCryptoUtilities.getThaliKeyStoreFileObject(filesDir);
+        try {
+            KeyStore createdKeyStore = ThaliCryptoUtilities.getThaliKeyStoreByAnyMeansNecessary(filesDir);
+            ThaliKeyStoreHandle handle = ThaliCryptoUtilities.getThaliKeyStoreHandle(filesDir);
+            KeyStore.PrivateKeyEntry cachedEntry = handle.getPrivateKeyEntry();
+            PublicKey publicKey = ThaliCryptoUtilities.getAppKeyFromKeyStore(createdKeyStore);
+
+            // Everyone shares the one key store, which is what lets them share an SSL socket factory
+            assertTrue(createdKeyStore == ThaliCryptoUtilities.validateThaliKeyStore(filesDir));
+            assertTrue(createdKeyStore == ThaliCryptoUtilities.getThaliKeyStoreByAnyMeansNecessary(filesDir));
+            assertEquals(publicKey, ThaliCryptoUtilities.getAppKeyFromKeyStore(handle.getKeyStore()));
+            assertTrue(cachedEntry == handle.getPrivateKeyEntry());
+
+            // A new modification time on the same contents isn't a change
+            assertTrue(keyStoreFile.setLastModified(keyStoreFile.lastModified() - 10000));
+            assertTrue(cachedEntry == handle.getPrivateKeyEntry());
+            assertTrue(createdKeyStore == handle.getKeyStore());
+
+            // New contents of the same size are, once the modification time moves
+            flipAByte(keyStoreFile);
+            assertTrue(keyStoreFile.setLastModified(keyStoreFile.lastModified() + 5000));
+            assertNull(ThaliCryptoUtilities.validateThaliKeyStore(filesDir));
+
+            // A file written within a modification time tick of when we last read it is always read again, as a
+            // second write in that tick might not have moved the modification time
+            assertTrue(keyStoreFile.delete());
+            KeyStore recreatedKeyStore = ThaliCryptoUtilities.getThaliKeyStoreByAnyMeansNecessary(filesDir);
+            assertTrue(recreatedKeyStore == handle.getKeyStore());
+            long lastModified = keyStoreFile.lastModified();
+            flipAByte(keyStoreFile);
+            assertTrue(keyStoreFile.setLastModified(lastModified));
+            assertNull(ThaliCryptoUtilities.validateThaliKeyStore(filesDir));
+
+            assertTrue(keyStoreFile.delete());
+            assertNull(ThaliCryptoUtilities.validateThaliKeyStore(filesDir));
+        } finally {
+            keyStoreFile.delete();
+            filesDir.delete();
+        }
+    }
+
+    private static void flipAByte(File file) throws IOException {
+        RandomAccessFile contents = new RandomAccessFile(file, "rw");
+        try {
+            contents.seek(contents.length() / 2);
+            int b = contents.read();
+            contents.seek(contents.length() / 2);
+            contents.write(b ^ 0xff);
+        } finally {
+            contents.close();
+        }
+    }
+
+    @Test
+    public void testKeyPairProvisionerNeverHandsOutAKeyTwice() throws Exception {
+        ThaliKeyPairProvisioner provisioner = new ThaliKeyPairProvisioner();
+        try {
+            provisioner.setPoolSize(2);
+            Future<KeyPair> firstFuture = provisioner.takeFuture();
+            KeyPair second = provisioner.take();
+            KeyPair first = firstFuture.get();
+            assertTrue(first != second);
+            assertFalse(first.getPublic().equals(second.getPublic()));
+            assertEquals(((RSAPublicKey) first.getPublic()).getModulus().bitLength(),
+                    ThaliCryptoUtilities.KeySizeInBits);
+        } finally {
+            provisioner.clear();
+        }
+    }
 }
@@ -0,0 +1,114 @@
+/*
+Copyright (c) Microsoft Open Technologies, Inc.
+All Rights Reserved
+Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with the
+License. You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+
+THIS CODE IS PROVIDED ON AN *AS IS* BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, EITHER EXPRESS OR IMPLIED,
+INCLUDING WITHOUT LIMITATION ANY IMPLIED WARRANTIES OR CONDITIONS OF TITLE, FITNESS FOR A PARTICULAR PURPOSE,
+MERCHANTABLITY OR NON-INFRINGEMENT.
+
+See the Apache 2 License for the specific language governing permissions and limitations under the License.
+*/
+
+package com.msopentech.thali.utilities.universal.test;
+
+import com.msopentech.thali.utilities.universal.ThaliHttpRequestRetryHandler;
+import com.msopentech.thali.utilities.universal.ThaliPeerStats;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.SocketException;
+
+import static org.junit.Assert.*;
+
+public class ThaliHttpRequestRetryHandlerTest {
+    private static final String host = "abcdefghijklmnop.onion";
+    private static final int port = 9898;
+    private final ThaliHttpRequestRetryHandler retryHandler = new ThaliHttpRequestRetryHandler(3, 1, 4);
+
+    @Before
+    public void setUp() {
+        ThaliPeerStats.clear();
+    }
+
+    private HttpContext context(HttpRequest request, boolean sent) {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, new HttpHost(host, port, "https"));
+        context.setAttribute(ExecutionContext.HTTP_REQUEST, request);
+        context.setAttribute(ExecutionContext.HTTP_REQ_SENT, sent);
+        return context;
+    }
+
+    @Test
+    public void testOnlyRetriesWhatIsSafeToRetry() {
+        IOException reset = new SocketException("Connection reset");
+        HttpGet get = new HttpGet("https://" + host + ":" + port + "/");
+        HttpPost post = new HttpPost("https://" + host + ":" + port + "/");
+
+        assertTrue(retryHandler.retryRequest(reset, 1, context(get, true)));
+        assertTrue(retryHandler.retryRequest(reset, 1, context(post, false)));
+        assertFalse(retryHandler.retryRequest(reset, 1, context(post, true)));
+        assertFalse(retryHandler.retryRequest(new SSLException("bad cert"), 1, context(get, false)));
+        assertFalse(retryHandler.retryRequest(reset, 4, context(get, false)));
+
+        // Only the requests we gave up on count as failures
+        ThaliPeerStats peerStats = ThaliPeerStats.forPeer(host, port);
+        assertEquals(3, peerStats.getFailures());
+        assertEquals(2, peerStats.getRetries());
+    }
+
+    @Test
+    public void testOneFailurePerRequestAndBoundedBackoff() {
+        // Always wants to wait 3ms, but one request may only wait 4ms in all
+        ThaliHttpRequestRetryHandler fixedBackoffHandler = new ThaliHttpRequestRetryHandler(10, 1, 4) {
+            @Override
+            protected long getBackoffMillis(int executionCount, ThaliPeerStats peerStats) {
+                return 3;
+            }
+        };
+        IOException reset = new SocketException("Connection reset");
+        HttpContext context = context(new HttpGet("https://" + host + ":" + port + "/"), false);
+        ThaliPeerStats peerStats = ThaliPeerStats.forPeer(host, port);
+
+        assertTrue(fixedBackoffHandler.retryRequest(reset, 1, context));
+        assertTrue(fixedBackoffHandler.retryRequest(reset, 2, context));
+        assertEquals(0, peerStats.getFailures());
+        assertFalse(fixedBackoffHandler.retryRequest(reset, 3, context));
+        assertEquals(1, peerStats.getFailures());
+        assertEquals(2, peerStats.getRetries());
+
+        // A new request gets its own allowance
+        assertTrue(fixedBackoffHandler.retryRequest(reset, 1,
+                context(new HttpGet("https://" + host + ":" + port + "/"), false)));
+    }
+
+    @Test
+    public void testRetryBudget() {
+        IOException reset = new SocketException("Connection reset");
+        HttpGet get = new HttpGet("https://" + host + ":" + port + "/");
+        ThaliPeerStats peerStats = ThaliPeerStats.forPeer(host, port);
+
+        for (int i = 0; i < ThaliPeerStats.MaxRetryTokens; ++i) {
+            assertTrue(retryHandler.retryRequest(reset, 1, context(get, false)));
+        }
+        assertFalse(retryHandler.retryRequest(reset, 1, context(get, false)));
+
+        // It takes a few successes to earn a retry back
+        for (int i = 0; i * ThaliPeerStats.RetryTokensPerSuccess < 1; ++i) {
+            peerStats.recordSuccess(10);
+        }
+        assertTrue(retryHandler.retryRequest(reset, 1, context(get, false)));
+        assertFalse(retryHandler.retryRequest(reset, 1, context(get, false)));
+        assertEquals(10, peerStats.getAverageLatencyMillis(), 0.001);
+    }
+}
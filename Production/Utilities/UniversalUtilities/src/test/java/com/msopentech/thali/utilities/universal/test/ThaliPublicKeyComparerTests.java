@@ -54,4 +54,26 @@ public class ThaliPublicKeyComparerTests {
         assertTrue(thaliPublicKeyComparer.KeysEqual(rsaKey1));
     }
 
+    @Test
+    public void testEcPublicKeyComparer() throws Exception {
+        PublicKey ecKey1 = ThaliCryptoUtilities
+                .GenerateThaliAcceptablePublicPrivateKeyPair(ThaliCryptoUtilities.EcKeyTypeIdentifier).getPublic();
+        PublicKey ecKey2 = ThaliCryptoUtilities
+                .GenerateThaliAcceptablePublicPrivateKeyPair(ThaliCryptoUtilities.EcKeyTypeIdentifier).getPublic();
+        PublicKey rsaKey = ThaliCryptoUtilities.GenerateThaliAcceptablePublicPrivateKeyPair().getPublic();
+
+        // Only P-256 is supported, the ECDH generator defaults to a different curve
+        assertFalse(ThaliPublicKeyComparer.supportedKeyType(generateEllpticCurve().getPublic()));
+        assertTrue(ThaliPublicKeyComparer.supportedKeyType(ecKey1));
+
+        ThaliPublicKeyComparer thaliPublicKeyComparer = new ThaliPublicKeyComparer(ecKey1);
+
+        assertTrue(thaliPublicKeyComparer.KeysEqual(ecKey1));
+        assertFalse(thaliPublicKeyComparer.KeysEqual(ecKey2));
+        assertFalse(thaliPublicKeyComparer.KeysEqual(rsaKey));
+        assertFalse(new ThaliPublicKeyComparer(rsaKey).KeysEqual(ecKey1));
+
+        assertTrue(thaliPublicKeyComparer.getFingerprint().equals(ThaliPublicKeyComparer.getKeyFingerprint(ecKey1)));
+        assertFalse(thaliPublicKeyComparer.getFingerprint().equals(ThaliPublicKeyComparer.getKeyFingerprint(ecKey2)));
+    }
 }